@@ -0,0 +1,39 @@
+package com.saulpower.fayeclient;
+
+import java.io.IOException;
+
+/**
+ * Turns Bayeux messages into frame text and back, so the client can use
+ * whichever serializer suits the app. {@link StreamingCodec} is the
+ * default; {@link OrgJsonCodec} goes through org.json trees.
+ */
+public interface BayeuxCodec {
+
+    /**
+     * Appends one message as a JSON object, leaving out members that are
+     * not set.
+     */
+    void encode(BayeuxMessage message, StringBuilder out) throws IOException;
+
+    /**
+     * A decoder for one client's inbound frames. It is only used from one
+     * thread at a time.
+     */
+    Decoder newDecoder();
+
+    interface Decoder {
+
+        /**
+         * Starts on a new frame: one message or an array of them.
+         */
+        void begin(CharSequence frame) throws IOException;
+
+        /**
+         * Decodes the next message of the frame into the given one, which
+         * the decoder should {@link BayeuxMessage#reset()} first.
+         *
+         * @return False once the frame has no more messages
+         */
+        boolean next(BayeuxMessage message) throws IOException;
+    }
+}
@@ -0,0 +1,219 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One Bayeux message, as filled in by a {@link BayeuxCodec.Decoder} or
+ * built by the client for a {@link BayeuxCodec} to encode. An inbound
+ * {@code data} member may be kept as a span of the frame and only parsed
+ * when {@link #getData()} is called, so messages nobody listens to cost no
+ * JSON tree. Inbound instances are reused for every message of a frame and
+ * are only valid during the callback they are passed to.
+ */
+public final class BayeuxMessage {
+
+    String mChannel;
+    boolean mSuccessful;
+    String mClientId;
+    String mId;
+    String mSubscription;
+    String mError;
+
+    String mAdviceReconnect;
+    long mAdviceInterval = -1;
+    long mAdviceTimeout = -1;
+
+    String mConnectionType;
+    String mVersion;
+    String mMinimumVersion;
+    String[] mSupportedConnectionTypes;
+    JSONObject mExt;
+    JSONObject mData;
+
+    CharSequence mSource;
+    int mDataStart = -1;
+    int mDataEnd = -1;
+
+    /**
+     * Clears every member, for a decoder reusing the instance.
+     */
+    public void reset() {
+
+        mChannel = null;
+        mSuccessful = false;
+        mClientId = null;
+        mId = null;
+        mSubscription = null;
+        mError = null;
+
+        mAdviceReconnect = null;
+        mAdviceInterval = -1;
+        mAdviceTimeout = -1;
+
+        mConnectionType = null;
+        mVersion = null;
+        mMinimumVersion = null;
+        mSupportedConnectionTypes = null;
+        mExt = null;
+        mData = null;
+
+        mSource = null;
+        mDataStart = -1;
+        mDataEnd = -1;
+    }
+
+    public void setChannel(String channel) {
+        mChannel = channel;
+    }
+
+    public void setSuccessful(boolean successful) {
+        mSuccessful = successful;
+    }
+
+    public void setClientId(String clientId) {
+        mClientId = clientId;
+    }
+
+    public void setId(String id) {
+        mId = id;
+    }
+
+    public void setSubscription(String subscription) {
+        mSubscription = subscription;
+    }
+
+    public void setError(String error) {
+        mError = error;
+    }
+
+    public void setAdvice(String reconnect, long interval, long timeout) {
+        mAdviceReconnect = reconnect;
+        mAdviceInterval = interval;
+        mAdviceTimeout = timeout;
+    }
+
+    public void setConnectionType(String connectionType) {
+        mConnectionType = connectionType;
+    }
+
+    public void setVersion(String version, String minimumVersion) {
+        mVersion = version;
+        mMinimumVersion = minimumVersion;
+    }
+
+    public void setSupportedConnectionTypes(String... connectionTypes) {
+        mSupportedConnectionTypes = connectionTypes;
+    }
+
+    public void setExt(JSONObject ext) {
+        mExt = ext;
+    }
+
+    public void setData(JSONObject data) {
+        mData = data;
+    }
+
+    /**
+     * Points {@code data} at its JSON text inside a frame, to be parsed only
+     * if someone asks for it.
+     */
+    public void setRawData(CharSequence source, int start, int end) {
+        mSource = source;
+        mDataStart = start;
+        mDataEnd = end;
+    }
+
+    public String getChannel() {
+        return mChannel;
+    }
+
+    public boolean isSuccessful() {
+        return mSuccessful;
+    }
+
+    public String getClientId() {
+        return mClientId;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getSubscription() {
+        return mSubscription;
+    }
+
+    public String getError() {
+        return mError;
+    }
+
+    /**
+     * The advice's {@code reconnect} member: "retry", "handshake", "none"
+     * or null when the message carried no advice.
+     */
+    public String getAdviceReconnect() {
+        return mAdviceReconnect;
+    }
+
+    /**
+     * The advice's {@code interval} in milliseconds, or -1.
+     */
+    public long getAdviceInterval() {
+        return mAdviceInterval;
+    }
+
+    /**
+     * The advice's {@code timeout} in milliseconds, or -1.
+     */
+    public long getAdviceTimeout() {
+        return mAdviceTimeout;
+    }
+
+    public String getConnectionType() {
+        return mConnectionType;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    public String getMinimumVersion() {
+        return mMinimumVersion;
+    }
+
+    public String[] getSupportedConnectionTypes() {
+        return mSupportedConnectionTypes;
+    }
+
+    public JSONObject getExt() {
+        return mExt;
+    }
+
+    public boolean hasData() {
+        return mData != null || mDataStart >= 0;
+    }
+
+    /**
+     * The raw JSON text of {@code data} when the decoder kept it as a span,
+     * or null.
+     */
+    public CharSequence getRawData() {
+        return (mDataStart >= 0) ? mSource.subSequence(mDataStart, mDataEnd) : null;
+    }
+
+    /**
+     * The {@code data} member as an object, parsing a raw span into a new
+     * JSONObject on every call.
+     *
+     * @return The object, or null when data is missing or not an object
+     */
+    public JSONObject getData() throws JSONException {
+
+        if (mData != null) return mData;
+
+        if (mDataStart < 0 || mSource.charAt(mDataStart) != '{') return null;
+
+        return new JSONObject(mSource.subSequence(mDataStart, mDataEnd).toString());
+    }
+}
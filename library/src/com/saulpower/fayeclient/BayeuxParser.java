@@ -0,0 +1,451 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * The {@link StreamingCodec}'s decoder, a pull parser for inbound Bayeux
+ * frames: a single message object or an array of them. Only the envelope
+ * members routing needs are decoded; everything else is skipped without
+ * building a tree, and {@code data} is left as a span for
+ * {@link BayeuxMessage#getData()}. Repeated channel and client id strings
+ * are shared rather than copied for every message.
+ */
+final class BayeuxParser implements BayeuxCodec.Decoder {
+
+    private CharSequence mText;
+    private int mPosition;
+    private int mEnd;
+    private boolean mArray;
+    private boolean mDone;
+
+    private String mLastChannel;
+    private String mLastClientId;
+
+    @Override
+    public void begin(CharSequence text) throws IOException {
+
+        try {
+            start(text);
+        } catch (JSONException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public boolean next(BayeuxMessage message) throws IOException {
+
+        try {
+            return read(message);
+        } catch (JSONException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Where the parser is in the frame: past the array's opening bracket
+     * after {@link #begin(CharSequence)} and past a message's closing brace
+     * after {@link #next(BayeuxMessage)}.
+     */
+    int getPosition() {
+        return mPosition;
+    }
+
+    private void start(CharSequence text) throws JSONException {
+
+        mText = text;
+        mPosition = 0;
+        mEnd = text.length();
+        mDone = false;
+
+        char c = peek();
+
+        if (c == '[') {
+            mArray = true;
+            mPosition++;
+        } else if (c == '{') {
+            mArray = false;
+        } else {
+            throw error("Expected a message or an array of messages");
+        }
+    }
+
+    private boolean read(BayeuxMessage message) throws JSONException {
+
+        if (mDone) return false;
+
+        char c = peek();
+
+        if (mArray) {
+
+            if (c == ']') {
+                mDone = true;
+                return false;
+            }
+
+            if (c == ',') {
+                mPosition++;
+                c = peek();
+            }
+
+        } else {
+            mDone = true;
+        }
+
+        message.reset();
+        message.mSource = mText;
+
+        if (c != '{') {
+
+            // Not a message object; step over it and hand back an empty message
+            skipValue();
+            return true;
+        }
+
+        readMessage(message);
+
+        return true;
+    }
+
+    private void readMessage(BayeuxMessage message) throws JSONException {
+
+        mPosition++;
+
+        if (peek() == '}') {
+            mPosition++;
+            return;
+        }
+
+        while (true) {
+
+            expect('"');
+            int keyStart = mPosition;
+            int keyEnd = skipStringBody();
+
+            expectAfterWhitespace(':');
+            peek();
+
+            if (keyIs(keyStart, keyEnd, "channel")) {
+                message.mChannel = mLastChannel = readString(mLastChannel);
+            } else if (keyIs(keyStart, keyEnd, "successful")) {
+                message.mSuccessful = readBoolean();
+            } else if (keyIs(keyStart, keyEnd, "clientId")) {
+                message.mClientId = mLastClientId = readString(mLastClientId);
+            } else if (keyIs(keyStart, keyEnd, "id")) {
+                message.mId = readString(null);
+            } else if (keyIs(keyStart, keyEnd, "subscription")) {
+                message.mSubscription = readString(null);
+            } else if (keyIs(keyStart, keyEnd, "error")) {
+                message.mError = readString(null);
+            } else if (keyIs(keyStart, keyEnd, "advice")) {
+                readAdvice(message);
+            } else if (keyIs(keyStart, keyEnd, "data")) {
+                message.mDataStart = mPosition;
+                skipValue();
+                message.mDataEnd = mPosition;
+            } else {
+                skipValue();
+            }
+
+            char c = peek();
+            mPosition++;
+
+            if (c == '}') return;
+
+            if (c != ',') {
+                throw error("Expected , or }");
+            }
+
+            peek();
+        }
+    }
+
+    private void readAdvice(BayeuxMessage message) throws JSONException {
+
+        if (mText.charAt(mPosition) != '{') {
+            skipValue();
+            return;
+        }
+
+        mPosition++;
+
+        if (peek() == '}') {
+            mPosition++;
+            return;
+        }
+
+        while (true) {
+
+            expect('"');
+            int keyStart = mPosition;
+            int keyEnd = skipStringBody();
+
+            expectAfterWhitespace(':');
+            peek();
+
+            if (keyIs(keyStart, keyEnd, "reconnect")) {
+                message.mAdviceReconnect = readString(null);
+            } else if (keyIs(keyStart, keyEnd, "interval")) {
+                message.mAdviceInterval = readLong();
+            } else if (keyIs(keyStart, keyEnd, "timeout")) {
+                message.mAdviceTimeout = readLong();
+            } else {
+                skipValue();
+            }
+
+            char c = peek();
+            mPosition++;
+
+            if (c == '}') return;
+
+            if (c != ',') {
+                throw error("Expected , or }");
+            }
+
+            peek();
+        }
+    }
+
+    /**
+     * Reads a string value, or null for a JSON null or a value of another
+     * type.
+     *
+     * @param cached A previous value to return instead of a copy when the
+     *               text is the same
+     */
+    private String readString(String cached) throws JSONException {
+
+        if (mText.charAt(mPosition) != '"') {
+            skipValue();
+            return null;
+        }
+
+        mPosition++;
+
+        int start = mPosition;
+        int end = skipStringBody();
+
+        if (cached != null && cached.length() == end - start && regionEquals(start, cached)) {
+            return cached;
+        }
+
+        for (int i = start; i < end; i++) {
+
+            if (mText.charAt(i) == '\\') {
+                return unescape(start, end);
+            }
+        }
+
+        return mText.subSequence(start, end).toString();
+    }
+
+    private boolean readBoolean() throws JSONException {
+
+        boolean value = mText.charAt(mPosition) == 't';
+        skipValue();
+
+        return value;
+    }
+
+    private long readLong() throws JSONException {
+
+        int start = mPosition;
+        skipValue();
+
+        long value = 0;
+        boolean negative = false;
+
+        for (int i = start; i < mPosition; i++) {
+
+            char c = mText.charAt(i);
+
+            if (c == '-' && i == start) {
+                negative = true;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else {
+                // Fraction, exponent or not a number at all; whole milliseconds are plenty
+                break;
+            }
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Steps over one value of any type, nested ones included.
+     */
+    private void skipValue() throws JSONException {
+
+        char c = peek();
+
+        if (c == '"') {
+            mPosition++;
+            skipStringBody();
+            return;
+        }
+
+        if (c == '{' || c == '[') {
+
+            int depth = 0;
+
+            while (mPosition < mEnd) {
+
+                c = mText.charAt(mPosition++);
+
+                if (c == '"') {
+                    skipStringBody();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) return;
+                }
+            }
+
+            throw error("Unterminated object or array");
+        }
+
+        // A number, true, false or null
+        int start = mPosition;
+
+        while (mPosition < mEnd) {
+
+            c = mText.charAt(mPosition);
+
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) break;
+
+            mPosition++;
+        }
+
+        if (mPosition == start) {
+            throw error("Expected a value");
+        }
+    }
+
+    /**
+     * Steps past the closing quote of a string whose opening quote has
+     * been consumed.
+     *
+     * @return Where the string's contents end
+     */
+    private int skipStringBody() throws JSONException {
+
+        while (mPosition < mEnd) {
+
+            char c = mText.charAt(mPosition++);
+
+            if (c == '"') return mPosition - 1;
+
+            if (c == '\\') {
+                mPosition++;
+            }
+        }
+
+        throw error("Unterminated string");
+    }
+
+    private String unescape(int start, int end) throws JSONException {
+
+        StringBuilder out = new StringBuilder(end - start);
+
+        for (int i = start; i < end; i++) {
+
+            char c = mText.charAt(i);
+
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+
+            c = mText.charAt(++i);
+
+            switch (c) {
+                case 'b':
+                    out.append('\b');
+                    break;
+                case 'f':
+                    out.append('\f');
+                    break;
+                case 'n':
+                    out.append('\n');
+                    break;
+                case 'r':
+                    out.append('\r');
+                    break;
+                case 't':
+                    out.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw error("Bad unicode escape");
+                    }
+
+                    try {
+                        out.append((char) Integer.parseInt(mText.subSequence(i + 1, i + 5).toString(), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Bad unicode escape");
+                    }
+
+                    i += 4;
+                    break;
+                default:
+                    out.append(c);
+                    break;
+            }
+        }
+
+        return out.toString();
+    }
+
+    private boolean keyIs(int start, int end, String key) {
+        return end - start == key.length() && regionEquals(start, key);
+    }
+
+    private boolean regionEquals(int start, String value) {
+
+        for (int i = 0; i < value.length(); i++) {
+            if (mText.charAt(start + i) != value.charAt(i)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Skips whitespace and returns the next character without consuming it.
+     */
+    private char peek() throws JSONException {
+
+        while (mPosition < mEnd && isWhitespace(mText.charAt(mPosition))) {
+            mPosition++;
+        }
+
+        if (mPosition == mEnd) {
+            throw error("Unexpected end of input");
+        }
+
+        return mText.charAt(mPosition);
+    }
+
+    private void expect(char c) throws JSONException {
+
+        if (mText.charAt(mPosition) != c) {
+            throw error("Expected " + c);
+        }
+
+        mPosition++;
+    }
+
+    private void expectAfterWhitespace(char c) throws JSONException {
+        peek();
+        expect(c);
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at character " + mPosition);
+    }
+}
@@ -0,0 +1,68 @@
+package com.saulpower.fayeclient;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A small pool of equally sized heap buffers for outbound frames. Requests
+ * larger than the pooled size get a one-off buffer that is simply dropped
+ * on release.
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final ByteBuffer[] mBuffers;
+    private int mCount;
+
+    /**
+     * @param bufferSize The capacity of each pooled buffer
+     * @param maxPooled The maximum number of idle buffers kept around
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mBuffers = new ByteBuffer[maxPooled];
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer holding at least the requested number of bytes.
+     */
+    public ByteBuffer acquire(int capacity) {
+
+        if (capacity > mBufferSize) {
+            return ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+        }
+
+        synchronized (mBuffers) {
+
+            if (mCount > 0) {
+
+                ByteBuffer buffer = mBuffers[--mCount];
+                mBuffers[mCount] = null;
+                buffer.clear();
+
+                return buffer;
+            }
+        }
+
+        return ByteBuffer.allocate(mBufferSize).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Hands a buffer back once its contents have been written out.
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (buffer == null || buffer.capacity() != mBufferSize) return;
+
+        synchronized (mBuffers) {
+
+            if (mCount < mBuffers.length) {
+                mBuffers[mCount++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.saulpower.fayeclient;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs message listeners off the socket's reader thread, so a slow
+ * listener no longer holds up reading. Messages go to one of a few lanes,
+ * each a thread with a bounded queue, picked by hashing the channel:
+ * messages on one channel are delivered in order, while different
+ * channels run in parallel. A dispatcher may be shared by several clients.
+ *
+ * @see FayeClient#setDispatcher(ChannelDispatcher)
+ */
+public class ChannelDispatcher {
+
+    private static final String TAG = "ChannelDispatcher";
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    // Queued behind everything else to stop a lane that is draining
+    private static final Task STOP = new Task() {
+
+        @Override
+        public void run() {
+        }
+    };
+
+    private final Lane[] mLanes;
+    private final Histogram mQueueDelays = new Histogram();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile WebSocketClient.OverflowPolicy mOverflowPolicy = WebSocketClient.OverflowPolicy.BLOCK;
+    private volatile boolean mShutdown;
+
+    /**
+     * A dispatcher with a lane per processor.
+     */
+    public ChannelDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), QUEUE_CAPACITY, null);
+    }
+
+    /**
+     * @param lanes How many channels can be delivered at once
+     * @param queueCapacity How many messages each lane holds before the
+     *                      {@link WebSocketClient.OverflowPolicy} applies
+     * @param threadFactory Where the lane threads come from, or null for
+     *                      plain daemon threads
+     */
+    public ChannelDispatcher(int lanes, int queueCapacity, ThreadFactory threadFactory) {
+
+        mLanes = new Lane[lanes];
+
+        for (int i = 0; i < lanes; i++) {
+
+            Lane lane = new Lane(queueCapacity);
+
+            if (threadFactory != null) {
+                lane.mThread = threadFactory.newThread(lane);
+            } else {
+                lane.mThread = new Thread(lane, "faye-dispatch-" + i);
+                lane.mThread.setDaemon(true);
+            }
+
+            mLanes[i] = lane;
+            lane.mThread.start();
+        }
+    }
+
+    /**
+     * What to do with a message whose lane is full. By default,
+     * {@code BLOCK}, the reader waits for room, slowing reading down to the
+     * listeners' pace, except on a {@link NioReactor} loop: that thread
+     * serves other connections too, so there the new message is dropped as
+     * with {@code REJECT}. {@code REJECT} always drops the new message and
+     * {@code DROP_OLDEST} the lane's oldest; either way the message counts
+     * towards {@link #getDropped()}.
+     */
+    public void setOverflowPolicy(WebSocketClient.OverflowPolicy policy) {
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     * How long messages waited in their lane before delivery, in
+     * microseconds.
+     */
+    public Histogram getQueueDelays() {
+        return mQueueDelays;
+    }
+
+    /**
+     * How many messages the overflow policy dropped.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Stops the lanes at once. Messages still queued are not delivered,
+     * and messages dispatched from now on are dropped.
+     */
+    public void shutdown() {
+
+        mShutdown = true;
+
+        for (Lane lane : mLanes) {
+            lane.mThread.interrupt();
+        }
+    }
+
+    /**
+     * Stops the lanes once they have delivered the messages already
+     * queued, dropping those dispatched from now on. Lanes still busy when
+     * the timeout runs out are stopped as by {@link #shutdown()}.
+     *
+     * @return Whether every queued message was delivered in time
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+
+        mShutdown = true;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        for (Lane lane : mLanes) {
+            lane.mQueue.offer(STOP, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        boolean drained = true;
+
+        for (Lane lane : mLanes) {
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+            // A join of zero would wait forever
+            if (remaining > 0) {
+                lane.mThread.join(remaining);
+            }
+
+            if (lane.mThread.isAlive()) {
+                lane.mThread.interrupt();
+                drained = false;
+            }
+        }
+
+        return drained;
+    }
+
+    /**
+     * Queues a delivery on the channel's lane.
+     */
+    void dispatch(String channel, Task task) {
+
+        int hash = channel.hashCode();
+        Lane lane = mLanes[((hash ^ (hash >>> 16)) & 0x7fffffff) % mLanes.length];
+
+        // The lanes are gone, so a full one would never make room again
+        if (mShutdown) {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        task.mQueuedNanos = System.nanoTime();
+
+        WebSocketClient.OverflowPolicy policy = mOverflowPolicy;
+
+        // Waiting on an event loop would stall every connection it serves
+        if (policy == WebSocketClient.OverflowPolicy.BLOCK && Thread.currentThread() instanceof NioReactor.EventLoop) {
+            policy = WebSocketClient.OverflowPolicy.REJECT;
+        }
+
+        switch (policy) {
+
+            case BLOCK:
+                try {
+                    lane.mQueue.put(task);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    mDropped.incrementAndGet();
+                }
+                break;
+
+            case DROP_OLDEST:
+                while (!lane.mQueue.offer(task)) {
+                    if (lane.mQueue.poll() != null) {
+                        mDropped.incrementAndGet();
+                    }
+                }
+                break;
+
+            default:
+                if (!lane.mQueue.offer(task)) {
+                    mDropped.incrementAndGet();
+                }
+                break;
+        }
+    }
+
+    /**
+     * One delivery, stamped with when it was queued.
+     */
+    abstract static class Task implements Runnable {
+
+        long mQueuedNanos;
+    }
+
+    private final class Lane implements Runnable {
+
+        private final BlockingQueue<Task> mQueue;
+        private Thread mThread;
+
+        Lane(int capacity) {
+            mQueue = new ArrayBlockingQueue<Task>(capacity);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                while (true) {
+
+                    Task task = mQueue.take();
+
+                    if (task == STOP) return;
+
+                    mQueueDelays.record((System.nanoTime() - task.mQueuedNanos) / 1000);
+
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        FayeLog.e(TAG, "Listener failed", ex);
+                    }
+                }
+
+            } catch (InterruptedException ex) {
+                // Shut down
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.saulpower.fayeclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bayeux channel patterns compiled into a tree of segments, so a message is
+ * routed by walking its channel once rather than testing every
+ * subscription. {@code *} matches exactly one segment and a trailing
+ * {@code **} one or more. Children are found by hashing the segment's
+ * region of the channel in place, so matching does not split or copy it.
+ */
+final class ChannelTrie<T> {
+
+    private static final String WILDCARD = "*";
+    private static final String DEEP_WILDCARD = "**";
+
+    private final Node<T> mRoot = new Node<T>(null, 0);
+
+    /**
+     * Registers a value under a pattern such as {@code /chat/*} or
+     * {@code /devices/**}.
+     *
+     * @throws IllegalArgumentException If the pattern is malformed, in
+     *                                  which case nothing is added
+     */
+    synchronized void add(String pattern, T value) {
+
+        String[] segments = segments(pattern);
+        Node<T> node = mRoot;
+
+        for (int i = 0; i < segments.length - 1; i++) {
+
+            if (segments[i].equals(DEEP_WILDCARD)) {
+                throw new IllegalArgumentException("** must end the pattern: " + pattern);
+            }
+        }
+
+        for (int i = 0; i < segments.length; i++) {
+
+            String segment = segments[i];
+
+            if (segment.equals(DEEP_WILDCARD)) {
+                node.mDeepValues = append(node.mDeepValues, value);
+                return;
+            }
+
+            if (segment.equals(WILDCARD)) {
+
+                if (node.mStar == null) {
+                    node.mStar = new Node<T>(segment, 0);
+                }
+
+                node = node.mStar;
+
+            } else {
+                node = node.child(segment);
+            }
+        }
+
+        node.mValues = append(node.mValues, value);
+    }
+
+    /**
+     * Removes one registration of a value under a pattern, along with the
+     * nodes that no longer lead to any value.
+     *
+     * @return Whether it was registered
+     */
+    synchronized boolean remove(String pattern, T value) {
+
+        String[] segments = segments(pattern);
+        List<Node<T>> path = new ArrayList<Node<T>>(segments.length + 1);
+        Node<T> node = mRoot;
+        boolean removed;
+
+        for (int i = 0; ; i++) {
+
+            path.add(node);
+
+            if (i == segments.length) {
+                removed = node.mValues != null && node.mValues.remove(value);
+                break;
+            }
+
+            String segment = segments[i];
+
+            if (segment.equals(DEEP_WILDCARD)) {
+                removed = node.mDeepValues != null && node.mDeepValues.remove(value);
+                break;
+            }
+
+            node = segment.equals(WILDCARD) ? node.mStar : node.find(segment, 0, segment.length(), segment.hashCode());
+
+            if (node == null) return false;
+        }
+
+        if (removed) {
+            prune(path);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Unlinks the nodes at the end of a path that are left empty, deepest
+     * first.
+     */
+    private static <T> void prune(List<Node<T>> path) {
+
+        for (int i = path.size() - 1; i > 0; i--) {
+
+            Node<T> node = path.get(i);
+
+            if (!node.isEmpty()) return;
+
+            path.get(i - 1).unlink(node);
+        }
+    }
+
+    /**
+     * Whether nothing is registered, which once every pattern has been
+     * removed also means no nodes are left behind.
+     */
+    synchronized boolean isEmpty() {
+        return mRoot.isEmpty();
+    }
+
+    /**
+     * Adds the values of every pattern matching the channel to the list.
+     */
+    synchronized void match(String channel, List<T> matches) {
+
+        if (channel.length() == 0 || channel.charAt(0) != '/') return;
+
+        match(mRoot, channel, 1, matches);
+    }
+
+    /**
+     * @param start Where the next segment of the channel begins, past the
+     *              end of the channel once every segment is consumed
+     */
+    private static <T> void match(Node<T> node, String channel, int start, List<T> matches) {
+
+        int length = channel.length();
+
+        if (start > length) {
+
+            if (node.mValues != null) {
+                matches.addAll(node.mValues);
+            }
+
+            return;
+        }
+
+        if (node.mDeepValues != null) {
+            matches.addAll(node.mDeepValues);
+        }
+
+        int end = channel.indexOf('/', start);
+
+        if (end < 0) {
+            end = length;
+        }
+
+        int hash = 0;
+
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + channel.charAt(i);
+        }
+
+        Node<T> child = node.find(channel, start, end, hash);
+
+        if (child != null) {
+            match(child, channel, end + 1, matches);
+        }
+
+        if (node.mStar != null) {
+            match(node.mStar, channel, end + 1, matches);
+        }
+    }
+
+    private static String[] segments(String pattern) {
+
+        if (pattern.length() < 2 || pattern.charAt(0) != '/') {
+            throw new IllegalArgumentException("Not a channel pattern: " + pattern);
+        }
+
+        return pattern.substring(1).split("/", -1);
+    }
+
+    private static <T> List<T> append(List<T> values, T value) {
+
+        if (values == null) {
+            values = new ArrayList<T>(1);
+        }
+
+        values.add(value);
+
+        return values;
+    }
+
+    private static final class Node<T> {
+
+        private final String mSegment;
+        private final int mHash;
+
+        // Open addressing on the segment hash; the length is a power of two
+        private Node<T>[] mChildren;
+        private int mChildCount;
+
+        private Node<T> mStar;
+        private List<T> mValues;
+        private List<T> mDeepValues;
+
+        Node(String segment, int hash) {
+            mSegment = segment;
+            mHash = hash;
+        }
+
+        /**
+         * The child for the segment {@code key[start, end)} with the given
+         * String-compatible hash, or null.
+         */
+        Node<T> find(String key, int start, int end, int hash) {
+
+            if (mChildren == null) return null;
+
+            int mask = mChildren.length - 1;
+
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+
+                Node<T> child = mChildren[i];
+
+                if (child == null) return null;
+
+                if (child.mHash == hash && child.mSegment.length() == end - start
+                        && key.regionMatches(start, child.mSegment, 0, end - start)) {
+                    return child;
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return (mValues == null || mValues.isEmpty()) && (mDeepValues == null || mDeepValues.isEmpty())
+                    && mStar == null && mChildCount == 0;
+        }
+
+        Node<T> child(String segment) {
+
+            int hash = segment.hashCode();
+            Node<T> child = find(segment, 0, segment.length(), hash);
+
+            if (child != null) return child;
+
+            if (mChildren == null || (mChildCount + 1) * 2 > mChildren.length) {
+                grow();
+            }
+
+            child = new Node<T>(segment, hash);
+            insert(mChildren, child);
+            mChildCount++;
+
+            return child;
+        }
+
+        void unlink(Node<T> child) {
+
+            if (child == mStar) {
+                mStar = null;
+                return;
+            }
+
+            // Rare enough that rehashing the rest beats tombstones in the probe
+            Node<T>[] old = mChildren;
+
+            mChildCount--;
+
+            if (mChildCount == 0) {
+                mChildren = null;
+                return;
+            }
+
+            mChildren = newTable(old.length);
+
+            for (Node<T> other : old) {
+                if (other != null && other != child) {
+                    insert(mChildren, other);
+                }
+            }
+        }
+
+        private void grow() {
+
+            Node<T>[] old = mChildren;
+            mChildren = newTable((old == null) ? 4 : old.length * 2);
+
+            if (old == null) return;
+
+            for (Node<T> child : old) {
+                if (child != null) {
+                    insert(mChildren, child);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newTable(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+
+        private static <T> void insert(Node<T>[] table, Node<T> child) {
+
+            int mask = table.length - 1;
+            int i = spread(child.mHash) & mask;
+
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+
+            table[i] = child;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
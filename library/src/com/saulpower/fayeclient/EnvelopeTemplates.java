@@ -0,0 +1,79 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONObject;
+
+/**
+ * The JSON text of the messages a session sends over and over, rendered
+ * once per client id. A connect is sent whole; a publish only has its id,
+ * data and ext spliced in after the rendered channel and client id. The
+ * output is the same as {@link StreamingCodec}'s.
+ */
+final class EnvelopeTemplates {
+
+    private final String mClientId;
+    private final String mConnectionType;
+    private final String mConnect;
+    private final String mPublishPrefix;
+
+    EnvelopeTemplates(String clientId, String connectChannel, String connectionType, String publishChannel) {
+
+        mClientId = clientId;
+        mConnectionType = connectionType;
+
+        StringBuilder out = new StringBuilder();
+
+        BayeuxMessage connect = new BayeuxMessage();
+        connect.setChannel(connectChannel);
+        connect.setClientId(clientId);
+        connect.setConnectionType(connectionType);
+
+        new StreamingCodec().encode(connect, out);
+        mConnect = out.toString();
+
+        out.setLength(0);
+        out.append('{');
+
+        if (publishChannel != null) {
+            out.append("\"channel\":");
+            StreamingCodec.quote(publishChannel, out);
+            out.append(',');
+        }
+
+        out.append("\"clientId\":");
+        StreamingCodec.quote(clientId, out);
+        out.append(",\"id\":\"");
+
+        mPublishPrefix = out.toString();
+    }
+
+    /**
+     * Whether these were rendered for the given session and transport.
+     */
+    boolean isFor(String clientId, String connectionType) {
+        return mClientId.equals(clientId) && mConnectionType.equals(connectionType);
+    }
+
+    String getConnect() {
+        return mConnect;
+    }
+
+    /**
+     * Appends a publish with a numeric id.
+     *
+     * @param ext The extension object, or null to leave it out
+     */
+    void appendPublish(StringBuilder out, long id, JSONObject data, JSONObject ext) {
+
+        out.append(mPublishPrefix).append(id).append('"');
+
+        if (data != null) {
+            out.append(",\"data\":").append(data.toString());
+        }
+
+        if (ext != null) {
+            out.append(",\"ext\":").append(ext.toString());
+        }
+
+        out.append('}');
+    }
+}
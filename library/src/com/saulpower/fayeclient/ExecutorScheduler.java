@@ -0,0 +1,111 @@
+package com.saulpower.fayeclient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a {@link ScheduledExecutorService}. Tasks only run in
+ * order when the executor has a single thread, so use one of those for a
+ * client's writer; callbacks can go to a larger pool.
+ */
+public class ExecutorScheduler implements Scheduler {
+
+    private final ScheduledExecutorService mExecutor;
+
+    // Scheduled runs by task, so cancel() can find them the way Handler.removeCallbacks() does
+    private final Map<Runnable, List<Entry>> mPending = new HashMap<Runnable, List<Entry>>();
+
+    public ExecutorScheduler(ScheduledExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    public ScheduledExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+
+        Entry entry = new Entry(task);
+
+        synchronized (mPending) {
+
+            List<Entry> entries = mPending.get(task);
+
+            if (entries == null) {
+                entries = new ArrayList<Entry>(1);
+                mPending.put(task, entries);
+            }
+
+            entries.add(entry);
+
+            try {
+                entry.mFuture = mExecutor.schedule(entry, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            } catch (RuntimeException ex) {
+
+                // Never scheduled, such as on an executor that was shut down, so cancel() must not find it
+                entries.remove(entry);
+
+                if (entries.isEmpty()) {
+                    mPending.remove(task);
+                }
+
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+
+        List<Entry> entries;
+
+        synchronized (mPending) {
+            entries = mPending.remove(task);
+        }
+
+        if (entries == null) return;
+
+        for (Entry entry : entries) {
+            entry.mFuture.cancel(false);
+        }
+    }
+
+    private void forget(Entry entry) {
+
+        synchronized (mPending) {
+
+            List<Entry> entries = mPending.get(entry.mTask);
+
+            if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+                mPending.remove(entry.mTask);
+            }
+        }
+    }
+
+    private class Entry implements Runnable {
+
+        private final Runnable mTask;
+        private Future<?> mFuture;
+
+        Entry(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            forget(this);
+            mTask.run();
+        }
+    }
+}
@@ -27,14 +27,17 @@
 package com.saulpower.fayeclient;
 
 import android.os.Handler;
-import android.util.Log;
 import com.saulpower.fayeclient.WebSocketClient.Listener;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.URI;
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 public class FayeClient implements Listener {
 
@@ -46,61 +49,109 @@ public class FayeClient implements Listener {
     private static final String SUBSCRIBE_CHANNEL       = "/meta/subscribe";
     private static final String UNSUBSCRIBE_CHANNEL     = "/meta/unsubscribe";
 
-    private static final String KEY_CHANNEL             = "channel";
-    private static final String KEY_SUCCESS             = "successful";
-    private static final String KEY_CLIENT_ID           = "clientId";
-    private static final String KEY_VERSION             = "version";
-    private static final String KEY_MIN_VERSION         = "minimumVersion";
-    private static final String KEY_SUBSCRIPTION        = "subscription";
-    private static final String KEY_SUP_CONN_TYPES      = "supportedConnectionTypes";
-    private static final String KEY_CONN_TYPE           = "connectionType";
-    private static final String KEY_DATA                = "data";
-    private static final String KEY_ID                  = "id";
-    private static final String KEY_EXT                 = "ext";
-    private static final String KEY_ERROR               = "error";
-
     private static final String VALUE_VERSION           = "1.0";
     private static final String VALUE_MIN_VERSION       = "1.0beta";
-    private static final String VALUE_CONN_TYPE         = "websocket";
+    private static final String VALUE_CONN_TYPE_WS      = "websocket";
+    private static final String VALUE_CONN_TYPE_POLLING = "long-polling";
+    private static final String[] VALUE_SUP_CONN_TYPES  = {VALUE_CONN_TYPE_WS, VALUE_CONN_TYPE_POLLING};
 
-    private static final long RECONNECT_WAIT            = 10000;
-    private static final int MAX_CONNECTION_ATTEMPTS    = 3;
+    private static final long CONNECT_GRACE             = 10000;
+    private static final long PUBLISH_TIMEOUT           = 30000;
 
+    // Read on the transport's threads to drop callbacks from one that has been replaced
+    private volatile FayeTransport mTransport;
     private WebSocketClient mClient;
+    private Transport mTransportType = Transport.WEBSOCKET;
+    private boolean mLongPollingFallback = false;
+    private boolean mLongPolling = false;
     private boolean mConnected = false;
-    private int mConnectionAttempts = 0;
+    private volatile boolean mDisconnectRequested = false;
 
     private URI mFayeUrl;
     private String mFayeClientId;
     private String mActiveSubChannel;
 
-    private JSONObject mConnectionExtension;
+    // Subscriptions by channel pattern, in the order they were made, and compiled for dispatch
+    private final Map<String, List<ChannelListener>> mSubscriptions =
+            new LinkedHashMap<String, List<ChannelListener>>();
+    private final ChannelTrie<ChannelListener> mRouter = new ChannelTrie<ChannelListener>();
+    private final List<ChannelListener> mMatches = new ArrayList<ChannelListener>();
 
-    private boolean mRunning = false;
-    private boolean mReconnecting = false;
+    // Inbound frames are decoded on one thread at a time, so one decoder and one message are reused
+    private BayeuxCodec mCodec = new StreamingCodec();
+    private BayeuxCodec.Decoder mDecoder = mCodec.newDecoder();
+    private final BayeuxMessage mEnvelope = new BayeuxMessage();
 
-    private Handler mHandler;
-    private Runnable mConnectionMonitor = new Runnable() {
+    // Outbound messages are encoded into one builder, guarded by itself
+    private final StringBuilder mEncodeBuffer = new StringBuilder();
+    private EnvelopeTemplates mTemplates;
+
+    // Hands messages on the constructor's channel to the FayeListener
+    private final ChannelListener mActiveChannelListener = new ChannelListener() {
+
+        @Override
+        public void onMessage(String channel, JSONObject data) {
+
+            if (mFayeListener != null) {
+                mFayeListener.messageReceived(data);
+            }
+        }
+    };
+
+    private JSONObject mConnectionExtension;
+    private PerMessageDeflate mPerMessageDeflate;
+    private NioReactor mReactor;
+    private ThreadFactory mThreadFactory;
+    private int mLowWaterMark = -1;
+    private int mHighWaterMark = -1;
+    private WebSocketClient.OverflowPolicy mOverflowPolicy = WebSocketClient.OverflowPolicy.REJECT;
+    private WebSocketClient.WritabilityListener mWritabilityListener;
+
+    private Scheduler mScheduler;
+    private MessageBatcher mBatcher;
+    private PublishTracker mPublishes;
+    private OutboundJournal mJournal;
+    private MessageDeduplicator mDeduplicator;
+    private ChannelDispatcher mDispatcher;
+    private Reconnector mReconnector;
+
+    // One recovery attempt, as the server's advice asks
+    private final Runnable mReconnectTask = new Runnable() {
 
         @Override
         public void run() {
 
+            if (mDisconnectRequested) return;
+
             if (!mConnected) {
+                // A handshake follows once the socket is open
+                openConnection();
+            } else if (mFayeClientId == null || Reconnector.HANDSHAKE.equals(mReconnector.getAdvice())) {
+                handshake();
+            } else {
+                connect();
+            }
+        }
+    };
 
-                openWebSocketConnection();
+    private final Runnable mConnectTask = new Runnable() {
 
-                if (mConnectionAttempts < MAX_CONNECTION_ATTEMPTS) {
-                    mConnectionAttempts++;
-                    getHandler().postDelayed(this, RECONNECT_WAIT);
-                }
+        @Override
+        public void run() {
+            connect();
+        }
+    };
 
-            } else {
+    // Fires when a connect goes unanswered well past the time the server said it would hold it
+    private final Runnable mConnectWatchdog = new Runnable() {
 
-                getHandler().removeCallbacks(this);
-                mRunning = false;
-                mConnectionAttempts = 0;
-                mReconnecting = false;
-            }
+        @Override
+        public void run() {
+
+            FayeLog.w(TAG, "Connect was not answered, reconnecting");
+
+            mConnected = false;
+            reconnect();
         }
     };
 
@@ -116,9 +167,194 @@ public class FayeClient implements Listener {
         this.mFayeListener = mFayeListener;
     }
 
-    private Handler getHandler() {
+    /**
+     * Negotiate permessage-deflate compression on the WebSocket. Takes
+     * effect on the next connection.
+     *
+     * @param perMessageDeflate The compression settings, or null to disable
+     */
+    public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+        mPerMessageDeflate = perMessageDeflate;
+    }
+
+    /**
+     * Run the WebSocket on a shared {@link NioReactor} rather than on
+     * dedicated reader and writer threads, so many clients can share a few
+     * event loop threads. Takes effect on the next connection.
+     *
+     * @param reactor The reactor to use, or null for a thread per connection
+     */
+    public void setReactor(NioReactor reactor) {
+        mReactor = reactor;
+    }
+
+    /**
+     * Create the WebSocket's reader and writer threads from this factory,
+     * for example {@link VirtualThreads#factory()}. Takes effect on the next
+     * connection.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        mThreadFactory = threadFactory;
+    }
+
+    /**
+     * Which transport to reach the server with. Defaults to the WebSocket.
+     * Takes effect on the next {@link #connectToServer(JSONObject)}.
+     */
+    public void setTransport(Transport transport) {
+        mTransportType = transport;
+    }
+
+    /**
+     * Switch to HTTP long-polling when the WebSocket fails before it opens,
+     * as it does on networks that block the upgrade. The client stays on
+     * long-polling until the next {@link #connectToServer(JSONObject)}.
+     */
+    public void setLongPollingFallback(boolean fallback) {
+        mLongPollingFallback = fallback;
+    }
+
+    /**
+     * How long outbound messages may wait to share a frame with others.
+     * By default they are batched until the scheduler's next turn, up to
+     * 64KB. A scheduler that runs tasks inline, such as
+     * {@link ImmediateScheduler}, has no next turn, so there the default
+     * only batches what handling one inbound frame sends; give a positive
+     * window to batch publishes as well.
+     *
+     * @param delayMillis The longest wait, or negative to send every message
+     *                    in its own frame
+     * @param maxBytes    Send a batch early once it reaches this size
+     */
+    public void setBatchWindow(long delayMillis, int maxBytes) {
+        mBatcher.setWindow(delayMillis, maxBytes);
+    }
+
+    /**
+     * How messages are written to and read from frames. Defaults to
+     * {@link StreamingCodec}. Set it before connecting.
+     */
+    public void setCodec(BayeuxCodec codec) {
+        mCodec = codec;
+        mDecoder = codec.newDecoder();
+    }
+
+    /**
+     * How reconnects back off once the connection or session is lost. Each
+     * wait is drawn at random between the base and three times the last
+     * one, up to the cap, and is never shorter than the interval the server
+     * advised. Defaults to between 1 second and 1 minute, never giving up.
+     *
+     * @param maxAttempts Give up after this many attempts in a row, or
+     *                    negative to keep trying
+     */
+    public void setReconnectBackoff(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        mReconnector.setBackoff(baseDelayMillis, maxDelayMillis, maxAttempts);
+    }
+
+    /**
+     * Keep every publish in a journal until the server acknowledges it. A
+     * publish made while the client is offline is then accepted and sent
+     * after the next handshake, along with any earlier publish still
+     * waiting for its reply, including ones left in the journal by a
+     * previous run. A publish the server answered with an error is not
+     * retried. Set it before connecting.
+     *
+     * @param journal The journal, or null to send publishes only once
+     */
+    public void setOutboundJournal(OutboundJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Drop delivered messages that were among the last few seen, so
+     * listeners see each message once even when the server repeats it. A
+     * message is known by its channel, publisher and id; see
+     * {@link MessageDeduplicator} for when publishers' ids can still
+     * collide. Messages without an id are always delivered.
+     *
+     * @param deduplicator The window of messages to check against, or null
+     *                     to deliver every message
+     */
+    public void setDeduplicator(MessageDeduplicator deduplicator) {
+        mDeduplicator = deduplicator;
+    }
+
+    /**
+     * Deliver messages to listeners on the dispatcher's lanes instead of
+     * the thread reading the socket, so a slow listener holds up only its
+     * own channel. Messages on a channel still arrive in order.
+     *
+     * @param dispatcher The lanes to deliver on, or null to deliver on the
+     *                   reading thread
+     */
+    public void setDispatcher(ChannelDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * How long a publish may wait for the server's reply before its
+     * {@link PublishCallback} is failed. Defaults to 30 seconds.
+     */
+    public void setPublishTimeout(long timeoutMillis) {
+        mPublishes.setTimeout(timeoutMillis);
+    }
 
-        return mHandler;
+    /**
+     * Times from publishing a message to the server's reply, in
+     * microseconds, including any wait for its batch.
+     */
+    public Histogram getPublishLatencies() {
+        return mPublishes.getLatencies();
+    }
+
+    /**
+     * Bound the bytes waiting to be written to the WebSocket. See
+     * {@link WebSocketClient#setWriteBufferWaterMarks(int, int)}.
+     */
+    public void setWriteBufferWaterMarks(int low, int high) {
+
+        mLowWaterMark = low;
+        mHighWaterMark = high;
+
+        if (mClient != null) {
+            mClient.setWriteBufferWaterMarks(low, high);
+        }
+    }
+
+    /**
+     * What {@link #publish(JSONObject, JSONObject)} does when the write
+     * buffer is full.
+     */
+    public void setOverflowPolicy(WebSocketClient.OverflowPolicy policy) {
+
+        mOverflowPolicy = policy;
+
+        if (mClient != null) {
+            mClient.setOverflowPolicy(policy);
+        }
+    }
+
+    public void setWritabilityListener(WebSocketClient.WritabilityListener listener) {
+
+        mWritabilityListener = listener;
+
+        if (mClient != null) {
+            mClient.setWritabilityListener(listener);
+        }
+    }
+
+    /**
+     * Whether a publish right now would be accepted without applying the
+     * overflow policy.
+     */
+    public boolean isWritable() {
+        return mTransport == null || mTransport.isWritable();
+    }
+
+    private Scheduler getScheduler() {
+
+        return mScheduler;
     }
 
     /**
@@ -130,9 +366,40 @@ public class FayeClient implements Listener {
      */
     public FayeClient(Handler handler, URI fayeUrl, String channel) {
 
-        mHandler = handler;
+        this(new HandlerScheduler(handler), fayeUrl, channel);
+    }
+
+    /**
+     * Creates a Faye Client that runs its reconnect timers and WebSocket
+     * error callbacks on the given scheduler rather than an Android looper.
+     *
+     * @param scheduler Where callbacks and timers run
+     * @param fayeUrl The URL of the FayeServer
+     * @param channel The channel to subscribe to
+     */
+    public FayeClient(Scheduler scheduler, URI fayeUrl, String channel) {
+
+        mScheduler = scheduler;
+        mBatcher = new MessageBatcher(scheduler, new MessageBatcher.Sink() {
+
+            @Override
+            public boolean send(CharSequence frame) {
+                return mTransport != null && mTransport.send(frame);
+            }
+        });
+        mPublishes = new PublishTracker(scheduler, PUBLISH_TIMEOUT);
+        mReconnector = new Reconnector(scheduler, mReconnectTask);
         mFayeUrl = fayeUrl;
         mActiveSubChannel = channel;
+
+        if (channel != null && channel.length() > 0) {
+
+            try {
+                addSubscription(channel, mActiveChannelListener);
+            } catch (IllegalArgumentException ex) {
+                FayeLog.w(TAG, "Not subscribing to " + channel + ": " + ex.getMessage());
+            }
+        }
     }
 
     /**
@@ -144,7 +411,10 @@ public class FayeClient implements Listener {
      */
     public void connectToServer(JSONObject extension) {
         mConnectionExtension = extension;
-        openWebSocketConnection();
+        mDisconnectRequested = false;
+        mLongPolling = (mTransportType == Transport.LONG_POLLING);
+        mReconnector.cancel();
+        openConnection();
     }
 
     public void disconnectFromServer() {
@@ -156,36 +426,100 @@ public class FayeClient implements Listener {
      *
      * @param json
      *            JSON object containing message to be sent to server
+     * @return Whether the message was queued for sending
      */
-    public void sendMessage(JSONObject json) {
-        publish(json, mConnectionExtension);
+    public boolean sendMessage(JSONObject json) {
+        return publish(json, mConnectionExtension);
     }
 
-    private void openWebSocketConnection() {
+    private void openConnection() {
 
-        if (mClient != null) {
-            mClient.disconnect();
+        mBatcher.clear();
+        getScheduler().cancel(mConnectTask);
+        getScheduler().cancel(mConnectWatchdog);
+
+        if (mTransport != null) {
+            mTransport.disconnect();
+            mTransport = null;
             mClient = null;
         }
 
-        mClient = new WebSocketClient(getHandler(), mFayeUrl, this, null);
-        mClient.connect();
+        // Every new transport starts with a handshake
+        mFayeClientId = null;
+
+        if (mLongPolling) {
+
+            try {
+
+                TransportListener listener = new TransportListener();
+                LongPollingTransport transport = new LongPollingTransport(mFayeUrl, listener, getScheduler());
+                transport.setThreadFactory(mThreadFactory);
+
+                listener.mSource = transport;
+                mTransport = transport;
+                mTransport.connect();
+
+            } catch (IOException ex) {
+                FayeLog.e(TAG, "Cannot long-poll " + mFayeUrl, ex);
+            }
+
+            return;
+        }
+
+        TransportListener listener = new TransportListener();
+
+        mClient = new WebSocketClient(getScheduler(), mFayeUrl, listener, null);
+        mClient.setPerMessageDeflate(mPerMessageDeflate);
+        mClient.setReactor(mReactor);
+        mClient.setThreadFactory(mThreadFactory);
+        mClient.setOverflowPolicy(mOverflowPolicy);
+        mClient.setWritabilityListener(mWritabilityListener);
+
+        if (mHighWaterMark >= 0) {
+            mClient.setWriteBufferWaterMarks(mLowWaterMark, mHighWaterMark);
+        }
+
+        listener.mSource = mClient;
+        mTransport = mClient;
+        mTransport.connect();
     }
 
     public void closeWebSocketConnection() {
 
-        Log.i(TAG, "socket disconnected");
+        FayeLog.i(TAG, "socket disconnected");
+
+        mTransport.disconnect();
+    }
 
-        mClient.disconnect();
+    private String getConnectionType() {
+        return (mTransport instanceof LongPollingTransport) ? VALUE_CONN_TYPE_POLLING : VALUE_CONN_TYPE_WS;
     }
 
-    private void resetWebSocketConnection() {
+    /**
+     * Schedules the next recovery attempt, unless the client is
+     * disconnecting or the server advised against it.
+     */
+    private void reconnect() {
 
-        if (!mConnected) {
+        if (mDisconnectRequested) return;
 
-            if (!mRunning) {
-                getHandler().post(mConnectionMonitor);
-            }
+        if (!mReconnector.schedule()) {
+            FayeLog.w(TAG, "Not reconnecting, server advice is " + mReconnector.getAdvice());
+        }
+    }
+
+    /**
+     * Watches for the reply to a connect that was just sent, if the server
+     * said how long it may hold one.
+     */
+    private void watchConnect() {
+
+        long timeout = mReconnector.getTimeout();
+
+        getScheduler().cancel(mConnectWatchdog);
+
+        if (timeout >= 0) {
+            getScheduler().postDelayed(mConnectWatchdog, timeout + CONNECT_GRACE);
         }
     }
 
@@ -204,25 +538,12 @@ public class FayeClient implements Listener {
      */
     private void handshake() {
 
-        try {
+        BayeuxMessage message = new BayeuxMessage();
+        message.setChannel(HANDSHAKE_CHANNEL);
+        message.setVersion(VALUE_VERSION, VALUE_MIN_VERSION);
+        message.setSupportedConnectionTypes(VALUE_SUP_CONN_TYPES);
 
-            JSONArray connTypes = new JSONArray();
-            connTypes.put("long-polling");
-            connTypes.put("callback-polling");
-            connTypes.put("iframe");
-            connTypes.put("websocket");
-
-            JSONObject json = new JSONObject();
-            json.put(KEY_CHANNEL, HANDSHAKE_CHANNEL);
-            json.put(KEY_VERSION, VALUE_VERSION);
-            json.put(KEY_MIN_VERSION, VALUE_MIN_VERSION);
-            json.put(KEY_SUP_CONN_TYPES, connTypes);
-
-            mClient.send(json.toString());
-
-        } catch (JSONException ex) {
-            Log.e(TAG, "Handshake Failed", ex);
-        }
+        send(message);
     }
 
     /**
@@ -239,18 +560,21 @@ public class FayeClient implements Listener {
      */
     public void connect() {
 
-        try {
-
-            JSONObject json = new JSONObject();
-            json.put(KEY_CHANNEL, CONNECT_CHANNEL);
-            json.put(KEY_CLIENT_ID, mFayeClientId);
-            json.put(KEY_CONN_TYPE, VALUE_CONN_TYPE);
+        EnvelopeTemplates templates = getTemplates();
 
-            mClient.send(json.toString());
+        watchConnect();
 
-        } catch (JSONException ex) {
-            Log.e(TAG, "Handshake Failed", ex);
+        if (templates != null) {
+            mBatcher.add(templates.getConnect());
+            return;
         }
+
+        BayeuxMessage message = new BayeuxMessage();
+        message.setChannel(CONNECT_CHANNEL);
+        message.setClientId(mFayeClientId);
+        message.setConnectionType(getConnectionType());
+
+        send(message);
     }
 
     /**
@@ -265,19 +589,18 @@ public class FayeClient implements Listener {
      */
     public void disconnect() {
 
-        Log.i(TAG, "socket disconnected");
-
-        try {
+        FayeLog.i(TAG, "socket disconnected");
 
-            JSONObject json = new JSONObject();
-            json.put(KEY_CHANNEL, DISCONNECT_CHANNEL);
-            json.put(KEY_CLIENT_ID, mFayeClientId);
+        mDisconnectRequested = true;
+        mReconnector.cancel();
+        getScheduler().cancel(mConnectTask);
+        getScheduler().cancel(mConnectWatchdog);
 
-            mClient.send(json.toString());
+        BayeuxMessage message = new BayeuxMessage();
+        message.setChannel(DISCONNECT_CHANNEL);
+        message.setClientId(mFayeClientId);
 
-        } catch (JSONException ex) {
-            Log.e(TAG, "Handshake Failed", ex);
-        }
+        send(message);
     }
 
 
@@ -294,25 +617,124 @@ public class FayeClient implements Listener {
      */
     public void subscribe() {
 
-        try {
+        List<String> channels;
+
+        synchronized (mSubscriptions) {
+            channels = new ArrayList<String>(mSubscriptions.keySet());
+        }
+
+        if (channels.isEmpty()) return;
 
-            JSONObject json = new JSONObject();
-            json.put(KEY_CHANNEL, SUBSCRIBE_CHANNEL);
-            json.put(KEY_CLIENT_ID, mFayeClientId);
-            json.put(KEY_SUBSCRIPTION, mActiveSubChannel);
+        // Batched into one frame with the connect that follows a handshake
+        for (String channel : channels) {
+            sendSubscription(SUBSCRIBE_CHANNEL, channel);
+        }
+    }
 
-            if (null != mConnectionExtension) {
+    /**
+     * Subscribe to a channel pattern, delivering its messages to the
+     * listener. Patterns may end in {@code *} for one more segment or
+     * {@code **} for any number. Subscriptions survive reconnects.
+     *
+     * @param channel The channel pattern, such as {@code /chat/*}
+     * @param listener Receives every message published on a matching channel
+     * @throws IllegalArgumentException If the pattern is malformed
+     */
+    public void subscribe(String channel, ChannelListener listener) {
+
+        if (addSubscription(channel, listener) && mFayeClientId != null && mTransport != null) {
+            sendSubscription(SUBSCRIBE_CHANNEL, channel);
+        }
+    }
+
+    /**
+     * Stop delivering a channel pattern's messages to the listener. The
+     * server is told once no listener is left on the pattern.
+     */
+    public void unsubscribe(String channel, ChannelListener listener) {
 
-                json.put(KEY_EXT, mConnectionExtension);
+        boolean last;
+
+        synchronized (mSubscriptions) {
+
+            List<ChannelListener> listeners = mSubscriptions.get(channel);
+
+            if (listeners == null || !listeners.remove(listener)) return;
+
+            mRouter.remove(channel, listener);
+
+            last = listeners.isEmpty();
+
+            if (last) {
+                mSubscriptions.remove(channel);
             }
+        }
+
+        if (last && mFayeClientId != null && mTransport != null) {
+            sendSubscription(UNSUBSCRIBE_CHANNEL, channel);
+        }
+    }
+
+    /**
+     * @return Whether this is the pattern's first listener
+     */
+    private boolean addSubscription(String channel, ChannelListener listener) {
+
+        synchronized (mSubscriptions) {
+
+            // Throws for a malformed pattern before the map is touched
+            mRouter.add(channel, listener);
+
+            List<ChannelListener> listeners = mSubscriptions.get(channel);
+            boolean first = (listeners == null);
+
+            if (first) {
+                listeners = new ArrayList<ChannelListener>(1);
+                mSubscriptions.put(channel, listeners);
+            }
+
+            listeners.add(listener);
+
+            return first;
+        }
+    }
+
+    private boolean send(BayeuxMessage message) {
+
+        synchronized (mEncodeBuffer) {
+
+            mEncodeBuffer.setLength(0);
 
-            mClient.send(json.toString());
+            try {
+                mCodec.encode(message, mEncodeBuffer);
+            } catch (IOException ex) {
+                FayeLog.e(TAG, "Could not encode " + message.getChannel() + " message", ex);
+                return false;
+            }
 
-        } catch (JSONException ex) {
-            Log.e(TAG, "Handshake Failed", ex);
+            // The batcher copies the text before this builder is reused
+            return mBatcher.add(mEncodeBuffer);
         }
     }
 
+    private void sendSubscription(String metaChannel, String channel) {
+        send(createSubscribeMessage(metaChannel, channel));
+    }
+
+    private BayeuxMessage createSubscribeMessage(String metaChannel, String channel) {
+
+        BayeuxMessage message = new BayeuxMessage();
+        message.setChannel(metaChannel);
+        message.setClientId(mFayeClientId);
+        message.setSubscription(channel);
+
+        if (null != mConnectionExtension && metaChannel.equals(SUBSCRIBE_CHANNEL)) {
+
+            message.setExt(mConnectionExtension);
+        }
+
+        return message;
+    }
 
     /**
      * Send unsubscribe messages to cancel interest in channel and to request
@@ -326,19 +748,7 @@ public class FayeClient implements Listener {
      * }
      */
     public void unsubscribe() {
-
-        try {
-
-            JSONObject json = new JSONObject();
-            json.put(KEY_CHANNEL, UNSUBSCRIBE_CHANNEL);
-            json.put(KEY_CLIENT_ID, mFayeClientId);
-            json.put(KEY_SUBSCRIPTION, mActiveSubChannel);
-
-            mClient.send(json.toString());
-
-        } catch (JSONException ex) {
-            Log.e(TAG, "Handshake Failed", ex);
-        }
+        sendSubscription(UNSUBSCRIBE_CHANNEL, mActiveSubChannel);
     }
 
     /**
@@ -358,30 +768,143 @@ public class FayeClient implements Listener {
      * @param extension
      *            Bayeux extension authentication that exchanges authentication
      *            credentials and tokens within Bayeux messages ext fields
+     *
+     * @return Whether the message was queued; false when not connected or
+     *         when the write buffer is full and the overflow policy refused it.
+     *         A message still waiting for its batch counts as queued.
      */
-    public void publish(JSONObject message, JSONObject extension) {
+    public boolean publish(JSONObject message, JSONObject extension) {
+        return publish(message, extension, null);
+    }
 
-        String channel        = mActiveSubChannel;
-        long number            = (new Date()).getTime();
-        String messageId    = String.format("msg_%d_%d", number, 1);
+    /**
+     * Publish a message and hear back when the server has accepted it.
+     *
+     * @param callback Told about the server's reply, on the thread that
+     *                 delivers messages, or of a timeout on the scheduler.
+     *                 Not called when this returns false, nor for a
+     *                 journaled publish made while offline.
+     *
+     * @see #publish(JSONObject, JSONObject)
+     */
+    public boolean publish(JSONObject message, JSONObject extension, PublishCallback callback) {
 
-        try {
+        OutboundJournal journal = mJournal;
+
+        if (journal == null) {
+            return publish(mActiveSubChannel, message, extension, callback);
+        }
+
+        long entry = journal.append(mActiveSubChannel, toString(message), toString(extension));
+
+        if (entry < 0) return false;
 
-            JSONObject json = new JSONObject();
-            json.put(KEY_CHANNEL, channel);
-            json.put(KEY_CLIENT_ID, mFayeClientId);
-            json.put(KEY_DATA, message);
-            json.put(KEY_ID, messageId);
+        // Without a session the journal holds it until the next handshake
+        if (mFayeClientId == null) return true;
+
+        if (!publish(mActiveSubChannel, message, extension, new JournalCallback(journal, entry, callback))) {
+            journal.remove(entry);
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean publish(String channel, JSONObject message, JSONObject extension, PublishCallback callback) {
+
+        long messageId = mPublishes.register(callback);
+
+        if (!publish(channel, messageId, message, extension)) {
+            mPublishes.forget(messageId);
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean publish(String channel, long messageId, JSONObject message, JSONObject extension) {
+
+        // The templates are rendered for the client's own channel
+        boolean ownChannel = (channel == null) ? mActiveSubChannel == null : channel.equals(mActiveSubChannel);
+        EnvelopeTemplates templates = ownChannel ? getTemplates() : null;
+
+        synchronized (mEncodeBuffer) {
+
+            if (templates != null) {
+
+                mEncodeBuffer.setLength(0);
+                templates.appendPublish(mEncodeBuffer, messageId, message, extension);
+
+                return mBatcher.add(mEncodeBuffer);
+            }
+
+            BayeuxMessage envelope = new BayeuxMessage();
+            envelope.setChannel(channel);
+            envelope.setClientId(mFayeClientId);
+            envelope.setData(message);
+            envelope.setId(Long.toString(messageId));
 
             if (null != extension) {
-                json.put(KEY_EXT, extension);
+                envelope.setExt(extension);
+            }
+
+            return send(envelope);
+        }
+    }
+
+    /**
+     * Sends the journal's publishes again after a handshake, batched with
+     * the connect and subscribes that follow it.
+     */
+    private void replayJournal() {
+
+        OutboundJournal journal = mJournal;
+
+        if (journal == null) return;
+
+        for (OutboundJournal.Entry entry : journal.getPending()) {
+
+            try {
+
+                JSONObject data = (entry.getData() != null) ? new JSONObject(entry.getData()) : null;
+                JSONObject ext = (entry.getExt() != null) ? new JSONObject(entry.getExt()) : null;
+
+                // The rest wait for the next handshake once the write buffer is full
+                if (!publish(entry.getChannel(), data, ext, new JournalCallback(journal, entry.getSequence(), null))) {
+                    return;
+                }
+
+            } catch (JSONException ex) {
+                FayeLog.e(TAG, "Dropping unreadable journaled publish", ex);
+                journal.remove(entry.getSequence());
             }
+        }
+    }
+
+    private static String toString(JSONObject json) {
+        return (json != null) ? json.toString() : null;
+    }
+
+    /**
+     * The session's pre-rendered messages, or null before the handshake or
+     * when a custom codec has to encode every message itself.
+     */
+    private EnvelopeTemplates getTemplates() {
+
+        String clientId = mFayeClientId;
+
+        if (clientId == null || !(mCodec instanceof StreamingCodec)) return null;
 
-            mClient.send(json.toString());
+        EnvelopeTemplates templates = mTemplates;
+        String connectionType = getConnectionType();
 
-        } catch (JSONException ex) {
-            Log.e(TAG, "Handshake Failed", ex);
+        // Rendered again only when a handshake brings a new session or the transport changes
+        if (templates == null || !templates.isFor(clientId, connectionType)) {
+            templates = new EnvelopeTemplates(clientId, CONNECT_CHANNEL, connectionType, mActiveSubChannel);
+            mTemplates = templates;
         }
+
+        return templates;
     }
 
     /*
@@ -392,7 +915,6 @@ public class FayeClient implements Listener {
     public void onConnect() {
 
         mConnected = true;
-        mReconnecting = false;
         handshake();
     }
 
@@ -412,7 +934,7 @@ public class FayeClient implements Listener {
      */
     @Override
     public void onMessage(byte[] data) {
-        Log.i(TAG, "Data message");
+        FayeLog.i(TAG, "Data message");
     }
 
     /*
@@ -427,6 +949,8 @@ public class FayeClient implements Listener {
         if (mFayeListener != null) {
             mFayeListener.disconnectedFromServer();
         }
+
+        reconnect();
     }
 
     /*
@@ -436,178 +960,213 @@ public class FayeClient implements Listener {
     @Override
     public void onError(Exception error) {
 
-        Log.w(TAG, "resetWebSocketConnection " + error.getMessage(), error);
-
-        if (!mReconnecting) {
+        FayeLog.w(TAG, "reconnecting after " + error.getMessage(), error);
 
-            mReconnecting = true;
-            mConnected = false;
-
-            resetWebSocketConnection();
-        }
+        mConnected = false;
+        reconnect();
     }
 
     /**
      * Parse the Faye message and call the appropriate
-     * listener method.
+     * listener method for every message of the frame.
      *
      * @param message A json string from the Faye server
      */
     private void parseFayeMessage(String message) {
 
+        // Whatever the replies lead to sending goes out as one frame, even on an inline scheduler
+        mBatcher.cork();
+
         try {
 
-            JSONArray messageArray = new JSONArray(message);
+            mDecoder.begin(message);
+
+            while (mDecoder.next(mEnvelope)) {
 
-            for (int i = 0; i < messageArray.length(); i++) {
+                // One message with bad data must not cost the rest of the batch their replies
+                try {
+                    handleFayeMessage(mEnvelope);
+                } catch (JSONException ex) {
+                    FayeLog.e(TAG, "Could not parse faye message on " + mEnvelope.getChannel(), ex);
+                }
+            }
 
-                JSONObject fayeMessage = messageArray.optJSONObject(i);
+        } catch (IOException ex) {
+            FayeLog.e(TAG, "Could not parse faye message", ex);
+        } finally {
+            mBatcher.uncork();
+        }
+    }
 
-                if (fayeMessage == null) continue;
+    /**
+     * Acts on one message of a frame.
+     *
+     * @throws JSONException If its data is malformed
+     */
+    private void handleFayeMessage(BayeuxMessage fayeMessage) throws JSONException {
 
-                String channel = fayeMessage.optString(KEY_CHANNEL);
-                boolean success = fayeMessage.optBoolean(KEY_SUCCESS);
+        String channel = fayeMessage.getChannel();
+        boolean success = fayeMessage.isSuccessful();
 
-                if (channel.equals(HANDSHAKE_CHANNEL)) {
+        if (channel == null) return;
 
-                    if (success) {
+        if (channel.equals(HANDSHAKE_CHANNEL)) {
 
-                        mFayeClientId = fayeMessage.optString(KEY_CLIENT_ID);
+            mReconnector.advise(fayeMessage.getAdviceReconnect(), fayeMessage.getAdviceInterval(),
+                    fayeMessage.getAdviceTimeout());
 
-                        if (mFayeListener != null) {
-                            mFayeListener.connectedToServer();
-                        }
+            if (success) {
 
-                        connect();
-                        subscribe();
+                mFayeClientId = fayeMessage.getClientId();
 
-                    } // else if (BuildConfig.DEBUG) Log.d(TAG, "Error with Handshake");
+                // Replies to the last session's publishes will never come
+                mPublishes.reset(PublishTracker.SESSION_ENDED);
 
-                    return;
+                if (mFayeListener != null) {
+                    mFayeListener.connectedToServer();
                 }
 
-                if (channel.equals(CONNECT_CHANNEL)) {
+                connect();
+                subscribe();
+                replayJournal();
 
-                    if (success) {
+            } else {
 
-                        mConnected = true;
-                        connect();
+                FayeLog.w(TAG, "Handshake failed: " + fayeMessage.getError());
 
-                    } // else if (BuildConfig.DEBUG) Log.d(TAG, "Error Connecting to Faye");
+                mFayeClientId = null;
+                reconnect();
+            }
 
-                    return;
-                }
+            return;
+        }
 
-                if (channel.equals(DISCONNECT_CHANNEL)) {
+        if (channel.equals(CONNECT_CHANNEL)) {
 
-                    if (success) {
+            getScheduler().cancel(mConnectWatchdog);
+            mReconnector.advise(fayeMessage.getAdviceReconnect(), fayeMessage.getAdviceInterval(),
+                    fayeMessage.getAdviceTimeout());
 
-                        mConnected = false;
-                        closeWebSocketConnection();
+            if (success) {
 
-                        if (mFayeListener != null) {
-                            mFayeListener.disconnectedFromServer();
-                        }
+                mConnected = true;
+                mReconnector.reset();
 
-                    } // else if (BuildConfig.DEBUG) Log.d(TAG, "Error Disconnecting to Faye");
+                long interval = mReconnector.getInterval();
 
-                    return;
+                if (interval > 0) {
+                    getScheduler().postDelayed(mConnectTask, interval);
+                } else {
+                    connect();
                 }
 
-                if (channel.equals(SUBSCRIBE_CHANNEL)) {
+            } else {
 
-                    if (success) {
+                FayeLog.w(TAG, "Connect failed: " + fayeMessage.getError());
 
-                        if (mFayeListener != null) {
-                            mFayeListener.subscribedToChannel(fayeMessage.optString(KEY_SUBSCRIPTION));
-                        }
+                if (Reconnector.HANDSHAKE.equals(mReconnector.getAdvice())) {
+                    mFayeClientId = null;
+                }
 
-                    } // else if (BuildConfig.DEBUG) {
-//
-//                        Log.d(TAG, String.format("Error subscribing to %s with error %s"
-// fayeMessage.optString(KEY_SUBSCRIPTION), fayeMessage.optString(KEY_ERROR)));
-//
-//                        if (mFayeListener != null) {
-//                            mFayeListener.subscriptionFailedWithError(fayeMessage.optString(KEY_ERROR));
-//                        }
-//                    }
+                reconnect();
+            }
 
-                    return;
+            return;
+        }
+
+        if (channel.equals(DISCONNECT_CHANNEL)) {
+
+            if (success) {
+
+                mConnected = false;
+                closeWebSocketConnection();
+
+                if (mFayeListener != null) {
+                    mFayeListener.disconnectedFromServer();
                 }
 
-                if (channel.equals(UNSUBSCRIBE_CHANNEL)) {
+            } // else if (BuildConfig.DEBUG) FayeLog.d(TAG, "Error Disconnecting to Faye");
 
-                    if (success) {
+            return;
+        }
 
-//                        if (BuildConfig.DEBUG) Log.d(TAG, String.format("Unsubscribed from channel %s on Faye",
-// fayeMessage.optString(KEY_SUBSCRIPTION)));
+        if (channel.equals(SUBSCRIBE_CHANNEL)) {
 
-                    } // else if (BuildConfig.DEBUG) Log.d(TAG, "Error Connecting to Faye");
+            if (success) {
 
-                    return;
+                if (mFayeListener != null) {
+                    mFayeListener.subscribedToChannel(fayeMessage.getSubscription());
                 }
 
-                if (isSubscribedToChannel(channel)) {
+            } // else if (BuildConfig.DEBUG) {
+//
+//                FayeLog.d(TAG, String.format("Error subscribing to %s with error %s"
+// fayeMessage.getSubscription(), fayeMessage.getError()));
+//
+//                if (mFayeListener != null) {
+//                    mFayeListener.subscriptionFailedWithError(fayeMessage.getError());
+//                }
+//            }
 
-                    JSONObject data = null;
+            return;
+        }
 
-                    if ((data = fayeMessage.optJSONObject(KEY_DATA)) != null && mFayeListener != null) {
-                        mFayeListener.messageReceived(data);
-                    }
+        if (channel.equals(UNSUBSCRIBE_CHANNEL)) {
 
-                    return;
-                }
+            if (success) {
 
-//                if (BuildConfig.DEBUG) Log.d(TAG, String.format("No match for channel %s", channel));
-            }
+//                if (BuildConfig.DEBUG) FayeLog.d(TAG, String.format("Unsubscribed from channel %s on Faye",
+// fayeMessage.getSubscription()));
 
-        } catch (JSONException ex) {
-            Log.e(TAG, "Could not parse faye message", ex);
+            } // else if (BuildConfig.DEBUG) FayeLog.d(TAG, "Error Connecting to Faye");
+
+            return;
         }
-    }
 
-    /**
-     * Checks to see if we are subscribed to the passed in channel
-     *
-     * @param channel
-     *            Name of channel to check
-     * @return True if we are connected to the passed in channel, false
-     *         otherwise
-     */
-    private boolean isSubscribedToChannel(String channel) {
+        // A reply to one of our publishes carries its id but no data
+        if (fayeMessage.getId() != null && !fayeMessage.hasData()) {
+            mPublishes.acknowledge(fayeMessage.getId(), success, fayeMessage.getError());
+            return;
+        }
 
-        boolean isSubscribed = false;
+        MessageDeduplicator deduplicator = mDeduplicator;
 
-        if (mActiveSubChannel != null && mActiveSubChannel.length() > 0 && channel != null && channel.length() > 0) {
+        if (deduplicator != null && fayeMessage.getId() != null
+                && deduplicator.isDuplicate(channel, fayeMessage.getClientId(), fayeMessage.getId())) {
+            return;
+        }
+
+        mMatches.clear();
+        mRouter.match(channel, mMatches);
 
-            String[] subscribedChannelSegments = mActiveSubChannel.split("/");
-            String[] channelSegments = channel.split("/");
+        // Only a message someone listens to has its data parsed
+        if (!mMatches.isEmpty()) {
 
-            int i = 0;
-            isSubscribed = true;
+            ChannelDispatcher dispatcher = mDispatcher;
 
-            do {
+            // The lane parses the data, off the reading thread
+            if (dispatcher != null) {
 
-                String s1 = subscribedChannelSegments[i];
-                String s2 = (i < channelSegments.length ? channelSegments[i] : null);
+                ChannelListener[] listeners = mMatches.toArray(new ChannelListener[mMatches.size()]);
+                CharSequence raw = fayeMessage.getRawData();
+                JSONObject data = (raw == null) ? fayeMessage.getData() : null;
 
-                if (s2 == null) break;
+                dispatcher.dispatch(channel, new Delivery(channel, listeners, data, raw));
+                return;
+            }
 
-                if (!s2.equals(s1)) {
+            JSONObject data = fayeMessage.getData();
 
-                    if (s1.equals("**")) {
-                        break;
-                    } else {
-                        isSubscribed = false;
-                    }
+            if (data != null) {
+                for (int j = 0; j < mMatches.size(); j++) {
+                    mMatches.get(j).onMessage(channel, data);
                 }
+            }
 
-                i++;
-
-            } while (isSubscribed && i < subscribedChannelSegments.length);
+            return;
         }
 
-        return isSubscribed;
+//        if (BuildConfig.DEBUG) FayeLog.d(TAG, String.format("No match for channel %s", channel));
     }
 
     public interface FayeListener {
@@ -617,4 +1176,180 @@ public class FayeClient implements Listener {
         void subscriptionFailedWithError(String error);
         void messageReceived(JSONObject json);
     }
+
+    /**
+     * Hands one transport's callbacks to the client for as long as it is the
+     * current transport. One being replaced keeps reporting for a while,
+     * such as the error its reader hits when its socket is closed, and must
+     * not tear down the connection that replaced it.
+     */
+    private final class TransportListener implements Listener {
+
+        private FayeTransport mSource;
+
+        // Set on the reader thread, read when an error is reported on the scheduler
+        private volatile boolean mOpened;
+
+        private boolean isCurrent() {
+            return mSource != null && mSource == mTransport;
+        }
+
+        @Override
+        public void onConnect() {
+
+            if (!isCurrent()) return;
+
+            mOpened = true;
+            FayeClient.this.onConnect();
+        }
+
+        @Override
+        public void onMessage(String message) {
+
+            if (!isCurrent()) return;
+
+            FayeClient.this.onMessage(message);
+        }
+
+        @Override
+        public void onMessage(byte[] data) {
+
+            if (!isCurrent()) return;
+
+            FayeClient.this.onMessage(data);
+        }
+
+        @Override
+        public void onDisconnect(int code, String reason) {
+
+            if (!isCurrent()) return;
+
+            FayeClient.this.onDisconnect(code, reason);
+        }
+
+        @Override
+        public void onError(Exception error) {
+
+            if (!isCurrent()) {
+                FayeLog.i(TAG, "Ignoring error from a replaced transport: " + error.getMessage());
+                return;
+            }
+
+            // A WebSocket that never opened is taken to be blocked by the network
+            if (mLongPollingFallback && !mLongPolling && !mOpened && !mDisconnectRequested
+                    && mSource instanceof WebSocketClient) {
+                FayeLog.i(TAG, "WebSocket failed before opening, falling back to long-polling");
+                mLongPolling = true;
+            }
+
+            FayeClient.this.onError(error);
+        }
+    }
+
+    /**
+     * A message on its way to a channel's listeners through a
+     * {@link ChannelDispatcher}.
+     */
+    private final class Delivery extends ChannelDispatcher.Task {
+
+        private final String mChannel;
+        private final ChannelListener[] mListeners;
+        private final JSONObject mData;
+        private final CharSequence mRawData;
+
+        Delivery(String channel, ChannelListener[] listeners, JSONObject data, CharSequence rawData) {
+            mChannel = channel;
+            mListeners = listeners;
+            mData = data;
+            mRawData = rawData;
+        }
+
+        @Override
+        public void run() {
+
+            JSONObject data = mData;
+
+            if (data == null) {
+
+                if (mRawData == null || mRawData.length() == 0 || mRawData.charAt(0) != '{') return;
+
+                try {
+                    data = new JSONObject(mRawData.toString());
+                } catch (JSONException ex) {
+                    FayeLog.e(TAG, "Could not parse data on " + mChannel, ex);
+                    return;
+                }
+            }
+
+            for (ChannelListener listener : mListeners) {
+                listener.onMessage(mChannel, data);
+            }
+        }
+    }
+
+    /**
+     * Drops a journaled publish once the server has answered it, either
+     * way. One that timed out or whose session ended stays to be sent again.
+     */
+    private static final class JournalCallback implements PublishCallback {
+
+        private final OutboundJournal mJournal;
+        private final long mEntry;
+        private final PublishCallback mCallback;
+
+        JournalCallback(OutboundJournal journal, long entry, PublishCallback callback) {
+            mJournal = journal;
+            mEntry = entry;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onAcknowledged(String id) {
+
+            mJournal.remove(mEntry);
+
+            if (mCallback != null) {
+                mCallback.onAcknowledged(id);
+            }
+        }
+
+        @Override
+        public void onFailed(String id, String error) {
+
+            if (!PublishTracker.TIMED_OUT.equals(error) && !PublishTracker.SESSION_ENDED.equals(error)) {
+                mJournal.remove(mEntry);
+            }
+
+            if (mCallback != null) {
+                mCallback.onFailed(id, error);
+            }
+        }
+    }
+
+    public enum Transport {
+
+        WEBSOCKET,
+
+        /** HTTP long-polling, for networks that block WebSockets. */
+        LONG_POLLING
+    }
+
+    public interface PublishCallback {
+
+        void onAcknowledged(String id);
+
+        /**
+         * @param error The server's error, or why no reply is coming
+         */
+        void onFailed(String id, String error);
+    }
+
+    public interface ChannelListener {
+
+        /**
+         * @param channel The channel the message was published on, which
+         *                may be more specific than the subscription
+         */
+        void onMessage(String channel, JSONObject data);
+    }
 }
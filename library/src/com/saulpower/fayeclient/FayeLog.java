@@ -0,0 +1,77 @@
+package com.saulpower.fayeclient;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs through {@code android.util.Log} on Android and through
+ * {@code java.util.logging} anywhere else, so that the client runs on a
+ * plain JVM too. Tags become logger names under this package there.
+ */
+final class FayeLog {
+
+    // ART reports itself as Dalvik as well
+    private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    private static final String LOGGER_PREFIX = "com.saulpower.fayeclient.";
+
+    private FayeLog() {
+    }
+
+    static void d(String tag, String message) {
+        log(Level.FINE, tag, message, null);
+    }
+
+    static void i(String tag, String message) {
+        log(Level.INFO, tag, message, null);
+    }
+
+    static void w(String tag, String message) {
+        log(Level.WARNING, tag, message, null);
+    }
+
+    static void w(String tag, String message, Throwable tr) {
+        log(Level.WARNING, tag, message, tr);
+    }
+
+    static void e(String tag, String message) {
+        log(Level.SEVERE, tag, message, null);
+    }
+
+    static void e(String tag, String message, Throwable tr) {
+        log(Level.SEVERE, tag, message, tr);
+    }
+
+    private static void log(Level level, String tag, String message, Throwable tr) {
+
+        if (ANDROID) {
+            AndroidLog.log(level, tag, message, tr);
+            return;
+        }
+
+        Logger logger = Logger.getLogger(LOGGER_PREFIX + tag);
+
+        if (logger.isLoggable(level)) {
+            logger.log(level, message, tr);
+        }
+    }
+
+    /**
+     * Kept apart so that android.util.Log is only loaded on Android.
+     */
+    private static final class AndroidLog {
+
+        static void log(Level level, String tag, String message, Throwable tr) {
+
+            if (level == Level.FINE) {
+                android.util.Log.d(tag, message, tr);
+            } else if (level == Level.INFO) {
+                android.util.Log.i(tag, message, tr);
+            } else if (level == Level.WARNING) {
+                android.util.Log.w(tag, message, tr);
+            } else {
+                android.util.Log.e(tag, message, tr);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.saulpower.fayeclient;
+
+/**
+ * A connection that carries Bayeux messages to and from the server, the
+ * WebSocket or HTTP long-polling. Events are reported to a
+ * {@link WebSocketClient.Listener}, one message frame at a time.
+ */
+interface FayeTransport {
+
+    void connect();
+
+    void disconnect();
+
+    /**
+     * Sends a frame of one message or an array of them.
+     *
+     * @return False if it was refused
+     */
+    boolean send(CharSequence frame);
+
+    boolean isWritable();
+}
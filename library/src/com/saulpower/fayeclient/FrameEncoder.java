@@ -0,0 +1,217 @@
+package com.saulpower.fayeclient;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes complete WebSocket frames into a caller-supplied buffer. Text is
+ * encoded to UTF-8 straight into the frame, the length is written with
+ * plain shifts and masking keys come from a lock-free xorshift generator,
+ * so encoding a frame allocates nothing.
+ */
+public class FrameEncoder {
+
+    private static final int MASK = 128;
+
+    private final boolean mMasking;
+    private final AtomicLong mSeed;
+
+    public FrameEncoder(boolean masking) {
+        mMasking = masking;
+        mSeed = new AtomicLong(new SecureRandom().nextLong() | 1L);
+    }
+
+    /**
+     * The number of bytes a frame carrying the given payload occupies.
+     */
+    public int frameLength(int payloadLength) {
+
+        int header = (payloadLength <= 125) ? 2 : (payloadLength <= 65535 ? 4 : 10);
+
+        return header + (mMasking ? 4 : 0) + payloadLength;
+    }
+
+    /**
+     * Encodes a text frame at the buffer's position, which must have room
+     * for {@link #frameLength(int)} of {@link #utf8Length(CharSequence)} bytes.
+     */
+    public void encodeText(CharSequence text, ByteBuffer out) {
+        encode(HybiParser.OP_TEXT, -1, text, out);
+    }
+
+    /**
+     * Encodes a binary frame at the buffer's position.
+     */
+    public void encodeBinary(byte[] data, int offset, int length, ByteBuffer out) {
+        encode(HybiParser.OP_BINARY, -1, data, offset, length, out);
+    }
+
+    void encode(int opcode, int errorCode, CharSequence text, ByteBuffer out) {
+
+        int insert = (errorCode > 0) ? 2 : 0;
+        int length = utf8Length(text) + insert;
+        int start = writeHeader(opcode, length, out);
+
+        if (insert > 0) {
+            out.put((byte) (errorCode >>> 8));
+            out.put((byte) errorCode);
+        }
+
+        writeUtf8(text, out);
+        applyMask(out, start, length);
+    }
+
+    void encode(int opcode, int errorCode, byte[] data, int offset, int length, ByteBuffer out) {
+
+        int insert = (errorCode > 0) ? 2 : 0;
+        int start = writeHeader(opcode, length + insert, out);
+
+        if (insert > 0) {
+            out.put((byte) (errorCode >>> 8));
+            out.put((byte) errorCode);
+        }
+
+        out.put(data, offset, length);
+        applyMask(out, start, length + insert);
+    }
+
+    /**
+     * Writes the frame header and masking key, returning the absolute
+     * position at which the payload starts.
+     */
+    private int writeHeader(int opcode, int length, ByteBuffer out) {
+
+        int masked = mMasking ? MASK : 0;
+
+        out.put((byte) (HybiParser.FIN | opcode));
+
+        if (length <= 125) {
+
+            out.put((byte) (masked | length));
+
+        } else if (length <= 65535) {
+
+            out.put((byte) (masked | 126));
+            out.put((byte) (length >>> 8));
+            out.put((byte) length);
+
+        } else {
+
+            out.put((byte) (masked | 127));
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.put((byte) ((long) length >>> shift));
+            }
+        }
+
+        if (mMasking) {
+
+            int key = nextMask();
+
+            out.put((byte) (key >>> 24));
+            out.put((byte) (key >>> 16));
+            out.put((byte) (key >>> 8));
+            out.put((byte) key);
+        }
+
+        return out.position();
+    }
+
+    private void applyMask(ByteBuffer out, int start, int length) {
+
+        if (!mMasking) return;
+
+        int key = ((out.get(start - 4) & 0xFF) << 24) | ((out.get(start - 3) & 0xFF) << 16)
+                | ((out.get(start - 2) & 0xFF) << 8) | (out.get(start - 1) & 0xFF);
+
+        FrameMasker.mask(out, start, length, key, 0);
+    }
+
+    private int nextMask() {
+
+        while (true) {
+
+            long current = mSeed.get();
+            long next = current;
+
+            next ^= next << 13;
+            next ^= next >>> 7;
+            next ^= next << 17;
+
+            if (mSeed.compareAndSet(current, next)) {
+                return (int) (next >>> 32);
+            }
+        }
+    }
+
+    /**
+     * Counts the UTF-8 bytes of a string without encoding it. Unpaired
+     * surrogates count as the single '?' they are replaced with, matching
+     * {@link String#getBytes(String)}.
+     */
+    public static int utf8Length(CharSequence text) {
+
+        int length = text.length();
+        int count = length;
+
+        for (int i = 0; i < length; i++) {
+
+            char c = text.charAt(i);
+
+            if (c < 0x80) continue;
+
+            if (c < 0x800) {
+                count += 1;
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                count += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                count += 2;
+                i++;
+            }
+        }
+
+        return count;
+    }
+
+    static void writeUtf8(CharSequence text, ByteBuffer out) {
+
+        int length = text.length();
+
+        for (int i = 0; i < length; i++) {
+
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+
+                out.put((byte) c);
+
+            } else if (c < 0x800) {
+
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+
+            } else {
+
+                out.put((byte) '?');
+            }
+        }
+    }
+}
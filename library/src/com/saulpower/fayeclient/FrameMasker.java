@@ -0,0 +1,83 @@
+package com.saulpower.fayeclient;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Applies the RFC 6455 masking key to frame payloads. The key is repeated
+ * into a 64-bit word so the bulk of the payload is XORed eight bytes at a
+ * time; only the trailing bytes are handled one by one.
+ */
+final class FrameMasker {
+
+    private FrameMasker() {
+    }
+
+    /**
+     * Masks (or unmasks, the operation is symmetric) a region of an array.
+     *
+     * @param buffer The bytes to transform in place
+     * @param offset The first byte of the region
+     * @param length The number of bytes in the region
+     * @param key The four byte masking key
+     * @param keyIndex Position within the key of the first byte, which lets
+     *                 a payload be masked in several chunks
+     */
+    static void mask(byte[] buffer, int offset, int length, byte[] key, int keyIndex) {
+        mask(ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder()), offset, length, key, keyIndex);
+    }
+
+    /**
+     * Masks a region of a buffer using absolute positions, leaving the
+     * buffer's position and limit untouched.
+     */
+    static void mask(ByteBuffer buffer, int offset, int length, byte[] key, int keyIndex) {
+
+        int word = ((key[0] & 0xFF) << 24) | ((key[1] & 0xFF) << 16) | ((key[2] & 0xFF) << 8) | (key[3] & 0xFF);
+
+        mask(buffer, offset, length, word, keyIndex);
+    }
+
+    /**
+     * Masks a region of a buffer with a key packed into an int, its first
+     * byte on the wire in the most significant position.
+     */
+    static void mask(ByteBuffer buffer, int offset, int length, int key, int keyIndex) {
+
+        int end = offset + length;
+        int i = offset;
+
+        if (length >= 8) {
+
+            long word = repeat(key, keyIndex, buffer.order());
+
+            for (; i + 8 <= end; i += 8) {
+                buffer.putLong(i, buffer.getLong(i) ^ word);
+            }
+        }
+
+        // Every full word advances the key by a multiple of four, so the tail picks up where it started
+        for (int k = keyIndex; i < end; i++, k++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ keyByte(key, k)));
+        }
+    }
+
+    private static int keyByte(int key, int index) {
+        return key >>> (24 - ((index & 3) << 3));
+    }
+
+    private static long repeat(int key, int keyIndex, ByteOrder order) {
+
+        long word = 0;
+
+        for (int i = 0; i < 8; i++) {
+
+            long b = keyByte(key, keyIndex + i) & 0xFFL;
+            int shift = (order == ByteOrder.BIG_ENDIAN) ? (7 - i) * 8 : i * 8;
+
+            word |= b << shift;
+        }
+
+        return word;
+    }
+}
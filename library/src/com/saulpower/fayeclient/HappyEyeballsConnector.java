@@ -0,0 +1,349 @@
+package com.saulpower.fayeclient;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens TCP connections the RFC 8305 way: every address of the host is
+ * tried, IPv6 and IPv4 interleaved, with a new attempt started every
+ * {@link #setAttemptDelay(long) attempt delay} (or as soon as one fails)
+ * while earlier ones are still pending. The first to connect wins and the
+ * rest are closed. The winning address is remembered per host and tried
+ * first next time, so reconnects skip a dead route straight away; only the
+ * most recently used hosts are remembered.
+ */
+public class HappyEyeballsConnector {
+
+    private static final String TAG = "HappyEyeballsConnector";
+
+    private static final long ATTEMPT_DELAY   = 250;
+    private static final long ATTEMPT_TIMEOUT = 10000;
+    private static final long TOTAL_TIMEOUT   = 30000;
+
+    private static final int PREFERRED_HOSTS = 64;
+
+    // Shared, since every client gets a connector of its own; least recently used hosts drop out
+    private static final Map<String, InetAddress> sPreferred =
+            new LinkedHashMap<String, InetAddress>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, InetAddress> eldest) {
+            return size() > PREFERRED_HOSTS;
+        }
+    };
+
+    private long mAttemptDelay = ATTEMPT_DELAY;
+    private long mAttemptTimeout = ATTEMPT_TIMEOUT;
+    private long mTotalTimeout = TOTAL_TIMEOUT;
+    private ThreadFactory mThreadFactory;
+
+    /**
+     * How long to wait for an attempt before starting the next one in
+     * parallel. RFC 8305 recommends 250ms.
+     */
+    public void setAttemptDelay(long attemptDelayMillis) {
+        mAttemptDelay = attemptDelayMillis;
+    }
+
+    /**
+     * The connect timeout of each address.
+     */
+    public void setAttemptTimeout(long attemptTimeoutMillis) {
+        mAttemptTimeout = attemptTimeoutMillis;
+    }
+
+    /**
+     * How long to wait for any address before giving up.
+     */
+    public void setTotalTimeout(long totalTimeoutMillis) {
+        mTotalTimeout = totalTimeoutMillis;
+    }
+
+    long getAttemptDelay() {
+        return mAttemptDelay;
+    }
+
+    long getAttemptTimeout() {
+        return mAttemptTimeout;
+    }
+
+    long getTotalTimeout() {
+        return mTotalTimeout;
+    }
+
+    /**
+     * Where the threads running parallel attempts come from. Defaults to a
+     * plain daemon thread per attempt.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        mThreadFactory = threadFactory;
+    }
+
+    /**
+     * Connects to the fastest reachable address of the host.
+     *
+     * @throws IOException The last failure when no address could be
+     *                     reached, or a SocketTimeoutException after the
+     *                     total timeout
+     */
+    public Socket connect(String host, int port) throws IOException {
+
+        List<InetAddress> addresses = resolve(host);
+
+        if (addresses.size() == 1) {
+
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(addresses.get(0), port),
+                    (int) Math.min(mAttemptTimeout, mTotalTimeout));
+
+            return socket;
+        }
+
+        Race race = new Race(port);
+
+        long deadline = System.currentTimeMillis() + mTotalTimeout;
+        int started = 0;
+        int failed = 0;
+        IOException failure = null;
+
+        try {
+
+            race.start(addresses.get(started++));
+
+            while (true) {
+
+                long now = System.currentTimeMillis();
+
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect to " + host + " timed out.");
+                }
+
+                long wait = deadline - now;
+
+                if (started < addresses.size()) {
+                    wait = Math.min(wait, mAttemptDelay);
+                }
+
+                Object result;
+
+                try {
+                    result = race.mResults.poll(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while connecting to " + host);
+                }
+
+                if (result instanceof Socket) {
+
+                    Socket socket = (Socket) result;
+                    remember(host, socket.getInetAddress());
+
+                    return socket;
+                }
+
+                if (result instanceof IOException) {
+
+                    failure = (IOException) result;
+
+                    if (++failed == addresses.size()) {
+                        throw failure;
+                    }
+                }
+
+                // A failure or a slow attempt both start the next address
+                if (started < addresses.size()) {
+                    race.start(addresses.get(started++));
+                }
+            }
+
+        } finally {
+            race.finish();
+        }
+    }
+
+    /**
+     * All addresses of the host in the order they should be tried: the last
+     * winner first, then alternating between address families, starting
+     * with the family the resolver put first.
+     */
+    List<InetAddress> resolve(String host) throws IOException {
+
+        InetAddress[] resolved = InetAddress.getAllByName(host);
+
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        boolean firstIsV6 = resolved[0] instanceof Inet6Address;
+
+        for (InetAddress address : resolved) {
+
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+
+        List<InetAddress> ordered = new ArrayList<InetAddress>(resolved.length);
+
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+
+            if (i < first.size()) ordered.add(first.get(i));
+            if (i < second.size()) ordered.add(second.get(i));
+        }
+
+        InetAddress preferred = getPreferred(host);
+
+        if (preferred != null && ordered.remove(preferred)) {
+            ordered.add(0, preferred);
+        }
+
+        return ordered;
+    }
+
+    private static void closeQuietly(Socket socket) {
+
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Nothing to release
+        }
+    }
+
+    /**
+     * The address that last connected to the host, or null.
+     */
+    static InetAddress getPreferred(String host) {
+
+        synchronized (sPreferred) {
+            return sPreferred.get(host);
+        }
+    }
+
+    /**
+     * Records the address that connected, to be tried first next time.
+     */
+    static void remember(String host, InetAddress address) {
+
+        synchronized (sPreferred) {
+            sPreferred.put(host, address);
+        }
+    }
+
+    /**
+     * The attempts of one connect. Sockets that connect after the race is
+     * over are closed by their own thread.
+     */
+    private class Race {
+
+        private final int mPort;
+        private final BlockingQueue<Object> mResults = new LinkedBlockingQueue<Object>();
+        private final List<Socket> mPending = new ArrayList<Socket>();
+        private boolean mFinished;
+
+        Race(int port) {
+            mPort = port;
+        }
+
+        void start(final InetAddress address) {
+
+            final Socket socket = new Socket();
+
+            synchronized (this) {
+                mPending.add(socket);
+            }
+
+            Runnable attempt = new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+
+                        socket.connect(new InetSocketAddress(address, mPort), (int) mAttemptTimeout);
+
+                        if (!claim(socket)) {
+                            socket.close();
+                        }
+
+                    } catch (IOException ex) {
+
+                        FayeLog.d(TAG, "Connect to " + address + " failed: " + ex.getMessage());
+
+                        closeQuietly(socket);
+
+                        if (claim(socket)) {
+                            mResults.add(ex);
+                        }
+                    }
+                }
+            };
+
+            Thread thread;
+
+            if (mThreadFactory != null) {
+                thread = mThreadFactory.newThread(attempt);
+            } else {
+                thread = new Thread(attempt, "connect-" + address.getHostAddress());
+                thread.setDaemon(true);
+            }
+
+            thread.start();
+        }
+
+        /**
+         * Removes a finished attempt, reporting a connected socket unless the
+         * race is already over.
+         */
+        private synchronized boolean claim(Socket socket) {
+
+            if (mFinished) return false;
+
+            mPending.remove(socket);
+
+            if (socket.isConnected()) {
+                mFinished = true;
+                mResults.add(socket);
+            }
+
+            return true;
+        }
+
+        /**
+         * Ends the race, aborting attempts still in progress and closing a
+         * winner that was never collected.
+         */
+        synchronized void finish() {
+
+            mFinished = true;
+
+            for (Socket socket : mPending) {
+                closeQuietly(socket);
+            }
+
+            mPending.clear();
+
+            Object result;
+
+            while ((result = mResults.poll()) != null) {
+
+                if (result instanceof Socket) {
+                    closeQuietly((Socket) result);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.saulpower.fayeclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values in power-of-two buckets.
+ * Recording is a couple of atomic increments, cheap enough for per-message
+ * metrics; percentiles are reported as the upper bound of their bucket.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+
+        if (value < 0) value = 0;
+
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max;
+
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Retry until our value is stored or a larger one wins
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+
+        long count = mCount.get();
+
+        return (count == 0) ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * The number of values recorded in the bucket holding [2^(i-1), 2^i),
+     * bucket 0 holding zero.
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * An upper bound for the value below which the given fraction of
+     * recorded values fall.
+     *
+     * @param percentile Between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        long count = mCount.get();
+
+        if (count == 0) return 0;
+
+        long target = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+
+            seen += mBuckets.get(i);
+
+            if (seen >= target && seen > 0) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+
+        return mMax.get();
+    }
+
+    public void reset() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(99), getMax());
+    }
+
+    private static int bucketOf(long value) {
+        return BUCKETS - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long upperBound(int bucket) {
+        return (bucket >= BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -32,13 +32,16 @@ package com.saulpower.fayeclient;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 import java.util.List;
 
-import android.util.Log;
 
 public class HybiParser {
 
@@ -57,31 +60,62 @@ public class HybiParser {
     private int     mLength;
     private int     mMode;
 
-    private byte[] mMask    = new byte[0];
-    private byte[] mPayload = new byte[0];
+    private final byte[] mMask = new byte[4];
+    private byte[] mPayload;
+    private int    mPayloadOffset;
+
+    /**
+     * Reusable window over the socket. Frames are parsed straight out of it,
+     * so the only per-frame allocation is the payload handed to the listener.
+     */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
 
     private boolean mClosed = false;
 
+    // Read by threads encoding frames as well as the reader
+    private volatile PerMessageDeflate.Session mDeflate;
+    private boolean mCompressed;
+
+    private WebSocketClient.StreamingListener mStreamingListener;
+
+    private final OutputStream mBinaryChunks = new OutputStream() {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+
+            if (length > 0) {
+                mStreamingListener.onBinaryChunk(data, offset, length);
+            }
+        }
+    };
+
     private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final Utf8StreamDecoder mTextDecoder = new Utf8StreamDecoder();
 
-    private static final int BYTE   = 255;
-    private static final int FIN    = 128;
+    static final int FIN            = 128;
     private static final int MASK   = 128;
-    private static final int RSV1   =  64;
+    static final int RSV1           =  64;
     private static final int RSV2   =  32;
     private static final int RSV3   =  16;
     private static final int OPCODE =  15;
     private static final int LENGTH = 127;
 
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
     private static final int MODE_TEXT   = 1;
     private static final int MODE_BINARY = 2;
 
-    private static final int OP_CONTINUATION =  0;
-    private static final int OP_TEXT         =  1;
-    private static final int OP_BINARY       =  2;
-    private static final int OP_CLOSE        =  8;
-    private static final int OP_PING         =  9;
-    private static final int OP_PONG         = 10;
+    static final int OP_CONTINUATION =  0;
+    static final int OP_TEXT         =  1;
+    static final int OP_BINARY       =  2;
+    static final int OP_CLOSE        =  8;
+    static final int OP_PING         =  9;
+    static final int OP_PONG         = 10;
 
     private static final List<Integer> OPCODES = Arrays.asList(
         OP_CONTINUATION,
@@ -96,50 +130,116 @@ public class HybiParser {
         OP_CONTINUATION, OP_TEXT, OP_BINARY
     );
 
+    private final FrameEncoder mEncoder = new FrameEncoder(mMasking);
+
     public HybiParser(WebSocketClient client) {
         mClient = client;
+        mReadBuffer.flip();
     }
 
     private static byte[] mask(byte[] payload, byte[] mask, int offset) {
         if (mask.length == 0) return payload;
 
-        for (int i = 0; i < payload.length - offset; i++) {
-            payload[offset + i] = (byte) (payload[offset + i] ^ mask[i % 4]);
-        }
+        FrameMasker.mask(payload, offset, payload.length - offset, mask, 0);
         return payload;
     }
 
-    public void start(HappyDataInputStream stream) throws IOException {
+    /**
+     * Decodes frames from a blocking stream until it closes, starting with
+     * whatever the read buffer already holds from the upgrade response.
+     */
+    public void start(InputStream stream) throws IOException {
+
+        ByteBuffer buffer = mReadBuffer;
 
         while (true) {
 
-            if (stream.available() == -1) break;
+            parse(buffer);
+
+            int remaining = (mPayload != null) ? mLength - mPayloadOffset : 0;
+
+            if (remaining >= buffer.capacity()) {
+
+                // Large payloads skip the read buffer and land directly in the message
+                int count = stream.read(mPayload, mPayloadOffset, remaining);
+
+                if (count == -1) {
+                    throw new EOFException("Stream closed inside a frame payload.");
+                }
+
+                mPayloadOffset += count;
+                continue;
+            }
+
+            buffer.compact();
+
+            int count = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+            if (count == -1) {
+                buffer.flip();
+                throw new EOFException("Stream closed.");
+            }
+
+            buffer.position(buffer.position() + count);
+            buffer.flip();
+        }
+    }
+
+    /**
+     * The buffer {@link #start(InputStream)} reads into, kept ready for
+     * reading between uses.
+     */
+    ByteBuffer getReadBuffer() {
+        return mReadBuffer;
+    }
+
+    /**
+     * Decodes the frames in a buffer filled by a transport that reads the
+     * socket itself. Whatever cannot be decoded yet, a partial header at
+     * most, is left in the buffer for the next call.
+     */
+    void feed(ByteBuffer buffer) throws IOException {
+        parse(buffer);
+    }
+
+    /**
+     * Runs the frame stage machine over as many bytes as the buffer holds,
+     * emitting every complete frame. Returns once the buffer cannot make
+     * progress, leaving any partial header bytes in place for the next read.
+     */
+    private void parse(ByteBuffer buffer) throws IOException {
+
+        while (true) {
 
             switch (mStage) {
                 case 0:
-                    parseOpcode(stream.readByte());
+                    if (!buffer.hasRemaining()) return;
+                    parseOpcode(buffer.get());
                     break;
                 case 1:
-                    parseLength(stream.readByte());
+                    if (!buffer.hasRemaining()) return;
+                    parseLength(buffer.get());
                     break;
                 case 2:
-                    parseExtendedLength(stream.readBytes(mLengthSize));
+                    if (buffer.remaining() < mLengthSize) return;
+                    parseExtendedLength(buffer);
                     break;
                 case 3:
-                    mMask = stream.readBytes(4);
+                    if (buffer.remaining() < mMask.length) return;
+                    buffer.get(mMask);
                     mStage = 4;
                     break;
                 case 4:
-                    mPayload = stream.readBytes(mLength);
-                    emitFrame();
+                    boolean complete = (mStreamingListener != null) ? streamPayload(buffer) : readPayload(buffer);
+
+                    if (!complete) return;
+
                     mStage = 0;
                     break;
                 default:
-                    break;
+                    return;
             }
         }
-
-        mClient.getListener().onDisconnect(0, "EOF");
     }
 
     private void parseOpcode(byte data) throws ProtocolError {
@@ -148,14 +248,19 @@ public class HybiParser {
         boolean rsv2 = (data & RSV2) == RSV2;
         boolean rsv3 = (data & RSV3) == RSV3;
 
-        if (rsv1 || rsv2 || rsv3) {
+        mFinal   = (data & FIN) == FIN;
+        mOpcode  = (data & OPCODE);
+
+        boolean startsMessage = mOpcode == OP_TEXT || mOpcode == OP_BINARY;
+
+        // RSV1 marks the first frame of a compressed message once permessage-deflate is negotiated
+        if ((rsv1 && (mDeflate == null || !startsMessage)) || rsv2 || rsv3) {
             throw new ProtocolError("RSV not zero");
         }
 
-        mFinal   = (data & FIN) == FIN;
-        mOpcode  = (data & OPCODE);
-        mMask    = new byte[0];
-        mPayload = new byte[0];
+        if (startsMessage) {
+            mCompressed = rsv1;
+        }
 
         if (!OPCODES.contains(mOpcode)) {
             throw new ProtocolError("Bad opcode");
@@ -165,9 +270,97 @@ public class HybiParser {
             throw new ProtocolError("Expected non-final packet");
         }
 
+        mPayloadOffset = 0;
+        mStreamingListener = FRAGMENTED_OPCODES.contains(mOpcode) ? mClient.getStreamingListener() : null;
+
+        if (mStreamingListener != null) {
+
+            if (startsMessage) {
+
+                reset();
+                mMode = (mOpcode == OP_TEXT) ? MODE_TEXT : MODE_BINARY;
+                mStreamingListener.onMessageStart(mMode == MODE_TEXT);
+
+            } else if (mMode == 0) {
+                throw new ProtocolError("Mode was not set.");
+            }
+        }
+
         mStage = 1;
     }
 
+    private boolean readPayload(ByteBuffer buffer) throws IOException {
+
+        if (mPayload == null) {
+            mPayload = new byte[mLength];
+        }
+
+        int count = Math.min(buffer.remaining(), mLength - mPayloadOffset);
+        buffer.get(mPayload, mPayloadOffset, count);
+        mPayloadOffset += count;
+
+        if (mPayloadOffset < mLength) return false;
+
+        emitFrame();
+        mPayload = null;
+
+        return true;
+    }
+
+    /**
+     * Hands data frame payload to the streaming listener straight out of the
+     * read buffer, unmasking it in place, so no frame or message is ever
+     * held in memory as a whole.
+     */
+    private boolean streamPayload(ByteBuffer buffer) throws IOException {
+
+        int count = Math.min(buffer.remaining(), mLength - mPayloadOffset);
+        int position = buffer.position();
+
+        if (mMasked) {
+            FrameMasker.mask(buffer, position, count, mMask, mPayloadOffset);
+        }
+
+        streamChunk(buffer.array(), buffer.arrayOffset() + position, count, false);
+        buffer.position(position + count);
+        mPayloadOffset += count;
+
+        if (mPayloadOffset < mLength) return false;
+
+        if (mFinal) {
+
+            streamChunk(buffer.array(), 0, 0, true);
+            reset();
+            mStreamingListener.onMessageEnd();
+        }
+
+        return true;
+    }
+
+    private void streamChunk(byte[] data, int offset, int length, boolean fin) throws IOException {
+
+        OutputStream sink = (mMode == MODE_TEXT) ? mTextDecoder : mBinaryChunks;
+
+        if (mCompressed) {
+            mDeflate.inflate(data, offset, length, fin, sink);
+        } else {
+            sink.write(data, offset, length);
+        }
+
+        if (mMode == MODE_TEXT) {
+
+            if (fin) {
+                mTextDecoder.end();
+            }
+
+            CharBuffer chars = mTextDecoder.takeChars();
+
+            if (chars.hasRemaining()) {
+                mStreamingListener.onTextChunk(chars);
+            }
+        }
+    }
+
     private void parseLength(byte data) {
 
         mMasked = (data & MASK) == MASK;
@@ -181,8 +374,15 @@ public class HybiParser {
         }
     }
 
-    private void parseExtendedLength(byte[] buffer) throws ProtocolError {
-        mLength = getInteger(buffer);
+    private void parseExtendedLength(ByteBuffer buffer) throws ProtocolError {
+
+        long length = (mLengthSize == 2) ? (buffer.getShort() & 0xFFFF) : buffer.getLong();
+
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new ProtocolError("Bad integer: " + length);
+        }
+
+        mLength = (int) length;
         mStage  = mMasked ? 3 : 4;
     }
 
@@ -206,78 +406,97 @@ public class HybiParser {
 
         if (mClosed) return null;
 
-//        Log.i(TAG, "Creating frame for: " + data + " op: " + opcode + " err: " + errorCode);
+//        FayeLog.i(TAG, "Creating frame for: " + data + " op: " + opcode + " err: " + errorCode);
 
-        byte[] buffer = (data instanceof String) ? decode((String) data) : (byte[]) data;
-        int insert = (errorCode > 0) ? 2 : 0;
-        int length = buffer.length + insert;
-        int header = (length <= 125) ? 2 : (length <= 65535 ? 4 : 10);
-        int offset = header + (mMasking ? 4 : 0);
-        int masked = mMasking ? MASK : 0;
-        byte[] frame = new byte[length + offset];
+        if (data instanceof String) {
 
-        frame[0] = (byte) ((byte) FIN | (byte) opcode);
+            String text = (String) data;
+            int insert = (errorCode > 0) ? 2 : 0;
+            ByteBuffer frame = ByteBuffer.allocate(
+                    mEncoder.frameLength(FrameEncoder.utf8Length(text) + insert));
 
-        if (length <= 125) {
+            mEncoder.encode(opcode, errorCode, text, frame);
 
-            frame[1] = (byte) (masked | length);
+            return frame.array();
+        }
 
-        } else if (length <= 65535) {
+        byte[] buffer = (byte[]) data;
+        int insert = (errorCode > 0) ? 2 : 0;
+        ByteBuffer frame = ByteBuffer.allocate(mEncoder.frameLength(buffer.length + insert));
 
-            frame[1] = (byte) (masked | 126);
-            frame[2] = (byte) Math.floor(length / 256);
-            frame[3] = (byte) (length & BYTE);
+        mEncoder.encode(opcode, errorCode, buffer, 0, buffer.length, frame);
 
-        } else {
+        return frame.array();
+    }
 
-            frame[1] = (byte) (masked | 127);
-            frame[2] = (byte) (((int) Math.floor(length / Math.pow(2, 56))) & BYTE);
-            frame[3] = (byte) (((int) Math.floor(length / Math.pow(2, 48))) & BYTE);
-            frame[4] = (byte) (((int) Math.floor(length / Math.pow(2, 40))) & BYTE);
-            frame[5] = (byte) (((int) Math.floor(length / Math.pow(2, 32))) & BYTE);
-            frame[6] = (byte) (((int) Math.floor(length / Math.pow(2, 24))) & BYTE);
-            frame[7] = (byte) (((int) Math.floor(length / Math.pow(2, 16))) & BYTE);
-            frame[8] = (byte) (((int) Math.floor(length / Math.pow(2, 8)))  & BYTE);
-            frame[9] = (byte) (length & BYTE);
-        }
+    /**
+     * Encodes a text frame into a buffer taken from the pool. The returned
+     * buffer is flipped and ready to be written, and should be released to
+     * the same pool once it has been.
+     */
+    public ByteBuffer frame(CharSequence data, BufferPool pool) {
 
-        if (errorCode > 0) {
-            frame[offset] = (byte) (((int) Math.floor(errorCode / 256)) & BYTE);
-            frame[offset + 1] = (byte) (errorCode & BYTE);
-        }
+        if (mClosed) return null;
+
+        int length = FrameEncoder.utf8Length(data);
+        PerMessageDeflate.Session deflate = mDeflate;
 
-        System.arraycopy(buffer, 0, frame, offset + insert, buffer.length);
+        if (deflate != null && deflate.shouldCompress(length)) {
 
-        if (mMasking) {
+            synchronized (deflate) {
 
-            byte[] mask = {
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256),
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256)
-            };
+                // Ended because the connection closed, so the frame is going nowhere anyway
+                if (!deflate.isEnded()) {
 
-            System.arraycopy(mask, 0, frame, header, mask.length);
+                    int compressed = deflate.deflate(data, length);
+                    ByteBuffer frame = pool.acquire(mEncoder.frameLength(compressed));
 
-            mask(frame, mask, offset);
+                    mEncoder.encode(RSV1 | OP_TEXT, -1, deflate.getOutput(), 0, compressed, frame);
+                    frame.flip();
+
+                    return frame;
+                }
+            }
         }
 
+        ByteBuffer frame = pool.acquire(mEncoder.frameLength(length));
+
+        mEncoder.encodeText(data, frame);
+        frame.flip();
+
         return frame;
     }
 
+    /**
+     * Switches compression on for the connection once permessage-deflate
+     * has been negotiated, or off when passed null. A session this
+     * replaces is ended. Call it on the reading thread.
+     */
+    void setDeflate(PerMessageDeflate.Session deflate) {
+
+        PerMessageDeflate.Session previous = mDeflate;
+        mDeflate = deflate;
+
+        if (previous != null && previous != deflate) {
+            previous.end();
+        }
+    }
+
     public void ping(String message) {
-        mClient.send(frame(message, OP_PING, -1));
+        mClient.sendFrame(frame(message, OP_PING, -1));
     }
 
     public void close(int code, String reason) {
 
         if (mClosed) return;
 
-        mClient.send(frame(reason, OP_CLOSE, code));
+        mClient.sendFrame(frame(reason, OP_CLOSE, code));
         mClosed = true;
     }
 
     private void emitFrame() throws IOException {
 
-        byte[] payload = mask(mPayload, mMask, 0);
+        byte[] payload = mMasked ? mask(mPayload, mMask, 0) : mPayload;
         int opcode = mOpcode;
 
         if (opcode == OP_CONTINUATION) {
@@ -286,46 +505,40 @@ public class HybiParser {
                 throw new ProtocolError("Mode was not set.");
             }
 
-            mBuffer.write(payload);
+            append(payload);
 
             if (mFinal) {
-
-                byte[] message = mBuffer.toByteArray();
-
-                if (mMode == MODE_TEXT) {
-                    mClient.getListener().onMessage(encode(message));
-                } else {
-                    mClient.getListener().onMessage(message);
-                }
-
-                reset();
+                emitMessage();
             }
 
         } else if (opcode == OP_TEXT) {
 
+            mMode = MODE_TEXT;
+            append(payload);
+
             if (mFinal) {
-                String messageText = encode(payload);
-                mClient.getListener().onMessage(messageText);
-            } else {
-                mMode = MODE_TEXT;
-                mBuffer.write(payload);
+                emitMessage();
             }
 
         } else if (opcode == OP_BINARY) {
 
-            if (mFinal) {
+            if (mFinal && !mCompressed) {
                 mClient.getListener().onMessage(payload);
             } else {
                 mMode = MODE_BINARY;
-                mBuffer.write(payload);
+                append(payload);
+
+                if (mFinal) {
+                    emitMessage();
+                }
             }
 
         } else if (opcode == OP_CLOSE) {
 
-            int    code   = (payload.length >= 2) ? 256 * payload[0] + payload[1] : 0;
+            int    code   = (payload.length >= 2) ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 0;
             String reason = (payload.length >  2) ? encode(slice(payload, 2))     : null;
 
-            Log.i(TAG, "Got close op! " + code + " " + reason);
+            FayeLog.i(TAG, "Got close op! " + code + " " + reason);
 
             mClient.getListener().onDisconnect(code, reason);
 
@@ -333,7 +546,7 @@ public class HybiParser {
 
             if (payload.length > 125) throw new ProtocolError("Ping payload too large");
 
-            Log.i(TAG, "Sending pong!!");
+            FayeLog.i(TAG, "Sending pong!!");
 
             mClient.sendFrame(frame(payload, OP_PONG, -1));
 
@@ -341,48 +554,52 @@ public class HybiParser {
 
             String message = encode(payload);
             // FIXME: Fire callback...
-            Log.i(TAG, "Got pong! " + message);
+            FayeLog.i(TAG, "Got pong! " + message);
         }
     }
 
-    private void reset() {
-        mMode = 0;
-        mBuffer.reset();
-    }
+    private void append(byte[] payload) throws IOException {
 
-    private String encode(byte[] buffer) {
+        // Text is decoded as it arrives rather than collected and decoded at the end
+        OutputStream sink = (mMode == MODE_TEXT) ? mTextDecoder : mBuffer;
 
-        try {
+        if (mCompressed) {
+            mDeflate.inflate(payload, 0, payload.length, mFinal, sink);
+        } else {
+            sink.write(payload, 0, payload.length);
+        }
+    }
 
-            return new String(buffer, "UTF-8");
+    private void emitMessage() throws ProtocolError {
 
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+        if (mMode == MODE_TEXT) {
+            String message = mTextDecoder.finish();
+            reset();
+            mClient.getListener().onMessage(message);
+        } else {
+            byte[] message = mBuffer.toByteArray();
+            reset();
+            mClient.getListener().onMessage(message);
         }
     }
 
-    private byte[] decode(String string) {
+    private void reset() {
+        mMode = 0;
+        mBuffer.reset();
+        mTextDecoder.reset();
+    }
+
+    private String encode(byte[] buffer) {
 
         try {
 
-            return (string).getBytes("UTF-8");
+            return new String(buffer, "UTF-8");
 
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private int getInteger(byte[] bytes) throws ProtocolError {
-
-        long i = byteArrayToLong(bytes, 0, bytes.length);
-
-        if (i < 0 || i > Integer.MAX_VALUE) {
-            throw new ProtocolError("Bad integer: " + i);
-        }
-
-        return (int) i;
-    }
-
     private byte[] slice(byte[] array, int start) {
         return copyOfRange(array, start, array.length);
     }
@@ -409,23 +626,6 @@ public class HybiParser {
         }
     }
 
-    private static long byteArrayToLong(byte[] b, int offset, int length) {
-
-        if (b.length < length) {
-            throw new IllegalArgumentException("length must be less than or equal to b.length");
-        }
-
-        long value = 0;
-
-        for (int i = 0; i < length; i++) {
-
-            int shift = (length - 1 - i) * 8;
-            value += (b[i + offset] & 0x000000FF) << shift;
-        }
-
-        return value;
-    }
-
     public static class HappyDataInputStream extends DataInputStream {
 
         public HappyDataInputStream(InputStream in) {
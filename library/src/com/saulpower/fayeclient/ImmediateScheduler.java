@@ -0,0 +1,64 @@
+package com.saulpower.fayeclient;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs posted tasks inline on the calling thread, which suits callbacks
+ * that are cheap or already thread-safe. Delayed tasks fire on one shared
+ * daemon timer thread.
+ */
+public class ImmediateScheduler implements Scheduler {
+
+    private static ExecutorScheduler sTimer;
+
+    @Override
+    public void post(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+
+        if (delayMillis <= 0) {
+            task.run();
+        } else {
+            getTimer().postDelayed(task, delayMillis);
+        }
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+
+        ExecutorScheduler timer;
+
+        synchronized (ImmediateScheduler.class) {
+            timer = sTimer;
+        }
+
+        // Nothing can be pending before the first delayed post
+        if (timer != null) {
+            timer.cancel(task);
+        }
+    }
+
+    private static synchronized ExecutorScheduler getTimer() {
+
+        if (sTimer == null) {
+
+            sTimer = new ExecutorScheduler(new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "scheduler-timer");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            }));
+        }
+
+        return sTimer;
+    }
+}
@@ -0,0 +1,357 @@
+package com.saulpower.fayeclient;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bayeux over HTTP long-polling, for networks that refuse the WebSocket
+ * upgrade. Messages are POSTed on two lanes, each a thread with its own
+ * persistent HTTP/1.1 connection from the platform's keep-alive pool: one
+ * carries only the {@code /meta/connect} the server holds open, the other
+ * everything else, so publishes and subscribes never wait behind the poll.
+ * Whatever queues up on a lane while its request is out goes in the next
+ * POST as one array.
+ */
+class LongPollingTransport implements FayeTransport {
+
+    private static final String TAG = "LongPollingTransport";
+
+    private static final String CONNECT_CHANNEL = "/meta/connect";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+
+    // Longer than any timeout a server advises for holding a connect
+    private static final int POLL_READ_TIMEOUT = 90000;
+
+    private final URL mUrl;
+    private final WebSocketClient.Listener mListener;
+    private final Scheduler mCallbacks;
+    private ThreadFactory mThreadFactory;
+
+    private final Lane mPollLane = new Lane("faye-poll", POLL_READ_TIMEOUT);
+    private final Lane mPublishLane = new Lane("faye-publish", READ_TIMEOUT);
+
+    // Splits outbound frames by channel; guarded by this
+    private final BayeuxParser mSplitter = new BayeuxParser();
+    private final BayeuxMessage mSplitMessage = new BayeuxMessage();
+
+    private final Object mDispatchLock = new Object();
+    private volatile boolean mClosed = true;
+
+    /**
+     * @param uri The server's WebSocket or HTTP URI
+     * @param callbacks Where connect and error callbacks run; messages are
+     *                  delivered on the lane threads, one frame at a time
+     */
+    LongPollingTransport(URI uri, WebSocketClient.Listener listener, Scheduler callbacks) throws IOException {
+
+        String scheme = uri.getScheme();
+        String httpScheme = ("wss".equals(scheme) || "https".equals(scheme)) ? "https" : "http";
+
+        mUrl = new URL(httpScheme + uri.toString().substring(scheme.length()));
+        mListener = listener;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Where the lane threads come from. Defaults to a plain daemon thread
+     * per lane.
+     */
+    void setThreadFactory(ThreadFactory threadFactory) {
+        mThreadFactory = threadFactory;
+    }
+
+    @Override
+    public synchronized void connect() {
+
+        if (!mClosed) return;
+
+        mClosed = false;
+
+        mPollLane.start();
+        mPublishLane.start();
+
+        // Nothing to open up front; every request finds or makes its own connection
+        mCallbacks.post(new Runnable() {
+
+            @Override
+            public void run() {
+                mListener.onConnect();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void disconnect() {
+
+        if (mClosed) return;
+
+        mClosed = true;
+
+        mPollLane.stop();
+        mPublishLane.stop();
+    }
+
+    @Override
+    public synchronized boolean send(CharSequence frame) {
+
+        if (mClosed) return false;
+
+        try {
+
+            mSplitter.begin(frame);
+            int start = mSplitter.getPosition();
+
+            while (mSplitter.next(mSplitMessage)) {
+
+                int end = mSplitter.getPosition();
+
+                // Step over the separator and whitespace before the message
+                while (start < end && frame.charAt(start) != '{') {
+                    start++;
+                }
+
+                String message = frame.subSequence(start, end).toString();
+
+                if (CONNECT_CHANNEL.equals(mSplitMessage.getChannel())) {
+                    mPollLane.add(message);
+                } else {
+                    mPublishLane.add(message);
+                }
+
+                start = end;
+            }
+
+            return true;
+
+        } catch (IOException ex) {
+            FayeLog.e(TAG, "Could not split outbound frame", ex);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return !mClosed;
+    }
+
+    private void dispatch(String response) {
+
+        synchronized (mDispatchLock) {
+
+            if (!mClosed) {
+                mListener.onMessage(response);
+            }
+        }
+    }
+
+    /**
+     * Ends the transport after a failed request and reports it, once.
+     */
+    private void fail(final IOException ex) {
+
+        synchronized (this) {
+
+            if (mClosed) return;
+
+            disconnect();
+        }
+
+        mCallbacks.post(new Runnable() {
+
+            @Override
+            public void run() {
+                mListener.onError(ex);
+            }
+        });
+    }
+
+    /**
+     * POSTs a batch and returns the response body.
+     */
+    private String post(Lane lane, CharSequence body) throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+
+        if (connection instanceof HttpsURLConnection) {
+
+            // Shares the WebSocket's trust managers and TLS session cache
+            try {
+                HttpsURLConnection https = (HttpsURLConnection) connection;
+                https.setSSLSocketFactory(WebSocketClient.getSSLContext().getSocketFactory());
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+
+        byte[] bytes = body.toString().getBytes(UTF_8);
+
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(lane.mReadTimeout);
+        connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        connection.setFixedLengthStreamingMode(bytes.length);
+
+        lane.mActive = connection;
+
+        try {
+
+            OutputStream out = connection.getOutputStream();
+            out.write(bytes);
+            out.close();
+
+            int status = connection.getResponseCode();
+
+            if (status != HttpStatus.SC_OK) {
+
+                // Read the error body too, so the connection can go back to the pool
+                readFully(connection.getErrorStream());
+                throw new HttpResponseException(status, connection.getResponseMessage());
+            }
+
+            return readFully(connection.getInputStream());
+
+        } finally {
+            lane.mActive = null;
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+
+        if (in == null) return "";
+
+        Reader reader = new InputStreamReader(in, UTF_8);
+        StringBuilder out = new StringBuilder();
+        char[] buffer = new char[4096];
+
+        try {
+
+            int read;
+
+            while ((read = reader.read(buffer)) != -1) {
+                out.append(buffer, 0, read);
+            }
+
+        } finally {
+            reader.close();
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * One queue of outbound messages and the thread that POSTs them.
+     */
+    private final class Lane implements Runnable {
+
+        private final String mName;
+        private final int mReadTimeout;
+        private final BlockingQueue<String> mQueue = new LinkedBlockingQueue<String>();
+
+        private Thread mThread;
+        private volatile HttpURLConnection mActive;
+
+        Lane(String name, int readTimeout) {
+            mName = name;
+            mReadTimeout = readTimeout;
+        }
+
+        void add(String message) {
+            mQueue.add(message);
+        }
+
+        void start() {
+
+            mQueue.clear();
+
+            if (mThreadFactory != null) {
+                mThread = mThreadFactory.newThread(this);
+            } else {
+                mThread = new Thread(this, mName);
+                mThread.setDaemon(true);
+            }
+
+            mThread.start();
+        }
+
+        void stop() {
+
+            mThread.interrupt();
+
+            // A held poll only ends when its socket does
+            HttpURLConnection active = mActive;
+
+            if (active != null) {
+                active.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            List<String> batch = new ArrayList<String>();
+            StringBuilder body = new StringBuilder();
+
+            try {
+
+                while (!mClosed) {
+
+                    batch.add(mQueue.take());
+                    mQueue.drainTo(batch);
+
+                    body.setLength(0);
+                    body.append('[');
+
+                    for (int i = 0; i < batch.size(); i++) {
+
+                        if (i > 0) {
+                            body.append(',');
+                        }
+
+                        body.append(batch.get(i));
+                    }
+
+                    body.append(']');
+                    batch.clear();
+
+                    String response = post(this, body);
+
+                    if (response.length() > 0) {
+                        dispatch(response);
+                    }
+                }
+
+            } catch (InterruptedException ex) {
+                // Disconnected
+            } catch (IOException ex) {
+
+                // Aborting a held poll on disconnect fails it too
+                if (!mClosed) {
+                    FayeLog.e(TAG, mName + " request failed", ex);
+                    fail(ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.saulpower.fayeclient;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gathers outbound Bayeux messages into one JSON array so that a burst of
+ * them costs one WebSocket frame. A batch is sent when its window expires
+ * or when it reaches the byte limit, whichever comes first. A zero window
+ * sends at the scheduler's next turn, which on a looper or executor still
+ * coalesces everything queued by one callback. A scheduler that runs
+ * posted tasks inline has no next turn, so there a zero window only
+ * batches what is added while the batcher is {@link #cork() corked}, as it
+ * is while the client handles an inbound frame, such as the connect and
+ * subscribes that follow a handshake.
+ *
+ * <p>Frames are sent outside the batcher's monitor, so a slow sink holds
+ * up only the threads flushing, not those adding to the next batch.
+ */
+class MessageBatcher {
+
+    private static final long DEFAULT_DELAY = 0;
+    private static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    interface Sink {
+
+        /**
+         * Sends one frame. The text is reused once this returns.
+         *
+         * @return Whether it was accepted
+         */
+        boolean send(CharSequence frame);
+    }
+
+    private final Scheduler mScheduler;
+    private final Sink mSink;
+
+    // Held across taking a batch and sending it, so batches go out in order; not a monitor, as in WebSocketClient
+    private final ReentrantLock mSendLock = new ReentrantLock();
+
+    private long mDelay = DEFAULT_DELAY;
+    private int mMaxBytes = DEFAULT_MAX_BYTES;
+
+    private StringBuilder mBatch = new StringBuilder();
+    private StringBuilder mSending = new StringBuilder();
+    private int mCount;
+    private int mCorks;
+    private boolean mScheduled;
+
+    private final Runnable mFlushTask = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    MessageBatcher(Scheduler scheduler, Sink sink) {
+        mScheduler = scheduler;
+        mSink = sink;
+    }
+
+    /**
+     * @param delayMillis How long the first message of a batch may wait
+     *                    for others, or negative to send every message on
+     *                    its own
+     * @param maxBytes    Send early once the batch has grown this large
+     */
+    synchronized void setWindow(long delayMillis, int maxBytes) {
+        mDelay = delayMillis;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Holds messages back until the matching {@link #uncork()}, however
+     * short the window, unless the batch reaches the byte limit first.
+     * Corks nest.
+     */
+    synchronized void cork() {
+        mCorks++;
+    }
+
+    /**
+     * Releases a {@link #cork()}, scheduling what was held back once the
+     * last one is released.
+     */
+    void uncork() {
+
+        long delay;
+
+        synchronized (this) {
+
+            if (mCorks == 0 || --mCorks > 0 || mCount == 0 || mScheduled) return;
+
+            mScheduled = true;
+            delay = mDelay;
+        }
+
+        mScheduler.postDelayed(mFlushTask, delay);
+    }
+
+    /**
+     * Queues a single JSON message.
+     *
+     * @return False if a send this caused was refused; a message left
+     *         waiting for its batch counts as accepted
+     */
+    boolean add(CharSequence message) {
+
+        long delay;
+        boolean full;
+        boolean schedule = false;
+
+        synchronized (this) {
+
+            delay = mDelay;
+
+            if (delay < 0) {
+                full = false;
+            } else {
+
+                mBatch.append(mCount == 0 ? '[' : ',').append(message);
+                mCount++;
+
+                full = mBatch.length() >= mMaxBytes;
+
+                if (!full && !mScheduled && mCorks == 0) {
+                    mScheduled = true;
+                    schedule = true;
+                }
+            }
+        }
+
+        if (delay < 0) {
+            return sendAlone(message);
+        }
+
+        if (full) {
+            return flush();
+        }
+
+        // Outside the monitor, as an inline scheduler runs the flush right here
+        if (schedule) {
+            mScheduler.postDelayed(mFlushTask, delay);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends whatever is waiting now.
+     *
+     * @return Whether the batch was accepted, true when there was none
+     */
+    boolean flush() {
+
+        mSendLock.lock();
+
+        try {
+
+            StringBuilder frame;
+
+            synchronized (this) {
+
+                if (mScheduled) {
+                    mScheduled = false;
+                    mScheduler.cancel(mFlushTask);
+                }
+
+                if (mCount == 0) return true;
+
+                mBatch.append(']');
+
+                // The next batch fills the other builder while this one is sent
+                frame = mBatch;
+                mBatch = mSending;
+                mSending = frame;
+                mCount = 0;
+            }
+
+            try {
+                return mSink.send(frame);
+            } finally {
+                frame.setLength(0);
+                trim(frame);
+            }
+
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the waiting messages, for a connection that is going away.
+     */
+    synchronized void clear() {
+
+        mBatch.setLength(0);
+        mCount = 0;
+        trim(mBatch);
+    }
+
+    private boolean sendAlone(CharSequence message) {
+
+        mSendLock.lock();
+
+        try {
+            return mSink.send(message);
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * Keeps a builder from pinning an unusually large batch.
+     */
+    private void trim(StringBuilder builder) {
+
+        if (builder.capacity() > mMaxBytes * 2) {
+            builder.trimToSize();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.saulpower.fayeclient;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last few thousand delivered messages so that a message the
+ * server delivers twice, as can happen around reconnects, reaches
+ * listeners once. A message is known by its channel, its publisher's
+ * clientId and its id, since Bayeux ids are only unique per publisher:
+ * every client counts "1", "2" and so on. Keys are kept as 64-bit hashes
+ * in a ring, in arrival order, and in an open-addressing set for lookup;
+ * the oldest drops out as each new one arrives. Checking a message hashes
+ * its key and probes the set, without allocating.
+ *
+ * <p>Servers commonly leave the publisher's clientId out of the messages
+ * they deliver, Faye and CometD among them. Two publishers that use the
+ * same id on the same channel within the window then still look like one
+ * message, so publishers whose messages go through a deduplicator should
+ * give them ids that are unique across clients.
+ *
+ * <p>Two distinct keys sharing a hash would make the second look like a
+ * duplicate; with 64-bit hashes and a window of thousands that is
+ * vanishingly unlikely.
+ *
+ * @see FayeClient#setDeduplicator(MessageDeduplicator)
+ */
+public class MessageDeduplicator {
+
+    private static final int DEFAULT_WINDOW = 4096;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] mRing;
+    private int mRingNext;
+    private int mRingCount;
+
+    // Linear probing, zero marking an empty slot; at most half full
+    private final long[] mSet;
+    private final int mMask;
+
+    private long mHits;
+    private long mMisses;
+
+    public MessageDeduplicator() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window How many of the most recent messages to remember
+     */
+    public MessageDeduplicator(int window) {
+
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+
+        mRing = new long[window];
+
+        int capacity = Integer.highestOneBit(window) * 4;
+        mSet = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Records a message.
+     *
+     * @param clientId The publisher's clientId, or null when the server
+     *                 left it out
+     * @return True if it is one of the last window messages seen
+     */
+    public synchronized boolean isDuplicate(CharSequence channel, CharSequence clientId, CharSequence id) {
+
+        long hash = hash(hash(hash(FNV_OFFSET, channel), clientId), id);
+
+        if (hash == 0) {
+            hash = 1;
+        }
+        int slot = (int) (hash ^ (hash >>> 32)) & mMask;
+
+        while (mSet[slot] != 0) {
+
+            if (mSet[slot] == hash) {
+                mHits++;
+                return true;
+            }
+
+            slot = (slot + 1) & mMask;
+        }
+
+        if (mRingCount == mRing.length) {
+            remove(mRing[mRingNext]);
+        } else {
+            mRingCount++;
+        }
+
+        // The removal may have shifted entries, so probe again for a free slot
+        insert(hash);
+
+        mRing[mRingNext] = hash;
+        mRingNext = (mRingNext + 1) % mRing.length;
+        mMisses++;
+
+        return false;
+    }
+
+    /**
+     * How many messages were dropped as duplicates.
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * How many messages were seen for the first time.
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Forgets every message and zeroes the counters.
+     */
+    public synchronized void clear() {
+
+        Arrays.fill(mRing, 0);
+        Arrays.fill(mSet, 0);
+
+        mRingNext = 0;
+        mRingCount = 0;
+        mHits = 0;
+        mMisses = 0;
+    }
+
+    private void insert(long hash) {
+
+        int slot = (int) (hash ^ (hash >>> 32)) & mMask;
+
+        while (mSet[slot] != 0) {
+            slot = (slot + 1) & mMask;
+        }
+
+        mSet[slot] = hash;
+    }
+
+    /**
+     * Deletes a hash, shifting later entries of its probe run back so that
+     * lookups never stop early at the hole.
+     */
+    private void remove(long hash) {
+
+        int slot = (int) (hash ^ (hash >>> 32)) & mMask;
+
+        while (mSet[slot] != hash) {
+
+            if (mSet[slot] == 0) return;
+
+            slot = (slot + 1) & mMask;
+        }
+
+        int hole = slot;
+
+        for (int next = (hole + 1) & mMask; mSet[next] != 0; next = (next + 1) & mMask) {
+
+            long value = mSet[next];
+            int home = (int) (value ^ (value >>> 32)) & mMask;
+
+            // Move it back unless its home lies cyclically between the hole and where it sits
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mSet[hole] = value;
+                hole = next;
+            }
+        }
+
+        mSet[hole] = 0;
+    }
+
+    /**
+     * Continues FNV-1a over one part of a key. The part's length goes in
+     * first, so that parts cannot run into each other.
+     */
+    private static long hash(long hash, CharSequence part) {
+
+        int length = (part != null) ? part.length() : -1;
+
+        hash ^= length;
+        hash *= FNV_PRIME;
+
+        for (int i = 0; i < length; i++) {
+            hash ^= part.charAt(i);
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+}
@@ -0,0 +1,804 @@
+package com.saulpower.fayeclient;
+
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.HttpException;
+
+/**
+ * One WebSocket connection driven by a {@link NioReactor} event loop: the
+ * non-blocking connect, the optional TLS session through an SSLEngine, the
+ * upgrade handshake and then frame decoding and outbound writes. Apart from
+ * {@link #open()}, {@link #send(ByteBuffer)} and {@link #close()}, every
+ * method runs on the loop thread. Resolving the host, creating the
+ * SSLEngine and the engine's delegated tasks run on the reactor's helper
+ * threads, and the connection picks up again on the loop once they finish.
+ * The connector's total timeout bounds everything up to the upgrade.
+ * Addresses are raced as {@link HappyEyeballsConnector} races them, each
+ * attempt a channel of its own on the loop.
+ */
+class NioConnection {
+
+    private static final String TAG = "NioConnection";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_UPGRADING  = 1;
+    private static final int STATE_OPEN       = 2;
+    private static final int STATE_CLOSED     = 3;
+
+    private final WebSocketClient mClient;
+    private final NioReactor.EventLoop mLoop;
+
+    private final OutboundQueue mOutbound;
+
+    private final List<ByteBuffer> mWriting = new ArrayList<ByteBuffer>();
+    private ByteBuffer[] mGather = new ByteBuffer[16];
+    private long mWritingBytes;
+
+    private volatile int mState = STATE_CONNECTING;
+
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private SSLEngine mEngine;
+    private ByteBuffer mNetIn;
+    private ByteBuffer mNetOut;
+    private ByteBuffer mAppIn;
+    private String mSecret;
+    private List<InetAddress> mAddresses;
+    private int mAddressIndex;
+    private final List<Attempt> mAttempts = new ArrayList<Attempt>(2);
+    private NioReactor.Timeout mNextAttempt;
+    private boolean mHandshakeFinished;
+    private boolean mTasksRunning;
+    private NioReactor.Timeout mConnectTimeout;
+
+    private final Runnable mFlushTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            try {
+                flush();
+            } catch (Exception ex) {
+                fail(ex);
+            }
+        }
+    };
+
+    private final Runnable mTasksFinished = new Runnable() {
+
+        @Override
+        public void run() {
+
+            mTasksRunning = false;
+
+            if (mState == STATE_CLOSED) return;
+
+            try {
+
+                // Records that arrived while the tasks ran are still waiting in the buffer
+                if (mNetIn.position() > 0) {
+                    unwrap();
+                    process();
+                }
+
+                flush();
+
+            } catch (Exception ex) {
+                fail(ex);
+            }
+        }
+    };
+
+    NioConnection(WebSocketClient client, NioReactor reactor) {
+        mClient = client;
+        mOutbound = client.getOutboundQueue();
+        mLoop = reactor.next();
+
+        mOutbound.setDrainTrigger(new Runnable() {
+
+            @Override
+            public void run() {
+                mLoop.execute(mFlushTask);
+            }
+        });
+    }
+
+    void open() {
+
+        mLoop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    connect();
+                } catch (Exception ex) {
+                    fail(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues an encoded frame. Frames queued before the upgrade completes
+     * are held back until it has.
+     */
+    boolean send(ByteBuffer frame) {
+
+        if (mState == STATE_CLOSED) {
+            mClient.getBufferPool().release(frame);
+            return false;
+        }
+
+        // The loop thread must never wait on itself
+        return mOutbound.add(frame, mClient.getBufferPool(), Thread.currentThread() != mLoop);
+    }
+
+    void close() {
+
+        mLoop.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                closeNow();
+            }
+        });
+    }
+
+    void handle(SelectionKey key) {
+
+        try {
+
+            if (!key.isValid()) return;
+
+            if (key.isConnectable()) {
+
+                if (!finishConnect(key)) return;
+
+                onConnected();
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+
+        } catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+    private void connect() {
+
+        final String host = mClient.getHost();
+        final int port = mClient.getPort();
+        final HappyEyeballsConnector connector = mClient.getConnector();
+        final long timeout = connector.getTotalTimeout();
+
+        mConnectTimeout = mLoop.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (mState != STATE_OPEN) {
+                    fail(new SocketTimeoutException("Connect to " + host + " timed out."));
+                }
+            }
+        }, timeout);
+
+        // Lookups and loading the TLS context can both block, so neither runs on the loop
+        mLoop.executeBlocking(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    final List<InetAddress> addresses = connector.resolve(host);
+                    final SSLEngine engine = mClient.isSecure()
+                            ? WebSocketClient.getSSLContext().createSSLEngine(host, port) : null;
+
+                    mLoop.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+
+                            if (mState == STATE_CLOSED) return;
+
+                            try {
+                                mAddresses = addresses;
+                                prepare(engine);
+                                startAttempt();
+                            } catch (Exception ex) {
+                                fail(ex);
+                            }
+                        }
+                    });
+
+                } catch (final Exception ex) {
+
+                    mLoop.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            fail(ex);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets up the buffers, and the TLS session when there is an engine.
+     */
+    private void prepare(SSLEngine engine) {
+
+        mAppIn = ByteBuffer.allocate(BUFFER_SIZE);
+
+        if (engine != null) {
+
+            mEngine = engine;
+            mEngine.setUseClientMode(true);
+            WebSocketClient.enableSessionTickets(mEngine);
+
+            int packetSize = mEngine.getSession().getPacketBufferSize();
+
+            mNetIn = ByteBuffer.allocate(packetSize);
+            mNetOut = ByteBuffer.allocate(packetSize);
+            mAppIn = ByteBuffer.allocate(Math.max(BUFFER_SIZE, mEngine.getSession().getApplicationBufferSize()));
+        }
+    }
+
+    /**
+     * Starts connecting to the next address in the connector's order, the
+     * last one that worked first. The one after it starts once the attempt
+     * delay passes, or as soon as this one fails.
+     */
+    private void startAttempt() throws Exception {
+
+        HappyEyeballsConnector connector = mClient.getConnector();
+        final Attempt attempt = new Attempt(mAddresses.get(mAddressIndex++));
+        SocketChannel channel = SocketChannel.open();
+        boolean connected;
+
+        try {
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            connected = channel.connect(new InetSocketAddress(attempt.mAddress, mClient.getPort()));
+
+        } catch (IOException ex) {
+            channel.close();
+            attemptFailed(attempt, ex);
+            return;
+        }
+
+        attempt.mKey = channel.register(mLoop.getSelector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+        mAttempts.add(attempt);
+
+        if (connected) {
+            win(attempt);
+            onConnected();
+            return;
+        }
+
+        attempt.mTimeout = mLoop.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    attemptFailed(attempt, new SocketTimeoutException("Connect to " + attempt.mAddress
+                            + " timed out."));
+                } catch (Exception ex) {
+                    fail(ex);
+                }
+            }
+        }, connector.getAttemptTimeout());
+
+        if (mAddressIndex < mAddresses.size()) {
+
+            mNextAttempt = mLoop.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        startAttempt();
+                    } catch (Exception ex) {
+                        fail(ex);
+                    }
+                }
+            }, connector.getAttemptDelay());
+        }
+    }
+
+    /**
+     * Completes a pending connect.
+     *
+     * @return Whether this attempt connected and won the race
+     */
+    private boolean finishConnect(SelectionKey key) throws Exception {
+
+        Attempt attempt = null;
+
+        for (Attempt pending : mAttempts) {
+            if (pending.mKey == key) {
+                attempt = pending;
+            }
+        }
+
+        if (attempt == null) return false;
+
+        try {
+            ((SocketChannel) key.channel()).finishConnect();
+        } catch (IOException ex) {
+            attemptFailed(attempt, ex);
+            return false;
+        }
+
+        win(attempt);
+
+        return true;
+    }
+
+    /**
+     * Drops an attempt that failed or timed out, starting the next address
+     * straight away.
+     *
+     * @throws IOException The failure, when it was the last attempt left
+     */
+    private void attemptFailed(Attempt attempt, IOException failure) throws Exception {
+
+        if (mState != STATE_CONNECTING || (attempt.mKey != null && !mAttempts.remove(attempt))) return;
+
+        FayeLog.d(TAG, "Connect to " + attempt.mAddress + " failed: " + failure.getMessage());
+
+        attempt.abandon();
+
+        if (mAddressIndex < mAddresses.size()) {
+
+            if (mNextAttempt != null) {
+                mNextAttempt.cancel();
+            }
+
+            startAttempt();
+
+        } else if (mAttempts.isEmpty()) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Makes an attempt's channel the connection's, closing the others.
+     */
+    private void win(Attempt winner) {
+
+        mAttempts.remove(winner);
+
+        for (Attempt attempt : mAttempts) {
+            attempt.abandon();
+        }
+
+        mAttempts.clear();
+
+        if (winner.mTimeout != null) {
+            winner.mTimeout.cancel();
+        }
+
+        if (mNextAttempt != null) {
+            mNextAttempt.cancel();
+        }
+
+        mKey = winner.mKey;
+        mChannel = (SocketChannel) mKey.channel();
+    }
+
+    private void onConnected() throws Exception {
+
+        HappyEyeballsConnector.remember(mClient.getHost(), mChannel.socket().getInetAddress());
+
+        mState = STATE_UPGRADING;
+        mSecret = mClient.createSecret();
+        mClient.getUpgradeResponse().reset();
+        mWriting.add(ByteBuffer.wrap(mClient.createUpgradeRequest(mSecret).getBytes("UTF-8")));
+
+        if (mEngine != null) {
+            mClient.onHandshakeStarted();
+            mEngine.beginHandshake();
+        }
+
+        mKey.interestOps(SelectionKey.OP_READ);
+        flush();
+    }
+
+    private void read() throws Exception {
+
+        while (mState != STATE_CLOSED) {
+
+            int count = mChannel.read(mEngine == null ? mAppIn : mNetIn);
+
+            if (count == -1) {
+                throw new EOFException("Stream closed.");
+            }
+
+            if (mEngine != null) {
+                unwrap();
+            }
+
+            process();
+
+            if (count == 0) break;
+        }
+
+        flush();
+    }
+
+    private void unwrap() throws Exception {
+
+        mNetIn.flip();
+
+        try {
+
+            while (mNetIn.hasRemaining()) {
+
+                SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                checkHandshakeFinished(result);
+                Status status = result.getStatus();
+
+                if (status == Status.BUFFER_OVERFLOW) {
+
+                    process();
+                    mAppIn = ensureRemaining(mAppIn, mEngine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+
+                if (status == Status.BUFFER_UNDERFLOW) {
+
+                    if (mNetIn.limit() == mNetIn.capacity()) {
+
+                        // A record larger than the buffer; make room and read the rest
+                        ByteBuffer grown = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize()
+                                + mNetIn.capacity());
+                        grown.put(mNetIn);
+                        grown.flip();
+                        mNetIn = grown;
+                    }
+
+                    break;
+                }
+
+                if (status == Status.CLOSED) {
+                    throw new EOFException("TLS session closed.");
+                }
+
+                HandshakeStatus handshake = result.getHandshakeStatus();
+
+                // The rest waits in the buffer until the tasks finish
+                if (handshake == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    break;
+                } else if (handshake == HandshakeStatus.NEED_WRAP) {
+                    flush();
+                } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break;
+                }
+            }
+
+        } finally {
+            mNetIn.compact();
+        }
+    }
+
+    /**
+     * Consumes the application bytes received so far: first the upgrade
+     * response, then WebSocket frames.
+     */
+    private void process() throws Exception {
+
+        mAppIn.flip();
+
+        try {
+
+            if (mState == STATE_UPGRADING) {
+                readUpgrade();
+            }
+
+            if (mState == STATE_OPEN) {
+                mClient.getParser().feed(mAppIn);
+            }
+
+        } finally {
+            mAppIn.compact();
+        }
+    }
+
+    private void readUpgrade() throws Exception {
+
+        UpgradeResponseParser response = mClient.getUpgradeResponse();
+
+        if (response.parse(mAppIn)) {
+
+            mClient.acceptUpgrade(response, mSecret);
+
+            mState = STATE_OPEN;
+            mConnectTimeout.cancel();
+            mClient.getListener().onConnect();
+
+            return;
+        }
+
+        if (mAppIn.remaining() == mAppIn.capacity()) {
+            throw new HttpException("Upgrade response too large.");
+        }
+    }
+
+    private void flush() throws Exception {
+
+        // Nothing to write until connected, and no key yet while the host is being resolved
+        if (mState == STATE_CLOSED || mKey == null) return;
+
+        collect();
+
+        if (mEngine == null) {
+
+            while (!mWriting.isEmpty()) {
+
+                mChannel.write(gather(), 0, mWriting.size());
+
+                if (!releaseWritten()) break;
+
+                collect();
+            }
+
+        } else {
+
+            while (true) {
+
+                if (mNetOut.position() > 0) {
+
+                    mNetOut.flip();
+                    mChannel.write(mNetOut);
+                    mNetOut.compact();
+
+                    if (mNetOut.position() > 0) break;
+                }
+
+                HandshakeStatus handshake = mEngine.getHandshakeStatus();
+
+                if (handshake == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    break;
+                }
+
+                collect();
+
+                boolean appData = handshake == HandshakeStatus.NOT_HANDSHAKING && !mWriting.isEmpty();
+
+                if (handshake != HandshakeStatus.NEED_WRAP && !appData) break;
+
+                SSLEngineResult result = mEngine.wrap(gather(), 0, mWriting.size(), mNetOut);
+                checkHandshakeFinished(result);
+                releaseWritten();
+
+                if (result.getStatus() == Status.BUFFER_OVERFLOW && mNetOut.position() == 0) {
+                    mNetOut = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+                } else if (result.getStatus() == Status.CLOSED) {
+                    break;
+                }
+            }
+        }
+
+        boolean pending = (mEngine == null) ? !mWriting.isEmpty() : mNetOut.position() > 0;
+
+        if (mKey.isValid()) {
+            mKey.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Moves queued frames into the write list once the connection is open
+     * and the previous batch is out, so a stalled socket leaves the backlog
+     * in the queue where the water marks see it.
+     */
+    private void collect() {
+
+        if (mState != STATE_OPEN || !mWriting.isEmpty()) return;
+
+        mWritingBytes = mOutbound.drainTo(mWriting);
+    }
+
+    private ByteBuffer[] gather() {
+
+        if (mGather.length < mWriting.size()) {
+            mGather = new ByteBuffer[Math.max(mWriting.size(), mGather.length * 2)];
+        }
+
+        return mWriting.toArray(mGather);
+    }
+
+    /**
+     * Drops fully written buffers from the head of the write list, returning
+     * whether all of them were written.
+     */
+    private boolean releaseWritten() {
+
+        int written = 0;
+
+        while (written < mWriting.size() && !mWriting.get(written).hasRemaining()) {
+            mClient.getBufferPool().release(mWriting.get(written));
+            written++;
+        }
+
+        mWriting.subList(0, written).clear();
+        Arrays.fill(mGather, null);
+
+        if (mWriting.isEmpty() && mWritingBytes > 0) {
+            mOutbound.written(mWritingBytes);
+            mWritingBytes = 0;
+        }
+
+        return mWriting.isEmpty();
+    }
+
+    private void checkHandshakeFinished(SSLEngineResult result) {
+
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED && !mHandshakeFinished) {
+            mHandshakeFinished = true;
+            mClient.onHandshakeFinished(mEngine.getSession());
+        }
+    }
+
+    /**
+     * Runs the engine's delegated tasks, certificate checks and key
+     * agreement among them, on a helper thread, then carries on with the
+     * handshake back on the loop.
+     */
+    private void runDelegatedTasks() {
+
+        if (mTasksRunning) return;
+
+        final List<Runnable> tasks = new ArrayList<Runnable>(2);
+        Runnable task;
+
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+
+        if (tasks.isEmpty()) return;
+
+        mTasksRunning = true;
+
+        mLoop.executeBlocking(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    for (Runnable task : tasks) {
+                        task.run();
+                    }
+
+                } finally {
+                    mLoop.execute(mTasksFinished);
+                }
+            }
+        });
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int remaining) {
+
+        if (buffer.remaining() >= remaining) return buffer;
+
+        ByteBuffer grown = ByteBuffer.allocate(buffer.position() + remaining);
+        buffer.flip();
+        grown.put(buffer);
+
+        return grown;
+    }
+
+    private void fail(Exception ex) {
+
+        if (mState == STATE_CLOSED) return;
+
+        closeNow();
+        mClient.onError(ex);
+    }
+
+    void closeNow() {
+
+        if (mState == STATE_CLOSED) return;
+
+        mState = STATE_CLOSED;
+        mOutbound.close(mClient.getBufferPool());
+
+        if (mConnectTimeout != null) {
+            mConnectTimeout.cancel();
+        }
+
+        if (mNextAttempt != null) {
+            mNextAttempt.cancel();
+        }
+
+        for (Attempt attempt : mAttempts) {
+            attempt.abandon();
+        }
+
+        mAttempts.clear();
+        mWriting.clear();
+        mWritingBytes = 0;
+
+        // The loop is the thread that inflates, so the session can end here
+        mClient.getParser().setDeflate(null);
+
+        try {
+
+            if (mKey != null) {
+                mKey.cancel();
+            }
+
+            if (mChannel != null) {
+                mChannel.close();
+            }
+
+            FayeLog.i(TAG, "channel closed");
+
+        } catch (IOException ex) {
+            FayeLog.e(TAG, "Error while closing channel", ex);
+        }
+    }
+
+    /**
+     * One address being connected to.
+     */
+    private static final class Attempt {
+
+        private final InetAddress mAddress;
+        private SelectionKey mKey;
+        private NioReactor.Timeout mTimeout;
+
+        Attempt(InetAddress address) {
+            mAddress = address;
+        }
+
+        void abandon() {
+
+            if (mTimeout != null) {
+                mTimeout.cancel();
+            }
+
+            if (mKey == null) return;
+
+            mKey.cancel();
+
+            try {
+                mKey.channel().close();
+            } catch (IOException ex) {
+                // Never connected, so nothing is lost
+            }
+        }
+    }
+}
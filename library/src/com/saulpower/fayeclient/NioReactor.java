@@ -0,0 +1,226 @@
+package com.saulpower.fayeclient;
+
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small set of selector threads that serve any number of WebSocket
+ * connections with non-blocking channels, instead of the reader and writer
+ * thread pair each {@link WebSocketClient} otherwise starts. Connections
+ * are spread across the loops round-robin and stay on their loop for life,
+ * so listener callbacks for one connection always arrive on one thread.
+ * Work that may block, DNS lookups and TLS handshake computations, runs
+ * on a shared pool of helper threads instead, so one slow lookup does not
+ * stall every connection on its loop.
+ */
+public class NioReactor {
+
+    private static final String TAG = "NioReactor";
+
+    private static final ThreadFactory BLOCKING_THREADS = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "websocket-reactor-blocking");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    };
+
+    private final EventLoop[] mLoops;
+    private final ExecutorService mBlocking = Executors.newCachedThreadPool(BLOCKING_THREADS);
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    /**
+     * @param threads The number of event loop threads to start
+     */
+    public NioReactor(int threads) throws IOException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("A reactor needs at least one thread");
+        }
+
+        mLoops = new EventLoop[threads];
+
+        for (int i = 0; i < threads; i++) {
+            mLoops[i] = new EventLoop("websocket-reactor-" + i, mBlocking);
+            mLoops[i].start();
+        }
+    }
+
+    EventLoop next() {
+        return mLoops[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+    }
+
+    /**
+     * Stops every loop and closes the connections still registered with it.
+     */
+    public void shutdown() {
+
+        for (EventLoop loop : mLoops) {
+            loop.shutdown();
+        }
+
+        mBlocking.shutdown();
+    }
+
+    static class EventLoop extends Thread {
+
+        private final Selector mSelector;
+        private final ExecutorService mBlocking;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+        private final PriorityQueue<Timeout> mTimeouts = new PriorityQueue<Timeout>();
+        private volatile boolean mRunning = true;
+
+        EventLoop(String name, ExecutorService blocking) throws IOException {
+            super(name);
+            setDaemon(true);
+            mSelector = Selector.open();
+            mBlocking = blocking;
+        }
+
+        Selector getSelector() {
+            return mSelector;
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Runs a task that may block on a helper thread. It should hand
+         * its result back with {@link #execute(Runnable)}.
+         */
+        void executeBlocking(Runnable task) {
+            mBlocking.execute(task);
+        }
+
+        /**
+         * Runs a task on this loop's thread after a delay, unless it is
+         * cancelled first. Only to be called on the loop thread.
+         */
+        Timeout schedule(Runnable task, long delayMillis) {
+
+            Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+            mTimeouts.add(timeout);
+
+            return timeout;
+        }
+
+        void shutdown() {
+            mRunning = false;
+            mSelector.wakeup();
+        }
+
+        /**
+         * Runs the timeouts that are due.
+         *
+         * @return How long until the next one is due in milliseconds, at
+         *         least one, or zero when none is pending
+         */
+        private long runTimeouts() {
+
+            Timeout timeout;
+
+            while ((timeout = mTimeouts.peek()) != null) {
+
+                long remaining = timeout.mDeadline - System.nanoTime();
+
+                if (!timeout.mCancelled && remaining > 0) {
+                    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+                }
+
+                mTimeouts.poll();
+
+                if (!timeout.mCancelled) {
+                    timeout.mTask.run();
+                }
+            }
+
+            return 0;
+        }
+
+        @Override
+        public void run() {
+
+            while (mRunning) {
+
+                try {
+
+                    mSelector.select(runTimeouts());
+
+                    Runnable task;
+
+                    while ((task = mTasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        ((NioConnection) key.attachment()).handle(key);
+                    }
+
+                } catch (IOException ex) {
+                    FayeLog.e(TAG, "Selector failed", ex);
+                } catch (RuntimeException ex) {
+                    FayeLog.e(TAG, "Event loop task failed", ex);
+                }
+            }
+
+            for (SelectionKey key : mSelector.keys()) {
+                ((NioConnection) key.attachment()).closeNow();
+            }
+
+            try {
+                mSelector.close();
+            } catch (IOException ex) {
+                FayeLog.e(TAG, "Error closing selector", ex);
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on an event loop, touched only by the loop thread.
+     */
+    static final class Timeout implements Comparable<Timeout> {
+
+        private final Runnable mTask;
+        private final long mDeadline;
+        private boolean mCancelled;
+
+        Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timeout other) {
+            return (mDeadline < other.mDeadline) ? -1 : (mDeadline > other.mDeadline) ? 1 : 0;
+        }
+    }
+}
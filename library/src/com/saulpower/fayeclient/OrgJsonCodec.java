@@ -0,0 +1,126 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * A codec built on org.json trees, as the client used before codecs were
+ * pluggable. Every inbound frame is parsed in full, so it is mostly useful
+ * as a reference or where that parser's leniency is wanted.
+ */
+public class OrgJsonCodec implements BayeuxCodec {
+
+    @Override
+    public void encode(BayeuxMessage message, StringBuilder out) throws IOException {
+
+        try {
+
+            JSONObject json = new JSONObject();
+            json.putOpt("channel", message.getChannel());
+            json.putOpt("clientId", message.getClientId());
+            json.putOpt("id", message.getId());
+            json.putOpt("subscription", message.getSubscription());
+            json.putOpt("connectionType", message.getConnectionType());
+            json.putOpt("version", message.getVersion());
+            json.putOpt("minimumVersion", message.getMinimumVersion());
+
+            if (message.getSupportedConnectionTypes() != null) {
+
+                JSONArray connectionTypes = new JSONArray();
+
+                for (String connectionType : message.getSupportedConnectionTypes()) {
+                    connectionTypes.put(connectionType);
+                }
+
+                json.put("supportedConnectionTypes", connectionTypes);
+            }
+
+            json.putOpt("data", message.getData());
+            json.putOpt("ext", message.getExt());
+
+            out.append(json.toString());
+
+        } catch (JSONException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public Decoder newDecoder() {
+
+        return new Decoder() {
+
+            private JSONArray mMessages;
+            private int mIndex;
+
+            @Override
+            public void begin(CharSequence frame) throws IOException {
+
+                try {
+
+                    String text = frame.toString().trim();
+
+                    if (text.startsWith("{")) {
+                        mMessages = new JSONArray().put(new JSONObject(text));
+                    } else {
+                        mMessages = new JSONArray(text);
+                    }
+
+                    mIndex = 0;
+
+                } catch (JSONException ex) {
+                    throw new IOException(ex.getMessage());
+                }
+            }
+
+            @Override
+            public boolean next(BayeuxMessage message) {
+
+                if (mIndex >= mMessages.length()) return false;
+
+                JSONObject json = mMessages.optJSONObject(mIndex++);
+
+                message.reset();
+
+                if (json == null) return true;
+
+                message.setChannel(optString(json, "channel"));
+                message.setSuccessful(json.optBoolean("successful"));
+                message.setClientId(optString(json, "clientId"));
+                message.setId(optString(json, "id"));
+                message.setSubscription(optString(json, "subscription"));
+                message.setError(optString(json, "error"));
+
+                Object data = json.opt("data");
+
+                if (data instanceof JSONObject) {
+                    message.setData((JSONObject) data);
+                } else if (data != null) {
+                    // Any other value is kept as its text, as the streaming codec keeps it, so it still counts as data
+                    String text = toJson(data);
+                    message.setRawData(text, 0, text.length());
+                }
+
+                JSONObject advice = json.optJSONObject("advice");
+
+                if (advice != null) {
+                    message.setAdvice(optString(advice, "reconnect"), advice.optLong("interval", -1),
+                            advice.optLong("timeout", -1));
+                }
+
+                return true;
+            }
+        };
+    }
+
+    private static String optString(JSONObject json, String name) {
+        return json.isNull(name) ? null : json.optString(name);
+    }
+
+    private static String toJson(Object value) {
+        return (value instanceof String) ? JSONObject.quote((String) value) : String.valueOf(value);
+    }
+}
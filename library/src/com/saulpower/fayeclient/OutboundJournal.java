@@ -0,0 +1,444 @@
+package com.saulpower.fayeclient;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only record of publishes the server has not acknowledged yet,
+ * kept in a memory-mapped file so that they survive both dropped
+ * connections and process restarts. Appending is a copy into the mapping;
+ * an acknowledgement flips one byte. Once every record is acknowledged the
+ * file starts over from the top, and when it fills up the records still
+ * pending are copied to a fresh file that then replaces it, leaving the
+ * acknowledged ones at its head behind. The old file stays whole until the
+ * rename, so a crash part way through compaction loses nothing.
+ *
+ * <p>Writes reach the file when the OS flushes the mapping, so they
+ * survive the process dying but not necessarily the device losing power.
+ *
+ * @see FayeClient#setOutboundJournal(OutboundJournal)
+ */
+public class OutboundJournal {
+
+    private static final String TAG = "OutboundJournal";
+
+    private static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    private static final int MAGIC = 0x46414a31;
+    private static final int HEADER_SIZE = 4;
+
+    // Record: int size, byte state, long sequence, then channel, data and ext as int length and UTF-8
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+    private static final byte PENDING = 1;
+    private static final byte ACKNOWLEDGED = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mPath;
+    private final File mCompactPath;
+    private final int mCapacity;
+
+    // Replaced when compaction swaps in a fresh file
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+
+    // Every record in the file, in order; those before mHead are all acknowledged
+    private long[] mSequences = new long[64];
+    private int[] mOffsets = new int[64];
+    private boolean[] mAcknowledged = new boolean[64];
+    private int mHead;
+    private int mCount;
+    private int mPending;
+
+    private int mWritePosition = HEADER_SIZE;
+    private long mNextSequence = 1;
+
+    public OutboundJournal(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the journal at the given file, creating it if needed, and
+     * recovers the publishes still pending in it.
+     *
+     * @param capacity The size of the file in bytes, which bounds how much
+     *                 can wait for acknowledgement
+     */
+    public OutboundJournal(File file, int capacity) throws IOException {
+
+        mPath = file;
+        mCompactPath = new File(file.getPath() + ".compact");
+        mCapacity = capacity;
+
+        // Left by a compaction that never finished; the journal itself is still whole
+        if (mCompactPath.exists() && !mCompactPath.delete()) {
+            FayeLog.w(TAG, "Could not delete " + mCompactPath);
+        }
+
+        mFile = new RandomAccessFile(file, "rw");
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        if (mBuffer.getInt(0) == MAGIC) {
+            recover();
+        } else {
+            mBuffer.putInt(0, MAGIC);
+            terminate();
+        }
+    }
+
+    /**
+     * How many publishes are waiting for acknowledgement.
+     */
+    public synchronized int getPendingCount() {
+        return mPending;
+    }
+
+    /**
+     * Flushes the journal to storage and releases the file.
+     */
+    public synchronized void close() throws IOException {
+        mBuffer.force();
+        mFile.close();
+    }
+
+    /**
+     * Records a publish.
+     *
+     * @return Its sequence number, or -1 when the journal is full
+     */
+    synchronized long append(String channel, String data, String ext) {
+
+        byte[] channelBytes = bytes(channel);
+        byte[] dataBytes = bytes(data);
+        byte[] extBytes = bytes(ext);
+
+        int size = RECORD_HEADER_SIZE + length(channelBytes) + length(dataBytes) + length(extBytes);
+
+        // Room is kept for the terminating zero size after the record
+        if (mWritePosition + size + 4 > mCapacity) {
+
+            compact();
+
+            if (mWritePosition + size + 4 > mCapacity) {
+                FayeLog.w(TAG, "Journal full, refusing a " + size + " byte publish");
+                return -1;
+            }
+        }
+
+        long sequence = mNextSequence++;
+        int offset = mWritePosition;
+
+        mBuffer.position(offset + 4);
+        mBuffer.put(PENDING);
+        mBuffer.putLong(sequence);
+        put(channelBytes);
+        put(dataBytes);
+        put(extBytes);
+
+        mWritePosition = offset + size;
+        terminate();
+
+        // The size goes in last, so a record torn by a crash reads as the end
+        mBuffer.putInt(offset, size);
+
+        add(sequence, offset, false);
+        mPending++;
+
+        return sequence;
+    }
+
+    /**
+     * Drops a publish from the journal, once the server has answered it.
+     * Unknown sequence numbers are ignored.
+     */
+    synchronized void remove(long sequence) {
+
+        int index = indexOf(sequence);
+
+        if (index < 0 || mAcknowledged[index]) return;
+
+        mAcknowledged[index] = true;
+        mBuffer.put(mOffsets[index] + 4, ACKNOWLEDGED);
+        mPending--;
+
+        while (mHead < mCount && mAcknowledged[mHead]) {
+            mHead++;
+        }
+
+        // Nothing left to wait for, so the next record can go back at the top
+        if (mHead == mCount) {
+            mHead = 0;
+            mCount = 0;
+            mWritePosition = HEADER_SIZE;
+            terminate();
+        }
+    }
+
+    /**
+     * The publishes still waiting for acknowledgement, oldest first.
+     */
+    synchronized List<Entry> getPending() {
+
+        List<Entry> entries = new ArrayList<Entry>(mPending);
+
+        for (int i = mHead; i < mCount; i++) {
+
+            if (mAcknowledged[i]) continue;
+
+            mBuffer.position(mOffsets[i] + RECORD_HEADER_SIZE);
+
+            String channel = string();
+            String data = string();
+            String ext = string();
+
+            entries.add(new Entry(mSequences[i], channel, data, ext));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Rebuilds the index from the records a previous run left behind.
+     */
+    private void recover() {
+
+        int offset = HEADER_SIZE;
+
+        while (offset + 4 <= mCapacity) {
+
+            int size = mBuffer.getInt(offset);
+
+            if (size < RECORD_HEADER_SIZE || offset + size > mCapacity) break;
+
+            boolean acknowledged = mBuffer.get(offset + 4) != PENDING;
+            long sequence = mBuffer.getLong(offset + 5);
+
+            add(sequence, offset, acknowledged);
+
+            if (!acknowledged) {
+                mPending++;
+            }
+
+            mNextSequence = Math.max(mNextSequence, sequence + 1);
+            offset += size;
+        }
+
+        mWritePosition = offset;
+
+        while (mHead < mCount && mAcknowledged[mHead]) {
+            mHead++;
+        }
+
+        if (mHead == mCount) {
+            mHead = 0;
+            mCount = 0;
+            mWritePosition = HEADER_SIZE;
+            terminate();
+        }
+
+        if (mPending > 0) {
+            FayeLog.i(TAG, "Recovered " + mPending + " unacknowledged publishes");
+        }
+    }
+
+    /**
+     * Copies the records after the acknowledged head to the top of a fresh
+     * file and renames it over the journal. Moving them within the file
+     * would leave a crash part way through with neither layout intact.
+     */
+    private void compact() {
+
+        if (mHead == 0) return;
+
+        int from = mOffsets[mHead];
+        int length = mWritePosition - from;
+
+        RandomAccessFile file = null;
+        MappedByteBuffer buffer;
+
+        try {
+
+            file = new RandomAccessFile(mCompactPath, "rw");
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+
+            ByteBuffer records = mBuffer.duplicate();
+            records.limit(from + length);
+            records.position(from);
+
+            buffer.putInt(0, MAGIC);
+            buffer.position(HEADER_SIZE);
+            buffer.put(records);
+            buffer.putInt(HEADER_SIZE + length, 0);
+
+            if (!mCompactPath.renameTo(mPath)) {
+                throw new IOException("Could not rename " + mCompactPath + " to " + mPath);
+            }
+
+        } catch (IOException ex) {
+
+            FayeLog.w(TAG, "Could not compact the journal", ex);
+            closeQuietly(file);
+            mCompactPath.delete();
+
+            return;
+        }
+
+        closeQuietly(mFile);
+        mFile = file;
+        mBuffer = buffer;
+
+        int shift = from - HEADER_SIZE;
+        int live = mCount - mHead;
+
+        for (int i = 0; i < live; i++) {
+            mSequences[i] = mSequences[mHead + i];
+            mOffsets[i] = mOffsets[mHead + i] - shift;
+            mAcknowledged[i] = mAcknowledged[mHead + i];
+        }
+
+        mHead = 0;
+        mCount = live;
+        mWritePosition = HEADER_SIZE + length;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+
+        if (file == null) return;
+
+        try {
+            file.close();
+        } catch (IOException ex) {
+            // Nothing more to lose
+        }
+    }
+
+    private void add(long sequence, int offset, boolean acknowledged) {
+
+        if (mCount == mSequences.length) {
+
+            int capacity = mCount * 2;
+
+            long[] sequences = new long[capacity];
+            int[] offsets = new int[capacity];
+            boolean[] flags = new boolean[capacity];
+
+            System.arraycopy(mSequences, 0, sequences, 0, mCount);
+            System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            System.arraycopy(mAcknowledged, 0, flags, 0, mCount);
+
+            mSequences = sequences;
+            mOffsets = offsets;
+            mAcknowledged = flags;
+        }
+
+        mSequences[mCount] = sequence;
+        mOffsets[mCount] = offset;
+        mAcknowledged[mCount] = acknowledged;
+        mCount++;
+    }
+
+    /**
+     * Finds a record by sequence number; they are appended in order.
+     */
+    private int indexOf(long sequence) {
+
+        int low = mHead;
+        int high = mCount - 1;
+
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+            long value = mSequences[middle];
+
+            if (value < sequence) {
+                low = middle + 1;
+            } else if (value > sequence) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Marks the end of the records with a zero size.
+     */
+    private void terminate() {
+
+        if (mWritePosition + 4 <= mCapacity) {
+            mBuffer.putInt(mWritePosition, 0);
+        }
+    }
+
+    private void put(byte[] value) {
+
+        if (value == null) {
+            mBuffer.putInt(-1);
+            return;
+        }
+
+        mBuffer.putInt(value.length);
+        mBuffer.put(value);
+    }
+
+    private String string() {
+
+        int length = mBuffer.getInt();
+
+        if (length < 0) return null;
+
+        byte[] value = new byte[length];
+        mBuffer.get(value);
+
+        return new String(value, UTF_8);
+    }
+
+    private static byte[] bytes(String value) {
+        return (value == null) ? null : value.getBytes(UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return 4 + ((value == null) ? 0 : value.length);
+    }
+
+    static final class Entry {
+
+        private final long mSequence;
+        private final String mChannel;
+        private final String mData;
+        private final String mExt;
+
+        Entry(long sequence, String channel, String data, String ext) {
+            mSequence = sequence;
+            mChannel = channel;
+            mData = data;
+            mExt = ext;
+        }
+
+        long getSequence() {
+            return mSequence;
+        }
+
+        String getChannel() {
+            return mChannel;
+        }
+
+        String getData() {
+            return mData;
+        }
+
+        String getExt() {
+            return mExt;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.saulpower.fayeclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoded frames waiting to be written. Producers only append; the writer
+ * takes everything pending in one pass and writes it with a single flush or
+ * gathering write, so a burst of sends costs one write rather than one per
+ * frame.
+ *
+ * The queue is bounded in bytes. Once a send would take it past the high
+ * water mark the overflow policy decides what happens, and the queue stays
+ * unwritable until the writer has brought it back under the low water mark.
+ */
+class OutboundQueue {
+
+    private static final int DEFAULT_LOW_WATER_MARK  = 256 * 1024;
+    private static final int DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+
+    private final List<ByteBuffer> mPending = new ArrayList<ByteBuffer>();
+    private boolean mScheduled;
+    private Runnable mDrainTrigger;
+
+    private long mBytes;
+    private int mLowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private int mHighWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private WebSocketClient.OverflowPolicy mPolicy = WebSocketClient.OverflowPolicy.REJECT;
+    private WebSocketClient.WritabilityListener mWritabilityListener;
+    private boolean mWritable = true;
+    private boolean mClosed;
+
+    private final Histogram mBatchSizes = new Histogram();
+
+    /**
+     * Set by the transport: runs whenever frames are pending and no drain
+     * is scheduled yet.
+     */
+    synchronized void setDrainTrigger(Runnable drainTrigger) {
+        mDrainTrigger = drainTrigger;
+    }
+
+    synchronized void setWaterMarks(int low, int high) {
+
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("Need 0 <= low <= high: " + low + ", " + high);
+        }
+
+        mLowWaterMark = low;
+        mHighWaterMark = high;
+    }
+
+    synchronized void setOverflowPolicy(WebSocketClient.OverflowPolicy policy) {
+        mPolicy = policy;
+    }
+
+    synchronized void setWritabilityListener(WebSocketClient.WritabilityListener listener) {
+        mWritabilityListener = listener;
+    }
+
+    synchronized boolean isWritable() {
+        return mWritable;
+    }
+
+    /**
+     * Appends a frame, applying the overflow policy if it does not fit.
+     *
+     * @param mayBlock False on the writer's own thread, where waiting for
+     *                 room would never end; the frame is then accepted
+     * @return Whether the frame was queued. Rejected and dropped frames
+     *         are released to the pool.
+     */
+    boolean add(ByteBuffer frame, BufferPool pool, boolean mayBlock) {
+
+        int size = frame.remaining();
+        boolean accepted = true;
+        boolean becameUnwritable = false;
+        Runnable trigger = null;
+        List<ByteBuffer> dropped = null;
+
+        synchronized (this) {
+
+            if (mClosed) {
+
+                accepted = false;
+
+            } else if (mBytes > 0 && mBytes + size > mHighWaterMark) {
+
+                becameUnwritable = mWritable;
+                mWritable = false;
+
+                switch (mPolicy) {
+                    case REJECT:
+                        accepted = false;
+                        break;
+                    case DROP_OLDEST:
+                        dropped = new ArrayList<ByteBuffer>();
+
+                        while (!mPending.isEmpty() && mBytes + size > mHighWaterMark) {
+                            ByteBuffer oldest = mPending.remove(0);
+                            mBytes -= oldest.remaining();
+                            dropped.add(oldest);
+                        }
+                        break;
+                    case BLOCK:
+                        while (mayBlock && !mClosed && mBytes > 0 && mBytes + size > mHighWaterMark) {
+                            try {
+                                wait();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+
+                        accepted = !mClosed;
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            if (accepted) {
+
+                mPending.add(frame);
+                mBytes += size;
+
+                if (mBytes > mHighWaterMark && mWritable) {
+                    mWritable = false;
+                    becameUnwritable = true;
+                }
+
+                if (!mScheduled) {
+                    mScheduled = true;
+                    trigger = mDrainTrigger;
+                }
+            }
+        }
+
+        if (!accepted) {
+            pool.release(frame);
+        }
+
+        if (dropped != null) {
+            for (ByteBuffer oldest : dropped) {
+                pool.release(oldest);
+            }
+        }
+
+        if (becameUnwritable) {
+            notifyWritability(false);
+        }
+
+        if (trigger != null) {
+            trigger.run();
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Moves every pending frame into the writer's list. Frames added after
+     * this call will trigger a new drain. The drained bytes still count
+     * against the water marks until the writer reports them written.
+     *
+     * @return The number of bytes drained
+     */
+    long drainTo(List<ByteBuffer> batch) {
+
+        int size;
+        long bytes = 0;
+
+        synchronized (this) {
+
+            size = mPending.size();
+
+            for (int i = 0; i < size; i++) {
+                bytes += mPending.get(i).remaining();
+            }
+
+            batch.addAll(mPending);
+            mPending.clear();
+            mScheduled = false;
+        }
+
+        if (size > 0) {
+            mBatchSizes.record(size);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Called by the writer once drained bytes are on the wire.
+     */
+    void written(long bytes) {
+
+        if (bytes == 0) return;
+
+        boolean becameWritable = false;
+
+        synchronized (this) {
+
+            mBytes = Math.max(0, mBytes - bytes);
+
+            if (!mWritable && mBytes <= mLowWaterMark) {
+                mWritable = true;
+                becameWritable = true;
+            }
+
+            notifyAll();
+        }
+
+        if (becameWritable) {
+            notifyWritability(true);
+        }
+    }
+
+    /**
+     * Accepts frames again after {@link #close(BufferPool)}, for a new
+     * connection.
+     */
+    synchronized void open() {
+        mClosed = false;
+    }
+
+    /**
+     * Drops everything pending, handing the buffers back to the pool, and
+     * refuses further frames. Blocked producers are released.
+     */
+    synchronized void close(BufferPool pool) {
+
+        for (ByteBuffer frame : mPending) {
+            pool.release(frame);
+        }
+
+        mPending.clear();
+        mBytes = 0;
+        mWritable = true;
+        mClosed = true;
+
+        notifyAll();
+    }
+
+    /**
+     * The number of frames written per pass.
+     */
+    Histogram getBatchSizes() {
+        return mBatchSizes;
+    }
+
+    private void notifyWritability(boolean writable) {
+
+        WebSocketClient.WritabilityListener listener;
+
+        synchronized (this) {
+            listener = mWritabilityListener;
+        }
+
+        if (listener != null) {
+            listener.onWritabilityChanged(writable);
+        }
+    }
+}
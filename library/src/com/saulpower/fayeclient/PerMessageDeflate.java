@@ -0,0 +1,297 @@
+package com.saulpower.fayeclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Configuration for the permessage-deflate extension (RFC 7692).
+ *
+ * Outbound messages are compressed as self-contained DEFLATE streams, so
+ * the client always offers client_no_context_takeover; java.util.zip on the
+ * platforms this library targets cannot sync-flush a stream or shrink its
+ * window. The server side (window size and context takeover) is
+ * configurable since inflating handles any window.
+ */
+public class PerMessageDeflate {
+
+    public static final String EXTENSION_NAME = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS     = "server_max_window_bits";
+
+    private static final int MIN_WINDOW_BITS = 8;
+    private static final int MAX_WINDOW_BITS = 15;
+
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+    private int mServerMaxWindowBits = MAX_WINDOW_BITS;
+    private boolean mServerNoContextTakeover = false;
+    private int mMinSize = 256;
+    private int mLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Asks the server to compress with a window of at most 2^bits bytes.
+     */
+    public void setServerMaxWindowBits(int bits) {
+
+        if (bits < MIN_WINDOW_BITS || bits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("Window bits must be between 8 and 15: " + bits);
+        }
+
+        mServerMaxWindowBits = bits;
+    }
+
+    /**
+     * Asks the server to reset its compression context after every message,
+     * trading compression ratio for memory on both ends.
+     */
+    public void setServerNoContextTakeover(boolean noContextTakeover) {
+        mServerNoContextTakeover = noContextTakeover;
+    }
+
+    /**
+     * Messages whose UTF-8 payload is smaller than this are sent uncompressed.
+     */
+    public void setMinSize(int minSize) {
+        mMinSize = minSize;
+    }
+
+    /**
+     * The zlib compression level used for outbound messages.
+     */
+    public void setLevel(int level) {
+        mLevel = level;
+    }
+
+    /**
+     * The value of the Sec-WebSocket-Extensions request header.
+     */
+    String offer() {
+
+        StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+        offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+
+        if (mServerNoContextTakeover) {
+            offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+
+        if (mServerMaxWindowBits < MAX_WINDOW_BITS) {
+            offer.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(mServerMaxWindowBits);
+        }
+
+        return offer.toString();
+    }
+
+    /**
+     * Validates the server's Sec-WebSocket-Extensions response header and
+     * returns the state for the accepted connection, or null if the server
+     * did not agree to the extension.
+     *
+     * @throws HybiParser.ProtocolError if the response is not a valid answer to our offer
+     */
+    Session accept(String response) throws HybiParser.ProtocolError {
+
+        if (response == null) return null;
+
+        Session session = null;
+
+        for (String extension : response.split(",")) {
+
+            String[] params = extension.split(";");
+
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+                throw new HybiParser.ProtocolError("Unexpected extension: " + params[0].trim());
+            }
+
+            if (session != null) {
+                throw new HybiParser.ProtocolError("Extension accepted twice: " + EXTENSION_NAME);
+            }
+
+            boolean serverNoContextTakeover = false;
+
+            for (int i = 1; i < params.length; i++) {
+
+                String param = params[i].trim();
+                int equals = param.indexOf('=');
+                String name = (equals == -1 ? param : param.substring(0, equals)).trim();
+
+                if (name.equalsIgnoreCase(SERVER_NO_CONTEXT_TAKEOVER)) {
+
+                    serverNoContextTakeover = true;
+
+                } else if (name.equalsIgnoreCase(SERVER_MAX_WINDOW_BITS)) {
+
+                    int bits = parseWindowBits(equals == -1 ? null : param.substring(equals + 1));
+
+                    if (bits > mServerMaxWindowBits) {
+                        throw new HybiParser.ProtocolError("Server window larger than offered: " + bits);
+                    }
+
+                } else if (!name.equalsIgnoreCase(CLIENT_NO_CONTEXT_TAKEOVER)) {
+
+                    // client_max_window_bits was not offered, so the server may not send it
+                    throw new HybiParser.ProtocolError("Unexpected extension parameter: " + name);
+                }
+            }
+
+            if (mServerNoContextTakeover && !serverNoContextTakeover) {
+                throw new HybiParser.ProtocolError("Server did not agree to " + SERVER_NO_CONTEXT_TAKEOVER);
+            }
+
+            session = new Session(!serverNoContextTakeover, mMinSize, mLevel);
+        }
+
+        return session;
+    }
+
+    private static int parseWindowBits(String value) throws HybiParser.ProtocolError {
+
+        try {
+
+            int bits = Integer.parseInt(value.trim().replace("\"", ""));
+
+            if (bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS) {
+                return bits;
+            }
+
+        } catch (RuntimeException ex) {
+            // Falls through to the protocol error below
+        }
+
+        throw new HybiParser.ProtocolError("Bad window bits: " + value);
+    }
+
+    /**
+     * Compression state for a single connection.
+     */
+    static class Session {
+
+        private final boolean mServerContextTakeover;
+        private final int mMinSize;
+
+        private final Inflater mInflater = new Inflater(true);
+        private final Deflater mDeflater;
+
+        private final byte[] mScratch = new byte[8 * 1024];
+        private byte[] mInput = new byte[0];
+        private byte[] mOutput = new byte[0];
+        private boolean mEnded;
+
+        Session(boolean serverContextTakeover, int minSize, int level) {
+            mServerContextTakeover = serverContextTakeover;
+            mMinSize = minSize;
+            mDeflater = new Deflater(level, true);
+        }
+
+        /**
+         * Inflates one frame's worth of a compressed message into the sink.
+         *
+         * @param fin Whether this is the last frame of the message
+         */
+        void inflate(byte[] data, int offset, int length, boolean fin, OutputStream out) throws IOException {
+
+            try {
+
+                mInflater.setInput(data, offset, length);
+                drain(out);
+
+                if (fin) {
+
+                    mInflater.setInput(TAIL);
+                    drain(out);
+
+                    if (!mServerContextTakeover || mInflater.finished()) {
+                        mInflater.reset();
+                    }
+                }
+
+            } catch (DataFormatException ex) {
+                throw new HybiParser.ProtocolError("Bad compressed data: " + ex.getMessage());
+            }
+        }
+
+        private void drain(OutputStream out) throws DataFormatException, IOException {
+
+            int count;
+
+            while ((count = mInflater.inflate(mScratch)) > 0) {
+                out.write(mScratch, 0, count);
+            }
+        }
+
+        /**
+         * Whether a text payload of this many UTF-8 bytes is worth compressing.
+         */
+        boolean shouldCompress(int length) {
+            return length >= mMinSize;
+        }
+
+        /**
+         * Encodes text to UTF-8 and compresses it as a self-contained
+         * DEFLATE stream. The result stays valid until the next call and
+         * its length is returned; callers serialize access.
+         */
+        int deflate(CharSequence text, int utf8Length) {
+
+            if (mInput.length < utf8Length) {
+                mInput = new byte[utf8Length];
+            }
+
+            FrameEncoder.writeUtf8(text, ByteBuffer.wrap(mInput));
+
+            mDeflater.setInput(mInput, 0, utf8Length);
+            mDeflater.finish();
+
+            if (mOutput.length < utf8Length + 64) {
+                mOutput = new byte[utf8Length + 64];
+            }
+
+            int length = 0;
+
+            while (!mDeflater.finished()) {
+
+                if (length == mOutput.length) {
+
+                    byte[] grown = new byte[mOutput.length * 2];
+                    System.arraycopy(mOutput, 0, grown, 0, length);
+                    mOutput = grown;
+                }
+
+                length += mDeflater.deflate(mOutput, length, mOutput.length - length);
+            }
+
+            mDeflater.reset();
+
+            return length;
+        }
+
+        byte[] getOutput() {
+            return mOutput;
+        }
+
+        /**
+         * Frees the inflater's and deflater's native memory once the
+         * connection is done with them. Call it on the thread that
+         * inflates; compressing holds this session's lock, so a frame
+         * being compressed elsewhere is either finished first or sees the
+         * session ended.
+         */
+        synchronized void end() {
+
+            if (mEnded) return;
+
+            mEnded = true;
+            mInflater.end();
+            mDeflater.end();
+        }
+
+        synchronized boolean isEnded() {
+            return mEnded;
+        }
+    }
+}
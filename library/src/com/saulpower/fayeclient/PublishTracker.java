@@ -0,0 +1,260 @@
+package com.saulpower.fayeclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The publishes that are waiting for the server's reply. Ids are handed out
+ * in sequence, so a pending publish lives in the slot its id selects in a
+ * ring that doubles when it fills, and the sweep for timed out publishes
+ * walks forward from the oldest one. Publish to reply times go into a
+ * {@link Histogram}.
+ *
+ * <p>The sequence carries on across sessions rather than starting over, so
+ * a late reply to the last session's publish can never be taken for the
+ * reply to a new one that reused its id.
+ */
+final class PublishTracker {
+
+    static final String TIMED_OUT = "Timed out";
+    static final String SESSION_ENDED = "Session ended";
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Scheduler mScheduler;
+    private final Histogram mLatencies = new Histogram();
+
+    private long mTimeout;
+
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private long[] mSentNanos = new long[INITIAL_CAPACITY];
+    private FayeClient.PublishCallback[] mCallbacks = new FayeClient.PublishCallback[INITIAL_CAPACITY];
+
+    private long mNextId = 1;
+    private long mOldestId = 1;
+    private boolean mSweepScheduled;
+
+    private final Runnable mSweepTask = new Runnable() {
+
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+
+    PublishTracker(Scheduler scheduler, long timeoutMillis) {
+        mScheduler = scheduler;
+        mTimeout = timeoutMillis;
+    }
+
+    synchronized void setTimeout(long timeoutMillis) {
+        mTimeout = timeoutMillis;
+    }
+
+    /**
+     * Publish to reply times, in microseconds.
+     */
+    Histogram getLatencies() {
+        return mLatencies;
+    }
+
+    /**
+     * Takes the next id and starts waiting for its reply.
+     */
+    synchronized long register(FayeClient.PublishCallback callback) {
+
+        if (mNextId - mOldestId >= mIds.length) {
+            grow();
+        }
+
+        long id = mNextId++;
+        int slot = slot(id);
+
+        mIds[slot] = id;
+        mSentNanos[slot] = System.nanoTime();
+        mCallbacks[slot] = callback;
+
+        if (!mSweepScheduled) {
+            mSweepScheduled = true;
+            mScheduler.postDelayed(mSweepTask, mTimeout);
+        }
+
+        return id;
+    }
+
+    /**
+     * Stops waiting for a publish that was never sent.
+     */
+    synchronized void forget(long id) {
+        take(id);
+    }
+
+    /**
+     * Completes a publish with the server's reply. Replies to ids that are
+     * not pending, including any from an earlier session, are ignored.
+     */
+    void acknowledge(String id, boolean successful, String error) {
+
+        long value;
+
+        try {
+            value = Long.parseLong(id);
+        } catch (NumberFormatException ex) {
+            return;
+        }
+
+        FayeClient.PublishCallback callback;
+        long sent;
+
+        synchronized (this) {
+
+            int slot = slot(value);
+
+            if (value <= 0 || mIds[slot] != value) return;
+
+            sent = mSentNanos[slot];
+            callback = take(value);
+        }
+
+        mLatencies.record((System.nanoTime() - sent) / 1000);
+
+        if (callback == null) return;
+
+        if (successful) {
+            callback.onAcknowledged(id);
+        } else {
+            callback.onFailed(id, error);
+        }
+    }
+
+    /**
+     * Fails every pending publish, for a session that has ended. Ids carry
+     * on from where they were.
+     */
+    void reset(String reason) {
+
+        List<Long> ids = new ArrayList<Long>();
+        List<FayeClient.PublishCallback> callbacks = new ArrayList<FayeClient.PublishCallback>();
+
+        synchronized (this) {
+
+            for (long id = mOldestId; id < mNextId; id++) {
+
+                int slot = slot(id);
+
+                if (mIds[slot] == id && mCallbacks[slot] != null) {
+                    ids.add(id);
+                    callbacks.add(mCallbacks[slot]);
+                }
+
+                take(id);
+            }
+
+            mOldestId = mNextId;
+
+            if (mSweepScheduled) {
+                mSweepScheduled = false;
+                mScheduler.cancel(mSweepTask);
+            }
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            callbacks.get(i).onFailed(String.valueOf(ids.get(i)), reason);
+        }
+    }
+
+    private void sweep() {
+
+        List<Long> ids = new ArrayList<Long>();
+        List<FayeClient.PublishCallback> callbacks = new ArrayList<FayeClient.PublishCallback>();
+
+        synchronized (this) {
+
+            mSweepScheduled = false;
+
+            long now = System.nanoTime();
+            long timeoutNanos = mTimeout * 1000000;
+            long nextDue = -1;
+
+            // Ids are sent in order, so everything past the first live publish is younger
+            for (long id = mOldestId; id < mNextId; id++) {
+
+                int slot = slot(id);
+
+                if (mIds[slot] != id) continue;
+
+                long age = now - mSentNanos[slot];
+
+                if (age < timeoutNanos) {
+                    nextDue = (timeoutNanos - age) / 1000000 + 1;
+                    break;
+                }
+
+                if (mCallbacks[slot] != null) {
+                    ids.add(id);
+                    callbacks.add(mCallbacks[slot]);
+                }
+
+                take(id);
+            }
+
+            if (nextDue >= 0) {
+                mSweepScheduled = true;
+                mScheduler.postDelayed(mSweepTask, nextDue);
+            }
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            callbacks.get(i).onFailed(String.valueOf(ids.get(i)), TIMED_OUT);
+        }
+    }
+
+    /**
+     * Empties an id's slot, moving the oldest id past any finished ones.
+     *
+     * @return The publish's callback, or null
+     */
+    private FayeClient.PublishCallback take(long id) {
+
+        int slot = slot(id);
+
+        if (mIds[slot] != id) return null;
+
+        FayeClient.PublishCallback callback = mCallbacks[slot];
+
+        mIds[slot] = 0;
+        mCallbacks[slot] = null;
+
+        while (mOldestId < mNextId && mIds[slot(mOldestId)] != mOldestId) {
+            mOldestId++;
+        }
+
+        return callback;
+    }
+
+    private void grow() {
+
+        long[] ids = mIds;
+        long[] sentNanos = mSentNanos;
+        FayeClient.PublishCallback[] callbacks = mCallbacks;
+
+        mIds = new long[ids.length * 2];
+        mSentNanos = new long[ids.length * 2];
+        mCallbacks = new FayeClient.PublishCallback[ids.length * 2];
+
+        // Pending ids span less than the old length, so they stay apart in the new ring
+        for (int i = 0; i < ids.length; i++) {
+
+            if (ids[i] == 0) continue;
+
+            int slot = slot(ids[i]);
+            mIds[slot] = ids[i];
+            mSentNanos[slot] = sentNanos[i];
+            mCallbacks[slot] = callbacks[i];
+        }
+    }
+
+    private int slot(long id) {
+        return (int) id & (mIds.length - 1);
+    }
+}
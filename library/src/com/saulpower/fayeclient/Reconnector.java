@@ -0,0 +1,172 @@
+package com.saulpower.fayeclient;
+
+import java.util.Random;
+
+/**
+ * Decides when and how a client recovers its session. Retries back off
+ * exponentially with decorrelated jitter, each delay drawn between the base
+ * and three times the last one and capped, so a single client comes back
+ * quickly while a fleet that lost the same server spreads its reconnects
+ * out. The server's Bayeux advice takes precedence: its {@code reconnect}
+ * picks between retrying the connect, a new handshake or giving up, and its
+ * {@code interval} is the least a retry waits.
+ */
+final class Reconnector {
+
+    static final String RETRY = "retry";
+    static final String HANDSHAKE = "handshake";
+    static final String NONE = "none";
+
+    private static final long BASE_DELAY = 1000;
+    private static final long MAX_DELAY = 60000;
+
+    private final Scheduler mScheduler;
+    private final Runnable mTask;
+    private final Random mRandom = new Random();
+
+    private long mBaseDelay = BASE_DELAY;
+    private long mMaxDelay = MAX_DELAY;
+    private int mMaxAttempts = -1;
+
+    private long mLastDelay;
+    private int mAttempts;
+    private boolean mScheduled;
+
+    private String mAdvice = RETRY;
+    private long mInterval = 0;
+    private long mTimeout = -1;
+
+    private final Runnable mAttemptTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            synchronized (Reconnector.this) {
+                mScheduled = false;
+            }
+
+            mTask.run();
+        }
+    };
+
+    /**
+     * @param task Makes one attempt to recover, consulting
+     *             {@link #getAdvice()} for what to do
+     */
+    Reconnector(Scheduler scheduler, Runnable task) {
+        mScheduler = scheduler;
+        mTask = task;
+    }
+
+    /**
+     * @param maxAttempts Give up after this many retries in a row, or
+     *                    negative to keep trying
+     */
+    synchronized void setBackoff(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        mBaseDelay = baseDelayMillis;
+        mMaxDelay = maxDelayMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Takes in the advice a server message carried. Members it left out
+     * keep their last value.
+     */
+    synchronized void advise(String reconnect, long interval, long timeout) {
+
+        if (reconnect != null) {
+            mAdvice = reconnect;
+        }
+
+        if (interval >= 0) {
+            mInterval = interval;
+        }
+
+        if (timeout >= 0) {
+            mTimeout = timeout;
+        }
+    }
+
+    /**
+     * What the server last advised: {@link #RETRY}, {@link #HANDSHAKE} or
+     * {@link #NONE}.
+     */
+    synchronized String getAdvice() {
+        return mAdvice;
+    }
+
+    /**
+     * How long to wait between connects, in milliseconds.
+     */
+    synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * How long the server may hold a connect, in milliseconds, or -1 if it
+     * has not said.
+     */
+    synchronized long getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * Schedules the next attempt unless one is already pending.
+     *
+     * @return False when the server advised against reconnecting or the
+     *         attempts ran out
+     */
+    synchronized boolean schedule() {
+
+        if (NONE.equals(mAdvice)) return false;
+
+        if (mScheduled) return true;
+
+        if (mMaxAttempts >= 0 && mAttempts >= mMaxAttempts) return false;
+
+        mAttempts++;
+        mLastDelay = nextDelay();
+        mScheduled = true;
+
+        mScheduler.postDelayed(mAttemptTask, Math.max(mLastDelay, mInterval));
+
+        return true;
+    }
+
+    /**
+     * Starts the backoff over once the session is working again. Advice is
+     * kept.
+     */
+    synchronized void reset() {
+        mAttempts = 0;
+        mLastDelay = 0;
+    }
+
+    /**
+     * Cancels a pending attempt and forgets the last session's advice, for a
+     * client that is disconnecting or starting over.
+     */
+    synchronized void cancel() {
+
+        if (mScheduled) {
+            mScheduled = false;
+            mScheduler.cancel(mAttemptTask);
+        }
+
+        reset();
+
+        mAdvice = RETRY;
+        mInterval = 0;
+        mTimeout = -1;
+    }
+
+    private long nextDelay() {
+
+        long low = mBaseDelay;
+        long high = Math.max(low, Math.min(mMaxDelay, Math.max(mLastDelay, low) * 3));
+
+        long delay = low + (long) (mRandom.nextDouble() * (high - low));
+
+        return Math.min(delay, mMaxDelay);
+    }
+}
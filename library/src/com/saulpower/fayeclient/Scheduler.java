@@ -0,0 +1,21 @@
+package com.saulpower.fayeclient;
+
+/**
+ * Where the clients run callbacks, timers and serialized writes. Lets the
+ * core run on an Android looper, on a plain JVM executor or inline.
+ *
+ * @see HandlerScheduler
+ * @see ExecutorScheduler
+ * @see ImmediateScheduler
+ */
+public interface Scheduler {
+
+    void post(Runnable task);
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    /**
+     * Removes every pending run of the task, whether posted or delayed.
+     */
+    void cancel(Runnable task);
+}
@@ -0,0 +1,105 @@
+package com.saulpower.fayeclient;
+
+/**
+ * The default codec. Envelopes are written straight into the frame text
+ * and read with a pull parser that leaves {@code data} unparsed until a
+ * subscriber asks for it; only {@code data} and {@code ext} objects go
+ * through org.json.
+ */
+public class StreamingCodec implements BayeuxCodec {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    public void encode(BayeuxMessage message, StringBuilder out) {
+
+        out.append('{');
+
+        int start = out.length();
+
+        member(out, start, "channel", message.getChannel());
+        member(out, start, "clientId", message.getClientId());
+        member(out, start, "id", message.getId());
+        member(out, start, "subscription", message.getSubscription());
+        member(out, start, "connectionType", message.getConnectionType());
+        member(out, start, "version", message.getVersion());
+        member(out, start, "minimumVersion", message.getMinimumVersion());
+
+        String[] connectionTypes = message.getSupportedConnectionTypes();
+
+        if (connectionTypes != null) {
+
+            name(out, start, "supportedConnectionTypes");
+            out.append('[');
+
+            for (int i = 0; i < connectionTypes.length; i++) {
+
+                if (i > 0) {
+                    out.append(',');
+                }
+
+                quote(connectionTypes[i], out);
+            }
+
+            out.append(']');
+        }
+
+        if (message.mData != null) {
+            name(out, start, "data");
+            out.append(message.mData.toString());
+        }
+
+        if (message.getExt() != null) {
+            name(out, start, "ext");
+            out.append(message.getExt().toString());
+        }
+
+        out.append('}');
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return new BayeuxParser();
+    }
+
+    private static void member(StringBuilder out, int start, String name, String value) {
+
+        if (value == null) return;
+
+        name(out, start, name);
+        quote(value, out);
+    }
+
+    private static void name(StringBuilder out, int start, String name) {
+
+        if (out.length() > start) {
+            out.append(',');
+        }
+
+        out.append('"').append(name).append("\":");
+    }
+
+    /**
+     * Appends a JSON string literal.
+     */
+    static void quote(CharSequence value, StringBuilder out) {
+
+        out.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                out.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xF])
+                        .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+            } else {
+                out.append(c);
+            }
+        }
+
+        out.append('"');
+    }
+}
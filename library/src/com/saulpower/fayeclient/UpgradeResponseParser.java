@@ -0,0 +1,247 @@
+package com.saulpower.fayeclient;
+
+import org.apache.http.HttpException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the server's reply to the WebSocket upgrade straight out of the
+ * transport's read buffer. Only the status and the two headers the
+ * handshake needs are kept, copied into fixed arrays, so a successful
+ * upgrade allocates nothing; header names match case-insensitively.
+ */
+final class UpgradeResponseParser {
+
+    private static final byte[] ACCEPT     = "sec-websocket-accept".getBytes();
+    private static final byte[] EXTENSIONS = "sec-websocket-extensions".getBytes();
+
+    private static final int MAX_VALUE_LENGTH = 128;
+
+    private int mSearchFrom;
+
+    private int mStatusCode;
+    private final byte[] mReason = new byte[MAX_VALUE_LENGTH];
+    private int mReasonLength;
+
+    private final byte[] mAccept = new byte[MAX_VALUE_LENGTH];
+    private int mAcceptLength = -1;
+
+    private StringBuilder mExtensions;
+
+    /**
+     * Looks for the end of the header block in the buffer's readable bytes.
+     *
+     * @return True once the whole response has arrived; the buffer's
+     *         position is then just past it, at the first frame byte. False
+     *         leaves the buffer untouched until more bytes are read.
+     */
+    boolean parse(ByteBuffer buffer) throws HttpException {
+
+        int start = buffer.position();
+        int end = buffer.limit();
+
+        for (int i = Math.max(start, start + mSearchFrom - 3); i + 3 < end; i++) {
+
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+
+                reset();
+                parseStatusLine(buffer, start, parseHeaders(buffer, start, i + 2));
+                buffer.position(i + 4);
+
+                return true;
+            }
+        }
+
+        mSearchFrom = end - start;
+
+        return false;
+    }
+
+    int getStatusCode() {
+        return mStatusCode;
+    }
+
+    String getReasonPhrase() {
+        return new String(mReason, 0, mReasonLength);
+    }
+
+    boolean hasAccept() {
+        return mAcceptLength >= 0;
+    }
+
+    /**
+     * Compares the Sec-WebSocket-Accept value with the expected one, which
+     * is always ASCII.
+     */
+    boolean acceptMatches(String expected) {
+
+        if (expected.length() != mAcceptLength) return false;
+
+        for (int i = 0; i < mAcceptLength; i++) {
+            if (expected.charAt(i) != mAccept[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Every Sec-WebSocket-Extensions value joined with commas, or null when
+     * the server sent none.
+     */
+    String getExtensions() {
+        return (mExtensions == null || mExtensions.length() == 0) ? null : mExtensions.toString();
+    }
+
+    /**
+     * Forgets any partial search, for a new connection.
+     */
+    void reset() {
+
+        mSearchFrom = 0;
+        mStatusCode = 0;
+        mReasonLength = 0;
+        mAcceptLength = -1;
+
+        if (mExtensions != null) {
+            mExtensions.setLength(0);
+        }
+    }
+
+    /**
+     * Handles the header lines and returns where the status line ends.
+     */
+    private int parseHeaders(ByteBuffer buffer, int start, int end) {
+
+        int statusEnd = -1;
+        int lineStart = start;
+
+        for (int i = start; i + 1 < end; i++) {
+
+            if (buffer.get(i) != '\r' || buffer.get(i + 1) != '\n') continue;
+
+            if (statusEnd < 0) {
+                statusEnd = i;
+            } else {
+                parseHeader(buffer, lineStart, i);
+            }
+
+            lineStart = i + 2;
+            i++;
+        }
+
+        return statusEnd;
+    }
+
+    private void parseHeader(ByteBuffer buffer, int start, int end) {
+
+        int colon = start;
+
+        while (colon < end && buffer.get(colon) != ':') {
+            colon++;
+        }
+
+        if (colon == end) return;
+
+        int valueStart = colon + 1;
+        int valueEnd = end;
+
+        while (valueStart < valueEnd && isSpace(buffer.get(valueStart))) {
+            valueStart++;
+        }
+
+        while (valueEnd > valueStart && isSpace(buffer.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if (nameEquals(buffer, start, colon, ACCEPT)) {
+
+            mAcceptLength = copy(buffer, valueStart, valueEnd, mAccept);
+
+        } else if (nameEquals(buffer, start, colon, EXTENSIONS)) {
+
+            if (mExtensions == null) {
+                mExtensions = new StringBuilder();
+            } else if (mExtensions.length() > 0) {
+                mExtensions.append(", ");
+            }
+
+            for (int i = valueStart; i < valueEnd; i++) {
+                mExtensions.append((char) (buffer.get(i) & 0xFF));
+            }
+        }
+    }
+
+    /**
+     * Reads "HTTP/1.1 101 Switching Protocols" into a code and a reason.
+     */
+    private void parseStatusLine(ByteBuffer buffer, int start, int end) throws HttpException {
+
+        int i = start;
+
+        while (i < end && buffer.get(i) != ' ') {
+            i++;
+        }
+
+        if (i == start || i == end || buffer.get(start) != 'H') {
+            throw new HttpException("Received no reply from server.");
+        }
+
+        int code = 0;
+        int digits = 0;
+
+        for (i++; i < end && digits < 3; i++, digits++) {
+
+            byte b = buffer.get(i);
+
+            if (b < '0' || b > '9') break;
+
+            code = code * 10 + (b - '0');
+        }
+
+        if (digits != 3) {
+            throw new HttpException("Malformed status line.");
+        }
+
+        mStatusCode = code;
+        mReasonLength = (i < end) ? copy(buffer, i + 1, end, mReason) : 0;
+    }
+
+    private static boolean nameEquals(ByteBuffer buffer, int start, int end, byte[] lowerCaseName) {
+
+        while (end > start && isSpace(buffer.get(end - 1))) {
+            end--;
+        }
+
+        if (end - start != lowerCaseName.length) return false;
+
+        for (int i = 0; i < lowerCaseName.length; i++) {
+
+            int b = buffer.get(start + i);
+
+            // ASCII letters only differ from their lower case in bit 5
+            if (b >= 'A' && b <= 'Z') {
+                b |= 0x20;
+            }
+
+            if (b != lowerCaseName[i]) return false;
+        }
+
+        return true;
+    }
+
+    private static int copy(ByteBuffer buffer, int start, int end, byte[] into) {
+
+        int length = Math.min(end - start, into.length);
+
+        for (int i = 0; i < length; i++) {
+            into[i] = buffer.get(start + i);
+        }
+
+        return length;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,156 @@
+package com.saulpower.fayeclient;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Incrementally decodes a text message as its frames arrive. Bytes are
+ * decoded straight into a reusable char buffer, with at most a few bytes
+ * of a split character carried between writes, and malformed UTF-8 fails
+ * the message as RFC 6455 requires.
+ */
+class Utf8StreamDecoder extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    private final ByteBuffer mPending = ByteBuffer.allocate(256);
+    private CharBuffer mOutput = CharBuffer.allocate(INITIAL_CAPACITY);
+    private boolean mTaken;
+
+    @Override
+    public void write(int b) throws HybiParser.ProtocolError {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws HybiParser.ProtocolError {
+
+        resume();
+
+        // Finish any character split across the previous write before decoding in place
+        while (length > 0 && mPending.position() > 0) {
+
+            int count = Math.min(length, mPending.remaining());
+            mPending.put(data, offset, count);
+            offset += count;
+            length -= count;
+
+            mPending.flip();
+            decode(mPending, false);
+            mPending.compact();
+        }
+
+        if (length > 0) {
+
+            ByteBuffer input = ByteBuffer.wrap(data, offset, length);
+            decode(input, false);
+            mPending.put(input);
+        }
+    }
+
+    /**
+     * Completes the message and returns its text, leaving the decoder
+     * ready for the next one.
+     */
+    public String finish() throws HybiParser.ProtocolError {
+
+        end();
+
+        mOutput.flip();
+        String text = mOutput.toString();
+
+        reset();
+
+        return text;
+    }
+
+    /**
+     * Marks the end of the message's bytes, failing if it stops part way
+     * through a character.
+     */
+    public void end() throws HybiParser.ProtocolError {
+
+        resume();
+
+        mPending.flip();
+        decode(mPending, true);
+
+        while (mDecoder.flush(mOutput).isOverflow()) {
+            grow(INITIAL_CAPACITY);
+        }
+    }
+
+    /**
+     * Returns the chars decoded since the last call, for streaming a message
+     * out as it arrives. The buffer is only valid until the next write.
+     */
+    public CharBuffer takeChars() {
+
+        resume();
+
+        mOutput.flip();
+        mTaken = true;
+
+        return mOutput;
+    }
+
+    /**
+     * Discards any partially decoded message.
+     */
+    public void reset() {
+
+        mDecoder.reset();
+        mPending.clear();
+        mTaken = false;
+
+        // Keep a modest buffer between messages rather than the largest one ever seen
+        if (mOutput.capacity() > MAX_RETAINED_CAPACITY) {
+            mOutput = CharBuffer.allocate(INITIAL_CAPACITY);
+        } else {
+            mOutput.clear();
+        }
+    }
+
+    private void resume() {
+
+        if (mTaken) {
+            mOutput.clear();
+            mTaken = false;
+        }
+    }
+
+    private void decode(ByteBuffer input, boolean endOfInput) throws HybiParser.ProtocolError {
+
+        while (true) {
+
+            CoderResult result = mDecoder.decode(input, mOutput, endOfInput);
+
+            if (result.isOverflow()) {
+                grow(input.remaining());
+            } else if (result.isError()) {
+                throw new HybiParser.ProtocolError("Invalid UTF-8 in text message");
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void grow(int needed) {
+
+        CharBuffer grown = CharBuffer.allocate(Math.max(mOutput.capacity() * 2, mOutput.position() + needed));
+
+        mOutput.flip();
+        grown.put(mOutput);
+        mOutput = grown;
+    }
+}
@@ -0,0 +1,52 @@
+package com.saulpower.fayeclient;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to JDK 21 virtual threads from code that still builds for older
+ * platforms. Looked up reflectively, so on Android and older JVMs this
+ * simply reports that they are unavailable.
+ */
+public final class VirtualThreads {
+
+    private static final String TAG = "VirtualThreads";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * A factory for virtual threads named {@code websocket-0},
+     * {@code websocket-1} and so on, for
+     * {@link WebSocketClient#setThreadFactory(ThreadFactory)}.
+     *
+     * @return The factory, or null when the runtime has no virtual threads
+     */
+    public static ThreadFactory factory() {
+
+        try {
+
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "websocket-", 0L);
+
+            Method factory = builderClass.getMethod("factory");
+
+            return (ThreadFactory) factory.invoke(builder);
+
+        } catch (ClassNotFoundException ex) {
+            return null;
+        } catch (NoSuchMethodException ex) {
+            return null;
+        } catch (Exception ex) {
+            FayeLog.w(TAG, "Virtual threads unavailable", ex);
+            return null;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return factory() != null;
+    }
+}
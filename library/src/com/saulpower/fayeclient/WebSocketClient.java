@@ -1,180 +1,506 @@
 package com.saulpower.fayeclient;
 
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.text.TextUtils;
-import android.util.Log;
-import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
-import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.message.BasicLineParser;
 import org.apache.http.message.BasicNameValuePair;
 
-import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class WebSocketClient {
+public class WebSocketClient implements FayeTransport {
 
     private static final String TAG = "WebSocketClient";
+    private static final int FRAME_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final int SESSION_CACHE_SIZE = 32;
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
     private static TrustManager[] sTrustManagers;
-    private final Object mSendLock = new Object();
+    private static SSLContext sSSLContext;
+    private static TrustManager[] sContextTrustManagers;
+    private static int sSessionCacheSize = SESSION_CACHE_SIZE;
+    private static int sSessionTimeout = SESSION_TIMEOUT;
+    private static final Histogram sHandshakeTimes = new Histogram();
+
+    // Makes the writer thread when no factory is set
+    private static final ThreadFactory WRITER_THREADS = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "websocket-thread");
+        }
+    };
+
+    // Not a monitor, so a virtual writer thread blocked in a write does not pin its carrier
+    private final ReentrantLock mSendLock = new ReentrantLock();
     private URI mURI;
     private Listener mListener;
-    private Socket mSocket;
+    private volatile Socket mSocket;
+    private OutputStream mOutputStream;
     private Thread mThread;
-    private HandlerThread mHandlerThread;
-    private Handler mHandler;
-    private Handler mUiHandler;
+    private ThreadFactory mThreadFactory;
+    private ScheduledExecutorService mWriterExecutor;
+    private volatile Scheduler mWriter;
+    private volatile Thread mWriterThread;
+    private Scheduler mCallbacks;
     private List<BasicNameValuePair> mExtraHeaders;
     private HybiParser mParser;
+    private BufferPool mBufferPool = new BufferPool(FRAME_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private PerMessageDeflate mPerMessageDeflate;
+    private volatile StreamingListener mStreamingListener;
+    private NioReactor mReactor;
+    private NioConnection mConnection;
+    private HappyEyeballsConnector mConnector = new HappyEyeballsConnector();
+    private final OutboundQueue mOutbound = new OutboundQueue();
+    private final List<ByteBuffer> mWriteBatch = new ArrayList<ByteBuffer>();
+    private final UpgradeResponseParser mUpgradeResponse = new UpgradeResponseParser();
+    private long mHandshakeStartNanos;
+    private long mHandshakeStartMillis;
+    private volatile long mHandshakeMicros = -1;
+    private volatile boolean mSessionResumed;
+
+    private final Runnable mDrainTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            mWriterThread = Thread.currentThread();
+
+            long bytes = mOutbound.drainTo(mWriteBatch);
+
+            try {
+
+                // One flush for the whole batch: a single write, and a single TLS record where it fits
+                mSendLock.lock();
+
+                try {
+
+                    for (ByteBuffer frame : mWriteBatch) {
+                        mOutputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    }
+
+                    mOutputStream.flush();
+
+                } finally {
+                    mSendLock.unlock();
+                }
+
+            } catch (Exception e) {
+                onError(e);
+            } finally {
+
+                for (ByteBuffer frame : mWriteBatch) {
+                    mBufferPool.release(frame);
+                }
+
+                mWriteBatch.clear();
+                mOutbound.written(bytes);
+            }
+        }
+    };
+
+    private final Runnable mPostDrainTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            Scheduler writer = mWriter;
+
+            // Gone once disconnect has torn down a writer of our own
+            if (writer != null) {
+                writer.post(mDrainTask);
+            }
+        }
+    };
 
     public WebSocketClient(Handler uiHandler, URI uri, Listener listener, List<BasicNameValuePair> extraHeaders) {
-        mUiHandler = uiHandler;
+        this(new HandlerScheduler(uiHandler), uri, listener, extraHeaders);
+    }
+
+    /**
+     * @param callbacks Where errors are reported to the listener
+     */
+    public WebSocketClient(Scheduler callbacks, URI uri, Listener listener, List<BasicNameValuePair> extraHeaders) {
+        mCallbacks = callbacks;
         mURI = uri;
         mListener = listener;
         mExtraHeaders = extraHeaders;
         mParser = new HybiParser(this);
-
-        mHandlerThread = new HandlerThread("websocket-thread");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
     }
 
     public static void setTrustManagers(TrustManager[] tm) {
         sTrustManagers = tm;
     }
 
+    /**
+     * Size and lifetime of the TLS session cache shared by all clients.
+     * Reconnects within the timeout resume the cached session instead of
+     * running a full handshake.
+     *
+     * @param cacheSize The number of sessions kept, 0 for no limit
+     * @param timeoutSeconds How long a session stays resumable, 0 for no limit
+     */
+    public static synchronized void setSessionCache(int cacheSize, int timeoutSeconds) {
+
+        sSessionCacheSize = cacheSize;
+        sSessionTimeout = timeoutSeconds;
+
+        if (sSSLContext != null) {
+            sSSLContext.getClientSessionContext().setSessionCacheSize(cacheSize);
+            sSSLContext.getClientSessionContext().setSessionTimeout(timeoutSeconds);
+        }
+    }
+
+    /**
+     * TLS handshake times across all clients, in microseconds.
+     */
+    public static Histogram getHandshakeTimes() {
+        return sHandshakeTimes;
+    }
+
+    /**
+     * How long this connection's TLS handshake took, in microseconds, or -1
+     * before one has completed.
+     */
+    public long getHandshakeMicros() {
+        return mHandshakeMicros;
+    }
+
+    /**
+     * Whether this connection's TLS handshake resumed an earlier session.
+     */
+    public boolean isSessionResumed() {
+        return mSessionResumed;
+    }
+
     public Listener getListener() {
         return mListener;
     }
 
-    public void connect() {
+    /**
+     * The pool outbound text frames are encoded into. Callers encoding their
+     * own frames with a {@link FrameEncoder} may share it.
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
 
-        if (mThread != null && mThread.isAlive()) {
-            return;
-        }
+    public void setBufferPool(BufferPool bufferPool) {
+        mBufferPool = bufferPool;
+    }
 
-        mThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
+    OutboundQueue getOutboundQueue() {
+        return mOutbound;
+    }
 
-                try {
+    /**
+     * How many frames each write pass coalesced, for tuning under bursty
+     * publish load.
+     */
+    public Histogram getBatchSizes() {
+        return mOutbound.getBatchSizes();
+    }
 
-                    int port = (mURI.getPort() != -1) ? mURI.getPort() : (mURI.getScheme().equals("wss") ? 443 : 80);
+    /**
+     * Bound the bytes waiting to be written. Once a send would take the
+     * backlog past {@code high}, the {@link OverflowPolicy} applies and the
+     * client reports itself unwritable until the backlog is back down to
+     * {@code low}.
+     */
+    public void setWriteBufferWaterMarks(int low, int high) {
+        mOutbound.setWaterMarks(low, high);
+    }
 
-                    String path = TextUtils.isEmpty(mURI.getPath()) ? "/" : mURI.getPath();
-                    if (!TextUtils.isEmpty(mURI.getQuery())) {
-                        path += "?" + mURI.getQuery();
-                    }
+    /**
+     * What {@link #send(CharSequence)} does when the write buffer is full.
+     * Defaults to {@link OverflowPolicy#REJECT}.
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        mOutbound.setOverflowPolicy(policy);
+    }
 
-                    String originScheme = mURI.getScheme().equals("wss") ? "https" : "http";
-                    URI origin = new URI(originScheme, "//" + mURI.getHost(), null);
+    /**
+     * Called when the client becomes unwritable and again once it has
+     * drained, on whichever thread caused the change.
+     */
+    public void setWritabilityListener(WritabilityListener listener) {
+        mOutbound.setWritabilityListener(listener);
+    }
 
-                    SocketFactory factory = mURI.getScheme().equals("wss")
-                            ? getSSLSocketFactory() : SocketFactory.getDefault();
+    /**
+     * Whether the write buffer has room; senders that can wait should hold
+     * off while this is false.
+     */
+    @Override
+    public boolean isWritable() {
+        return mOutbound.isWritable();
+    }
 
-                    mSocket = factory.createSocket(mURI.getHost(), port);
+    /**
+     * Create the blocking transport's reader and writer threads from this
+     * factory instead of two platform threads of their own. On
+     * JDK 21 and later, pass {@link VirtualThreads#factory()} to run each
+     * connection on two virtual threads, so tens of thousands of clients
+     * share a few carrier threads. Must be set before connecting; ignored
+     * when a {@link NioReactor} is set.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        mThreadFactory = threadFactory;
+    }
 
-                    String secret = createSecret();
+    /**
+     * Run the blocking transport's writes on this scheduler instead of a
+     * thread of the client's own. It must run tasks one at a time and in
+     * order, and it is left running on disconnect. Must be set before
+     * connecting.
+     */
+    public void setWriteScheduler(Scheduler writer) {
+        mWriter = writer;
+    }
 
-                    PrintWriter out = new PrintWriter(mSocket.getOutputStream());
-                    out.print("GET " + path + " HTTP/1.1\r\n");
-                    out.print("Host: " + mURI.getHost() + "\r\n");
-                    out.print("Upgrade: websocket\r\n");
-                    out.print("Connection: Upgrade\r\n");
-                    out.print("Sec-WebSocket-Key: " + secret + "\r\n");
-                    out.print("Sec-WebSocket-Version: 13\r\n");
-                    out.print("Origin: " + origin.toString() + "\r\n");
-
-                    if (mExtraHeaders != null) {
-                        for (NameValuePair pair : mExtraHeaders) {
-                            out.print(String.format("%s: %s\r\n", pair.getName(), pair.getValue()));
-                        }
-                    }
+    /**
+     * How the TCP connection is opened: timeouts, and how eagerly IPv6 and
+     * IPv4 addresses are raced. On the NIO transport the total timeout also
+     * bounds the upgrade.
+     */
+    public void setConnector(HappyEyeballsConnector connector) {
+        mConnector = connector;
+    }
 
-                    out.print("\r\n");
-                    out.flush();
+    HappyEyeballsConnector getConnector() {
+        return mConnector;
+    }
 
-                    HybiParser.HappyDataInputStream stream =
-                            new HybiParser.HappyDataInputStream(mSocket.getInputStream());
+    StreamingListener getStreamingListener() {
+        return mStreamingListener;
+    }
 
-                    // Read HTTP response status line.
-                    StatusLine statusLine = parseStatusLine(readLine(stream));
+    /**
+     * Receive data messages piece by piece as their bytes arrive instead of
+     * as whole messages through the {@link Listener}. Memory use then stays
+     * constant however large a message is. Pass null to go back to whole
+     * messages; the switch happens at the next message.
+     */
+    public void setStreamingListener(StreamingListener streamingListener) {
+        mStreamingListener = streamingListener;
+    }
 
-                    if (statusLine == null) {
-                        throw new HttpException("Received no reply from server.");
-                    } else if (statusLine.getStatusCode() != HttpStatus.SC_SWITCHING_PROTOCOLS) {
-                        throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
-                    }
+    /**
+     * Offer the permessage-deflate extension when connecting. Pass null
+     * (the default) to leave messages uncompressed.
+     */
+    public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+        mPerMessageDeflate = perMessageDeflate;
+    }
 
-                    // Read HTTP response headers.
-                    String line;
-                    boolean validated = false;
+    /**
+     * Serve this client from a shared {@link NioReactor} instead of giving it
+     * its own reader and writer threads. Must be set before connecting.
+     */
+    public void setReactor(NioReactor reactor) {
+        mReactor = reactor;
+    }
 
-                    while (!TextUtils.isEmpty(line = readLine(stream))) {
+    @Override
+    public void connect() {
 
-                        Header header = parseHeader(line);
+        mOutbound.open();
 
-                        if (header.getName().equals("Sec-WebSocket-Accept")) {
+        if (mReactor != null) {
 
-                            String expected = createSecretValidation(secret);
-                            String actual = header.getValue().trim();
+            if (mConnection == null) {
+                mConnection = new NioConnection(this, mReactor);
+                mConnection.open();
+            }
 
-                            if (!expected.equals(actual)) {
-                                throw new HttpException("Bad Sec-WebSocket-Accept header value.");
-                            }
+            return;
+        }
 
-                            validated = true;
-                        }
-                    }
+        if (mThread != null && mThread.isAlive()) {
+            return;
+        }
+
+        if (mWriter == null) {
+            ThreadFactory writerThreads = (mThreadFactory != null) ? mThreadFactory : WRITER_THREADS;
+            mWriterExecutor = Executors.newSingleThreadScheduledExecutor(writerThreads);
+            mWriter = new ExecutorScheduler(mWriterExecutor);
+        }
+
+        mOutbound.setDrainTrigger(mPostDrainTask);
+
+        Runnable reader = new Runnable() {
+            @Override
+            public void run() {
 
-                    if (!validated) {
-                        throw new HttpException("No Sec-WebSocket-Accept header.");
+                try {
+
+                    Socket socket = mConnector.connect(getHost(), getPort());
+
+                    // Layered over the raced connection; host and port still key the TLS session cache
+                    mSocket = isSecure()
+                            ? getSSLSocketFactory().createSocket(socket, getHost(), getPort(), true)
+                            : socket;
+
+                    if (mSocket instanceof SSLSocket) {
+                        handshake((SSLSocket) mSocket);
                     }
 
+                    mOutputStream = new BufferedOutputStream(mSocket.getOutputStream(), WRITE_BUFFER_SIZE);
+
+                    String secret = createSecret();
+
+                    PrintWriter out = new PrintWriter(mOutputStream);
+                    out.print(createUpgradeRequest(secret));
+                    out.flush();
+
+                    InputStream stream = mSocket.getInputStream();
+
+                    readUpgrade(stream);
+                    acceptUpgrade(mUpgradeResponse, secret);
+
                     mListener.onConnect();
 
-                    // Now decode websocket frames.
+                    // Now decode websocket frames, starting with any that arrived with the response.
                     mParser.start(stream);
 
                 } catch (EOFException ex) {
 
-                    Log.e(TAG, "WebSocket EOF!", ex);
+                    FayeLog.e(TAG, "WebSocket EOF!", ex);
                     onError(ex);
 
                 } catch (SSLException ex) {
 
                     // Connection reset by peer
-                    Log.e(TAG, "Websocket SSL error!", ex);
+                    FayeLog.e(TAG, "Websocket SSL error!", ex);
                     onError(ex);
 
                 } catch (Exception ex) {
                     onError(ex);
+                } finally {
+                    // Disconnecting closes the socket, which ends up here; this thread is the one that inflates
+                    mParser.setDeflate(null);
                 }
             }
-        });
+        };
+
+        mThread = (mThreadFactory != null) ? mThreadFactory.newThread(reader) : new Thread(reader);
         mThread.start();
     }
 
-    private void onError(final Exception ex) {
+    boolean isSecure() {
+        return mURI.getScheme().equals("wss");
+    }
+
+    String getHost() {
+        return mURI.getHost();
+    }
+
+    int getPort() {
+        return (mURI.getPort() != -1) ? mURI.getPort() : (isSecure() ? 443 : 80);
+    }
+
+    UpgradeResponseParser getUpgradeResponse() {
+        return mUpgradeResponse;
+    }
+
+    HybiParser getParser() {
+        return mParser;
+    }
+
+    String createUpgradeRequest(String secret) throws URISyntaxException {
+
+        String path = isEmpty(mURI.getPath()) ? "/" : mURI.getPath();
+        if (!isEmpty(mURI.getQuery())) {
+            path += "?" + mURI.getQuery();
+        }
+
+        String originScheme = isSecure() ? "https" : "http";
+        URI origin = new URI(originScheme, "//" + mURI.getHost(), null);
+
+        StringBuilder out = new StringBuilder();
+        out.append("GET " + path + " HTTP/1.1\r\n");
+        out.append("Host: " + mURI.getHost() + "\r\n");
+        out.append("Upgrade: websocket\r\n");
+        out.append("Connection: Upgrade\r\n");
+        out.append("Sec-WebSocket-Key: " + secret + "\r\n");
+        out.append("Sec-WebSocket-Version: 13\r\n");
+        out.append("Origin: " + origin.toString() + "\r\n");
+
+        if (mPerMessageDeflate != null) {
+            out.append("Sec-WebSocket-Extensions: " + mPerMessageDeflate.offer() + "\r\n");
+        }
+
+        if (mExtraHeaders != null) {
+            for (NameValuePair pair : mExtraHeaders) {
+                out.append(String.format("%s: %s\r\n", pair.getName(), pair.getValue()));
+            }
+        }
+
+        out.append("\r\n");
+
+        return out.toString();
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    /**
+     * Validates the upgrade response, given as its status line followed by
+     * its header lines, and negotiates extensions.
+     */
+    void acceptUpgrade(UpgradeResponseParser response, String secret) throws IOException, HttpException {
+
+        if (response.getStatusCode() != HttpStatus.SC_SWITCHING_PROTOCOLS) {
+            throw new HttpResponseException(response.getStatusCode(), response.getReasonPhrase());
+        }
+
+        if (!response.hasAccept()) {
+            throw new HttpException("No Sec-WebSocket-Accept header.");
+        }
+
+        if (!response.acceptMatches(createSecretValidation(secret))) {
+            throw new HttpException("Bad Sec-WebSocket-Accept header value.");
+        }
 
-        mUiHandler.post(new Runnable() {
+        String extensions = response.getExtensions();
+
+        if (extensions != null && mPerMessageDeflate == null) {
+            throw new HttpException("Unexpected Sec-WebSocket-Extensions header.");
+        }
+
+        mParser.setDeflate(mPerMessageDeflate != null ? mPerMessageDeflate.accept(extensions) : null);
+    }
+
+    void onError(final Exception ex) {
+
+        mCallbacks.post(new Runnable() {
 
             @Override
             public void run() {
@@ -199,82 +525,110 @@ public class WebSocketClient {
         return Base64.encodeToString(md.digest(), Base64.DEFAULT).trim();
     }
 
+    @Override
     public void disconnect() {
 
+        if (mConnection != null) {
+            mConnection.close();
+            mConnection = null;
+            return;
+        }
+
         if (mSocket != null) {
 
-            mHandler.post(new Runnable() {
+            final Socket socket = mSocket;
+            Scheduler writer = mWriter;
+            final ScheduledExecutorService writerExecutor = mWriterExecutor;
+
+            // Already disconnecting, the writer on its way out closing the socket
+            if (writer == null) return;
+
+            mOutbound.close(mBufferPool);
+
+            // A writer of our own dies with the connection, so the next connect must start a fresh one
+            if (writerExecutor != null) {
+                mWriter = null;
+                mWriterExecutor = null;
+            }
+
+            writer.post(new Runnable() {
 
                 @Override
                 public void run() {
 
                     try {
 
-                        if (mSocket == null) return;
+                        // Cleared first: once closed, the reader exits and a reconnect may set the next socket
+                        if (mSocket == socket) {
+                            mSocket = null;
+                        }
 
-                        mSocket.close();
-                        mSocket = null;
+                        socket.close();
 
-                        Log.i(TAG, "socket closed");
+                        FayeLog.i(TAG, "socket closed");
 
                     } catch (IOException ex) {
-                        Log.e(TAG, "Error while disconnecting", ex);
+                        FayeLog.e(TAG, "Error while disconnecting", ex);
                         onError(ex);
+                    } finally {
+                        if (writerExecutor != null) {
+                            writerExecutor.shutdown();
+                        }
                     }
                 }
             });
         }
     }
 
-    public void send(String data) {
-        sendFrame(mParser.frame(data));
+    /**
+     * Queues a text message.
+     *
+     * @return False if the message was refused because the client is not
+     *         connected or its write buffer is full
+     */
+    @Override
+    public boolean send(CharSequence data) {
+        return sendFrame(mParser.frame(data, mBufferPool));
     }
 
-    public void send(byte[] data) {
-        sendFrame(mParser.frame(data));
-    }
-
-    private StatusLine parseStatusLine(String line) {
-
-        if (TextUtils.isEmpty(line)) {
-            return null;
-        }
-
-        return BasicLineParser.parseStatusLine(line, new BasicLineParser());
+    public boolean send(byte[] data) {
+        return sendFrame(mParser.frame(data));
     }
 
-    private Header parseHeader(String line) {
-        return BasicLineParser.parseHeader(line, new BasicLineParser());
-    }
+    /**
+     * Reads the upgrade response into the frame decoder's read buffer,
+     * leaving whatever followed it there for {@link HybiParser#start}.
+     */
+    private void readUpgrade(InputStream stream) throws IOException, HttpException {
 
-    // Can't use BufferedReader because it buffers past the HTTP data.
-    private String readLine(HybiParser.HappyDataInputStream reader) throws IOException {
+        ByteBuffer buffer = mParser.getReadBuffer();
+        buffer.clear();
 
-        int readChar = reader.read();
+        mUpgradeResponse.reset();
 
-        if (readChar == -1) {
-            return null;
-        }
+        while (true) {
 
-        StringBuilder string = new StringBuilder("");
+            if (!buffer.hasRemaining()) {
+                throw new HttpException("Upgrade response too large.");
+            }
 
-        while (readChar != '\n') {
+            int count = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
 
-            if (readChar != '\r') {
-                string.append((char) readChar);
+            if (count == -1) {
+                throw new HttpException("Received no reply from server.");
             }
 
-            readChar = reader.read();
+            buffer.position(buffer.position() + count);
+            buffer.flip();
 
-            if (readChar == -1) {
-                return null;
-            }
-        }
+            if (mUpgradeResponse.parse(buffer)) return;
 
-        return string.toString();
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
     }
 
-    private String createSecret() {
+    String createSecret() {
 
         byte[] nonce = new byte[16];
 
@@ -285,37 +639,93 @@ public class WebSocketClient {
         return Base64.encodeToString(nonce, Base64.DEFAULT).trim();
     }
 
-    void sendFrame(final byte[] frame) {
+    boolean sendFrame(final byte[] frame) {
+        return frame != null && sendFrame(ByteBuffer.wrap(frame));
+    }
+
+    boolean sendFrame(final ByteBuffer frame) {
+
+        if (frame == null) return false;
+
+        if (mConnection != null) {
+            return mConnection.send(frame);
+        }
 
         if (mSocket != null) {
+            // The writer thread must never wait on itself
+            return mOutbound.add(frame, mBufferPool, Thread.currentThread() != mWriterThread);
+        }
 
-            mHandler.post(new Runnable() {
+        mBufferPool.release(frame);
 
-                @Override
-                public void run() {
+        return false;
+    }
 
-                    try {
+    private SSLSocketFactory getSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+        return getSSLContext().getSocketFactory();
+    }
 
-                        synchronized (mSendLock) {
-                            OutputStream outputStream = mSocket.getOutputStream();
-                            outputStream.write(frame);
-                            outputStream.flush();
-                        }
+    /**
+     * The context shared by every client with the same trust managers. Its
+     * session cache is what lets a reconnect resume rather than redo the
+     * handshake.
+     */
+    static synchronized SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
 
-                    } catch (Exception e) {
-                        onError(e);
-                    }
-                }
-            });
+        if (sSSLContext == null || sContextTrustManagers != sTrustManagers) {
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, sTrustManagers, null);
+
+            context.getClientSessionContext().setSessionCacheSize(sSessionCacheSize);
+            context.getClientSessionContext().setSessionTimeout(sSessionTimeout);
+
+            sSSLContext = context;
+            sContextTrustManagers = sTrustManagers;
         }
+
+        return sSSLContext;
     }
 
-    private SSLSocketFactory getSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+    /**
+     * Asks for RFC 5077 session tickets on platforms whose TLS provider
+     * supports them but leaves them off by default, as Android's does.
+     */
+    static void enableSessionTickets(Object socketOrEngine) {
+
+        try {
+            socketOrEngine.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(socketOrEngine, true);
+        } catch (NoSuchMethodException ex) {
+            // Tickets are on by default or unsupported
+        } catch (Exception ex) {
+            FayeLog.w(TAG, "Could not enable session tickets", ex);
+        }
+    }
 
-        SSLContext context = SSLContext.getInstance("TLS");
-        context.init(null, sTrustManagers, null);
+    private void handshake(SSLSocket socket) throws IOException {
 
-        return context.getSocketFactory();
+        enableSessionTickets(socket);
+
+        onHandshakeStarted();
+        socket.startHandshake();
+        onHandshakeFinished(socket.getSession());
+    }
+
+    void onHandshakeStarted() {
+        mHandshakeStartNanos = System.nanoTime();
+        mHandshakeStartMillis = System.currentTimeMillis();
+    }
+
+    void onHandshakeFinished(SSLSession session) {
+
+        mHandshakeMicros = (System.nanoTime() - mHandshakeStartNanos) / 1000;
+
+        // A resumed session was created by an earlier handshake
+        mSessionResumed = session.getCreationTime() < mHandshakeStartMillis;
+
+        sHandshakeTimes.record(mHandshakeMicros);
+
+        FayeLog.i(TAG, "TLS handshake took " + mHandshakeMicros + "us" + (mSessionResumed ? ", resumed" : ""));
     }
 
     public interface Listener {
@@ -329,4 +739,48 @@ public class WebSocketClient {
 
         void onError(Exception error);
     }
+
+    /**
+     * What to do with a send that would overfill the write buffer.
+     */
+    public enum OverflowPolicy {
+
+        /** Refuse the new message; send returns false. */
+        REJECT,
+
+        /** Wait for the writer to make room. Sends from the writer itself are accepted. */
+        BLOCK,
+
+        /** Discard the oldest messages not yet being written. */
+        DROP_OLDEST
+    }
+
+    public interface WritabilityListener {
+
+        void onWritabilityChanged(boolean writable);
+    }
+
+    public interface StreamingListener {
+
+        /**
+         * A new data message has started.
+         *
+         * @param text Whether chunks will arrive as text or binary
+         */
+        void onMessageStart(boolean text);
+
+        /**
+         * Decoded text of the current message. The buffer is reused once
+         * this returns.
+         */
+        void onTextChunk(CharSequence chunk);
+
+        /**
+         * Payload bytes of the current binary message. The array is reused
+         * once this returns.
+         */
+        void onBinaryChunk(byte[] data, int offset, int length);
+
+        void onMessageEnd();
+    }
 }
@@ -0,0 +1,101 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two codecs on {@link FayeTraffic}: encoding a /meta/connect and a
+ * publish, and decoding an inbound frame the way FayeClient does, reading
+ * the envelope of every message but the data of none, as when no listener
+ * needs it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BayeuxCodecBenchmark {
+
+    @Param({"streaming", "orgjson"})
+    public String codec;
+
+    private final BayeuxMessage mMessage = new BayeuxMessage();
+    private final StringBuilder mOut = new StringBuilder();
+
+    private BayeuxCodec mCodec;
+    private BayeuxCodec.Decoder mDecoder;
+    private BayeuxMessage mConnect;
+    private BayeuxMessage mPublish;
+    private List<String> mFrames;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws JSONException {
+
+        mCodec = codec.equals("streaming") ? new StreamingCodec() : new OrgJsonCodec();
+        mDecoder = mCodec.newDecoder();
+        mFrames = FayeTraffic.frames(100);
+
+        mConnect = new BayeuxMessage();
+        mConnect.setChannel("/meta/connect");
+        mConnect.setClientId("q1hd5kyd3ab7u2y8yv7t3jq9mffq2g7");
+        mConnect.setConnectionType("websocket");
+        mConnect.setId("41");
+
+        JSONObject delivery = new JSONObject(FayeTraffic.delivery(new Random(42), 1));
+
+        mPublish = new BayeuxMessage();
+        mPublish.setChannel(delivery.getString("channel"));
+        mPublish.setClientId("q1hd5kyd3ab7u2y8yv7t3jq9mffq2g7");
+        mPublish.setId("42");
+        mPublish.setData(delivery.getJSONObject("data"));
+    }
+
+    @Benchmark
+    public StringBuilder encodeConnect() throws IOException {
+
+        mOut.setLength(0);
+        mCodec.encode(mConnect, mOut);
+
+        return mOut;
+    }
+
+    @Benchmark
+    public StringBuilder encodePublish() throws IOException {
+
+        mOut.setLength(0);
+        mCodec.encode(mPublish, mOut);
+
+        return mOut;
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+
+        mDecoder.begin(mFrames.get(mNext++ % mFrames.size()));
+
+        while (mDecoder.next(mMessage)) {
+            blackhole.consume(mMessage.getChannel());
+            blackhole.consume(mMessage.getId());
+            blackhole.consume(mMessage.hasData());
+        }
+    }
+}
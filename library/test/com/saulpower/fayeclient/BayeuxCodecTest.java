@@ -0,0 +1,89 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the streaming codec and the org.json one are
+ * interchangeable.
+ */
+public class BayeuxCodecTest {
+
+    private final BayeuxCodec mStreaming = new StreamingCodec();
+    private final BayeuxCodec mOrgJson = new OrgJsonCodec();
+
+    @Test
+    public void encodeTheSameMessages() throws IOException, JSONException {
+
+        BayeuxMessage handshake = new BayeuxMessage();
+        handshake.setChannel("/meta/handshake");
+        handshake.setVersion("1.0", "1.0beta");
+        handshake.setSupportedConnectionTypes("websocket", "long-polling");
+
+        BayeuxMessage publish = new BayeuxMessage();
+        publish.setChannel("/chat/\"quoted\"\n");
+        publish.setClientId("abc");
+        publish.setId("12");
+        publish.setData(new JSONObject("{\"text\":\"h\\u00e9llo\",\"n\":[1,2]}"));
+        publish.setExt(new JSONObject("{\"auth\":\"token\"}"));
+
+        for (BayeuxMessage message : new BayeuxMessage[] {handshake, publish}) {
+            assertEquals(encode(mOrgJson, message).toString(), encode(mStreaming, message).toString());
+        }
+    }
+
+    @Test
+    public void decodeTheSameMessages() throws IOException, JSONException {
+
+        StringBuilder frame = new StringBuilder("[");
+
+        for (String traffic : FayeTraffic.frames(20)) {
+            frame.append(traffic, 1, traffic.length() - 1).append(',');
+        }
+
+        frame.append("{\"channel\":\"/a\",\"id\":\"x\",\"data\":[1,2]},{\"channel\":\"/a\",\"data\":\"x\\\"y\"},")
+                .append("{\"channel\":\"/a\",\"data\":5},{\"channel\":\"/a\",\"data\":null},")
+                .append("{\"channel\":\"/meta/subscribe\",\"successful\":false,\"error\":\"403:/a:Forbidden\"}]");
+
+        assertEquals(decode(mOrgJson, frame), decode(mStreaming, frame));
+    }
+
+    private static JSONObject encode(BayeuxCodec codec, BayeuxMessage message) throws IOException, JSONException {
+
+        StringBuilder out = new StringBuilder();
+        codec.encode(message, out);
+
+        return new JSONObject(out.toString());
+    }
+
+    /**
+     * Every member the client reads, one message per line.
+     */
+    private static String decode(BayeuxCodec codec, CharSequence frame) throws IOException, JSONException {
+
+        BayeuxCodec.Decoder decoder = codec.newDecoder();
+        BayeuxMessage message = new BayeuxMessage();
+        StringBuilder out = new StringBuilder();
+
+        decoder.begin(frame);
+
+        while (decoder.next(message)) {
+
+            JSONObject data = message.getData();
+
+            out.append(message.getChannel()).append(' ').append(message.isSuccessful()).append(' ')
+                    .append(message.getClientId()).append(' ').append(message.getId()).append(' ')
+                    .append(message.getSubscription()).append(' ').append(message.getError()).append(' ')
+                    .append(message.getAdviceReconnect()).append(' ').append(message.getAdviceInterval()).append(' ')
+                    .append(message.getAdviceTimeout()).append(' ').append(message.hasData()).append(' ')
+                    .append(data != null ? data.toString() : null).append('\n');
+        }
+
+        return out.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BayeuxParserTest {
+
+    private final BayeuxParser mParser = new BayeuxParser();
+    private final BayeuxMessage mMessage = new BayeuxMessage();
+
+    @Test
+    public void readsTheEnvelope() throws IOException, JSONException {
+
+        mParser.begin("[{\"channel\":\"/meta/connect\",\"successful\":true,\"clientId\":\"abc\",\"id\":\"7\","
+                + "\"advice\":{\"reconnect\":\"retry\",\"interval\":0,\"timeout\":45000,\"hosts\":[\"a\"]}}]");
+
+        assertTrue(mParser.next(mMessage));
+        assertEquals("/meta/connect", mMessage.getChannel());
+        assertTrue(mMessage.isSuccessful());
+        assertEquals("abc", mMessage.getClientId());
+        assertEquals("7", mMessage.getId());
+        assertEquals("retry", mMessage.getAdviceReconnect());
+        assertEquals(0, mMessage.getAdviceInterval());
+        assertEquals(45000, mMessage.getAdviceTimeout());
+        assertFalse(mMessage.hasData());
+
+        assertFalse(mParser.next(mMessage));
+    }
+
+    @Test
+    public void keepsDataAsASpan() throws IOException, JSONException {
+
+        String data = "{\"text\":\"} ] \\\" {\",\"list\":[1,{\"a\":[]}],\"n\":null}";
+
+        mParser.begin(" { \"data\" : " + data + " , \"channel\" : \"/chat\" } ");
+
+        assertTrue(mParser.next(mMessage));
+        assertEquals("/chat", mMessage.getChannel());
+        assertEquals(data, mMessage.getRawData().toString());
+        assertEquals("} ] \" {", mMessage.getData().getString("text"));
+
+        assertFalse(mParser.next(mMessage));
+    }
+
+    @Test
+    public void keepsDataOfAnyType() throws IOException, JSONException {
+
+        mParser.begin("[{\"data\":\"text\"},{\"data\":[1,2]},{\"data\":42},{\"data\":null}]");
+
+        String[] expected = {"\"text\"", "[1,2]", "42", "null"};
+
+        for (String raw : expected) {
+            assertTrue(mParser.next(mMessage));
+            assertTrue(mMessage.hasData());
+            assertEquals(raw, mMessage.getRawData().toString());
+            assertNull(mMessage.getData());
+        }
+    }
+
+    @Test
+    public void skipsMembersItDoesNotRoute() throws IOException {
+
+        mParser.begin("[{\"ext\":{\"auth\":{\"token\":\"x,y}\"}},\"version\":\"1.0\",\"channel\":\"/a\","
+                + "\"supportedConnectionTypes\":[\"websocket\",\"long-polling\"],\"successful\":false}]");
+
+        assertTrue(mParser.next(mMessage));
+        assertEquals("/a", mMessage.getChannel());
+        assertFalse(mMessage.isSuccessful());
+        assertNull(mMessage.getExt());
+    }
+
+    @Test
+    public void unescapesStrings() throws IOException {
+
+        mParser.begin("{\"channel\":\"/a\\/b\",\"error\":\"402:x:\\u00e9\\n\\\"\"}");
+
+        assertTrue(mParser.next(mMessage));
+        assertEquals("/a/b", mMessage.getChannel());
+        assertEquals("402:x:é\n\"", mMessage.getError());
+    }
+
+    @Test
+    public void sharesRepeatedChannelsAndClientIds() throws IOException {
+
+        mParser.begin("[{\"channel\":\"/quotes\",\"clientId\":\"c1\"},{\"channel\":\"/quotes\",\"clientId\":\"c1\"}]");
+
+        assertTrue(mParser.next(mMessage));
+        String channel = mMessage.getChannel();
+        String clientId = mMessage.getClientId();
+
+        assertTrue(mParser.next(mMessage));
+        assertSame(channel, mMessage.getChannel());
+        assertSame(clientId, mMessage.getClientId());
+    }
+
+    @Test
+    public void handsBackAnEmptyMessageForNonObjects() throws IOException {
+
+        mParser.begin("[\"oops\", {}, {\"channel\":\"/a\"}]");
+
+        assertTrue(mParser.next(mMessage));
+        assertNull(mMessage.getChannel());
+        assertTrue(mParser.next(mMessage));
+        assertNull(mMessage.getChannel());
+        assertTrue(mParser.next(mMessage));
+        assertEquals("/a", mMessage.getChannel());
+        assertFalse(mParser.next(mMessage));
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+
+        String[] frames = {
+            "", "\"text\"", "[{\"channel\":\"/a\"", "[{\"channel\" \"/a\"}]", "[{\"channel\":\"/a\" \"id\":\"1\"}]",
+            "[{\"channel\":\"/a}]", "[{\"data\":{\"a\":[1,2}]"
+        };
+
+        for (String frame : frames) {
+
+            try {
+
+                mParser.begin(frame);
+
+                while (mParser.next(mMessage)) {
+                    // Read to the end
+                }
+
+                fail("Parsed " + frame);
+
+            } catch (IOException ex) {
+                // Expected
+            }
+        }
+    }
+}
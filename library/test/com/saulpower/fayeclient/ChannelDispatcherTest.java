@@ -0,0 +1,126 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelDispatcherTest {
+
+    private final List<Integer> mDelivered = new CopyOnWriteArrayList<Integer>();
+
+    @Test
+    public void blocksRatherThanDropsByDefault() throws InterruptedException {
+
+        ChannelDispatcher dispatcher = new ChannelDispatcher(1, 1, null);
+
+        for (int i = 0; i < 50; i++) {
+            dispatcher.dispatch("/chat", new Record(i, 1));
+        }
+
+        assertTrue(dispatcher.shutdown(5000));
+        assertEquals(50, mDelivered.size());
+        assertEquals(0, dispatcher.getDropped());
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, mDelivered.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void rejectsWhenFullIfAskedTo() throws InterruptedException {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        ChannelDispatcher dispatcher = new ChannelDispatcher(1, 1, null);
+
+        dispatcher.setOverflowPolicy(WebSocketClient.OverflowPolicy.REJECT);
+        dispatcher.dispatch("/chat", new ChannelDispatcher.Task() {
+
+            @Override
+            public void run() {
+
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // One waits in the queue behind the blocked listener, once it has taken the first
+        while (dispatcher.getQueueDelays().getCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        dispatcher.dispatch("/chat", new Record(1, 0));
+        dispatcher.dispatch("/chat", new Record(2, 0));
+
+        assertEquals(1, dispatcher.getDropped());
+
+        release.countDown();
+
+        assertTrue(dispatcher.shutdown(5000));
+        assertEquals(1, mDelivered.size());
+    }
+
+    @Test
+    public void dropsWhatIsDispatchedAfterShutdown() throws InterruptedException {
+
+        ChannelDispatcher dispatcher = new ChannelDispatcher(2, 1, null);
+
+        assertTrue(dispatcher.shutdown(5000));
+
+        // Would block forever on a full lane nobody drains any more
+        dispatcher.dispatch("/chat", new Record(1, 0));
+        dispatcher.dispatch("/chat", new Record(2, 0));
+
+        assertTrue(mDelivered.isEmpty());
+        assertEquals(2, dispatcher.getDropped());
+    }
+
+    @Test
+    public void stopsLanesThatOutlastTheTimeout() throws InterruptedException {
+
+        ChannelDispatcher dispatcher = new ChannelDispatcher(1, 16, null);
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch("/chat", new Record(i, 50));
+        }
+
+        assertFalse(dispatcher.shutdown(20));
+        assertTrue(mDelivered.size() < 10);
+    }
+
+    /**
+     * Records its number once delivered, after sleeping a while.
+     */
+    private final class Record extends ChannelDispatcher.Task {
+
+        private final int mNumber;
+        private final long mSleepMillis;
+
+        Record(int number, long sleepMillis) {
+            mNumber = number;
+            mSleepMillis = sleepMillis;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(mSleepMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            mDelivered.add(mNumber);
+        }
+    }
+}
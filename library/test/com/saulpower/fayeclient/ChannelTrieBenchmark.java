@@ -0,0 +1,85 @@
+package com.saulpower.fayeclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing one inbound message as the number of subscriptions grows,
+ * through the trie and by splitting the channel against every
+ * subscription as FayeClient did for its single one. A tenth of the
+ * subscriptions are wildcards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChannelTrieBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int subscriptions;
+
+    private final ChannelTrie<String> mTrie = new ChannelTrie<String>();
+    private final List<String> mPatterns = new ArrayList<String>();
+    private final List<String> mMatches = new ArrayList<String>();
+
+    private String[] mChannels;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+
+        for (int i = 0; i < subscriptions; i++) {
+
+            String pattern = (i % 10 == 9) ? "/quotes/" + i + "/*" : "/quotes/" + i + "/trades";
+
+            mTrie.add(pattern, pattern);
+            mPatterns.add(pattern);
+        }
+
+        mChannels = new String[64];
+
+        for (int i = 0; i < mChannels.length; i++) {
+            mChannels[i] = "/quotes/" + (i * 7919 % subscriptions) + "/trades";
+        }
+    }
+
+    @Benchmark
+    public List<String> trie() {
+
+        mMatches.clear();
+        mTrie.match(mChannels[mNext++ & 63], mMatches);
+
+        return mMatches;
+    }
+
+    @Benchmark
+    public List<String> split() {
+
+        String channel = mChannels[mNext++ & 63];
+
+        mMatches.clear();
+
+        for (String pattern : mPatterns) {
+            if (ChannelTrieTest.matchesBySplitting(pattern, channel)) {
+                mMatches.add(pattern);
+            }
+        }
+
+        return mMatches;
+    }
+}
@@ -0,0 +1,169 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChannelTrieTest {
+
+    private final ChannelTrie<String> mTrie = new ChannelTrie<String>();
+
+    @Test
+    public void matchesExactAndWildcardPatterns() {
+
+        for (String pattern : new String[] {"/chat", "/chat/room", "/chat/*", "/chat/**", "/*", "/**", "/*/room"}) {
+            mTrie.add(pattern, pattern);
+        }
+
+        assertMatches("/chat", "/chat", "/*", "/**");
+        assertMatches("/chat/room", "/chat/room", "/chat/*", "/chat/**", "/**", "/*/room");
+        assertMatches("/chat/room/1", "/chat/**", "/**");
+        assertMatches("/news/room", "/**", "/*/room");
+        assertMatches("chat");
+        assertMatches("");
+    }
+
+    @Test
+    public void keepsEveryRegistration() {
+
+        mTrie.add("/a/*", "x");
+        mTrie.add("/a/*", "x");
+        mTrie.add("/a/b", "y");
+
+        assertMatches("/a/b", "x", "x", "y");
+        assertTrue(mTrie.remove("/a/*", "x"));
+        assertMatches("/a/b", "x", "y");
+    }
+
+    @Test
+    public void leavesNothingBehindOnceEverythingIsRemoved() {
+
+        String[] patterns = {"/a", "/a/b/c", "/a/*/c", "/a/**", "/*/*", "/b/**", "/c/d"};
+
+        for (String pattern : patterns) {
+            mTrie.add(pattern, pattern);
+        }
+
+        assertFalse(mTrie.remove("/a/b", "/a/b"));
+        assertFalse(mTrie.remove("/a", "other"));
+
+        for (String pattern : patterns) {
+            assertTrue(pattern, mTrie.remove(pattern, pattern));
+            assertFalse(pattern, mTrie.remove(pattern, pattern));
+        }
+
+        assertTrue(mTrie.isEmpty());
+    }
+
+    @Test
+    public void rejectsMalformedPatternsWithoutAddingAnything() {
+
+        for (String pattern : new String[] {"", "/", "chat", "/a/**/b", "/**/**"}) {
+
+            try {
+                mTrie.add(pattern, pattern);
+                fail("Added " + pattern);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+
+        assertTrue(mTrie.isEmpty());
+    }
+
+    @Test
+    public void agreesWithSplittingOnRandomPatterns() {
+
+        Random random = new Random(3);
+        String[] segments = {"a", "b", "c", "d", "*"};
+        List<String> live = new ArrayList<String>();
+
+        for (int step = 0; step < 20000; step++) {
+
+            if (live.isEmpty() || (random.nextInt(3) > 0 && live.size() < 200)) {
+
+                StringBuilder pattern = new StringBuilder();
+
+                for (int i = 0, n = 1 + random.nextInt(3); i < n; i++) {
+                    pattern.append('/').append(segments[random.nextInt(segments.length)]);
+                }
+
+                if (random.nextInt(5) == 0) {
+                    pattern.append("/**");
+                }
+
+                mTrie.add(pattern.toString(), pattern.toString());
+                live.add(pattern.toString());
+
+            } else {
+
+                String pattern = live.remove(random.nextInt(live.size()));
+                assertTrue(pattern, mTrie.remove(pattern, pattern));
+            }
+
+            StringBuilder channel = new StringBuilder();
+
+            for (int i = 0, n = 1 + random.nextInt(4); i < n; i++) {
+                channel.append('/').append(segments[random.nextInt(segments.length - 1)]);
+            }
+
+            List<String> expected = new ArrayList<String>();
+
+            for (String pattern : live) {
+                if (matchesBySplitting(pattern, channel.toString())) {
+                    expected.add(pattern);
+                }
+            }
+
+            assertMatches(channel.toString(), expected.toArray(new String[expected.size()]));
+        }
+
+        for (String pattern : live) {
+            mTrie.remove(pattern, pattern);
+        }
+
+        assertTrue(mTrie.isEmpty());
+    }
+
+    private void assertMatches(String channel, String... expected) {
+
+        List<String> matches = new ArrayList<String>();
+        mTrie.match(channel, matches);
+
+        List<String> sorted = new ArrayList<String>(Arrays.asList(expected));
+
+        Collections.sort(matches);
+        Collections.sort(sorted);
+
+        assertEquals(channel, sorted, matches);
+    }
+
+    /**
+     * The Bayeux rules applied segment by segment, as FayeClient once did.
+     */
+    static boolean matchesBySplitting(String pattern, String channel) {
+
+        String[] patternSegments = pattern.substring(1).split("/", -1);
+        String[] channelSegments = channel.substring(1).split("/", -1);
+
+        for (int i = 0; i < patternSegments.length; i++) {
+
+            if (patternSegments[i].equals("**")) return channelSegments.length > i;
+
+            if (i >= channelSegments.length) return false;
+
+            if (!patternSegments[i].equals("*") && !patternSegments[i].equals(channelSegments[i])) return false;
+        }
+
+        return patternSegments.length == channelSegments.length;
+    }
+}
@@ -0,0 +1,111 @@
+package com.saulpower.fayeclient;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * CPU and bytes on the wire with and without permessage-deflate, over
+ * {@link FayeTraffic}. Messages are framed outbound as the client sends
+ * them and decoded inbound from frames a server with context takeover
+ * would send. Each benchmark's {@code wireBytes} rate divided by its score
+ * is the average frame size.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DeflateBenchmark {
+
+    private static final int MESSAGES = 200;
+
+    @Param({"plain", "deflate"})
+    public String mode;
+
+    private List<String> mMessages;
+    private byte[] mInbound;
+    private HybiParser mParser;
+    private BufferPool mPool;
+    private int mNext;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Wire {
+
+        public long wireBytes;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+
+        mMessages = FayeTraffic.frames(MESSAGES);
+        mPool = new BufferPool(8 * 1024, 4);
+        mParser = HybiParserTest.parser(new ArrayList<Object>());
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream inbound = new ByteArrayOutputStream();
+
+        for (String message : mMessages) {
+
+            byte[] payload = HybiParserTest.utf8(message);
+
+            if (mode.equals("deflate")) {
+
+                byte[] frame = HybiParserTest.frame(HybiParser.OP_TEXT, true,
+                        PerMessageDeflateTest.compress(deflater, payload), null);
+
+                frame[0] |= HybiParser.RSV1;
+                inbound.write(frame);
+
+            } else {
+                inbound.write(HybiParserTest.frame(HybiParser.OP_TEXT, true, payload, null));
+            }
+        }
+
+        mInbound = inbound.toByteArray();
+
+        if (mode.equals("deflate")) {
+            mParser.setDeflate(new PerMessageDeflate().accept("permessage-deflate"));
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer send(Wire wire) {
+
+        ByteBuffer frame = mParser.frame(mMessages.get(mNext++ % MESSAGES), mPool);
+
+        wire.wireBytes += frame.remaining();
+        mPool.release(frame);
+
+        return frame;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void receive(Wire wire) throws IOException {
+
+        try {
+            mParser.start(new ByteArrayInputStream(mInbound));
+        } catch (EOFException ex) {
+            // Every frame has been read
+        }
+
+        wire.wireBytes += mInbound.length;
+    }
+}
@@ -0,0 +1,77 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExecutorSchedulerTest {
+
+    @Test
+    public void cancelStopsEveryScheduledRun() throws InterruptedException {
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        ExecutorScheduler scheduler = new ExecutorScheduler(executor);
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch other = new CountDownLatch(1);
+
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+
+        scheduler.postDelayed(task, 50);
+        scheduler.postDelayed(task, 60);
+        scheduler.cancel(task);
+
+        scheduler.postDelayed(new Runnable() {
+
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        }, 100);
+
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void forgetsATaskTheExecutorRejects() {
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        ExecutorScheduler scheduler = new ExecutorScheduler(executor);
+
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        };
+
+        executor.shutdown();
+
+        try {
+            scheduler.post(task);
+            fail();
+        } catch (RejectedExecutionException ex) {
+            // Expected
+        }
+
+        // A rejected run left behind would have no future to cancel
+        scheduler.cancel(task);
+    }
+}
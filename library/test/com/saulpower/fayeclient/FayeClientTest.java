@@ -0,0 +1,72 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FayeClientTest {
+
+    private final List<String> mReceived = new ArrayList<String>();
+    private final List<String> mSubscribed = new ArrayList<String>();
+
+    private FayeClient mClient;
+
+    @Before
+    public void setUp() {
+
+        mClient = new FayeClient(new ImmediateScheduler(), URI.create("ws://127.0.0.1:1/faye"), null);
+
+        mClient.setFayeListener(new FayeClient.FayeListener() {
+
+            @Override
+            public void connectedToServer() {
+            }
+
+            @Override
+            public void disconnectedFromServer() {
+            }
+
+            @Override
+            public void subscribedToChannel(String subscription) {
+                mSubscribed.add(subscription);
+            }
+
+            @Override
+            public void subscriptionFailedWithError(String error) {
+            }
+
+            @Override
+            public void messageReceived(JSONObject json) {
+            }
+        });
+
+        mClient.subscribe("/chat", new FayeClient.ChannelListener() {
+
+            @Override
+            public void onMessage(String channel, JSONObject data) {
+                mReceived.add(data.optString("text"));
+            }
+        });
+    }
+
+    @Test
+    public void keepsProcessingABatchPastMalformedData() {
+
+        mClient.onMessage("[{\"channel\":\"/chat\",\"data\":{\"text\":\"first\"}},"
+                + "{\"channel\":\"/chat\",\"data\":{\"text\" \"bad\"}},"
+                + "{\"channel\":\"/chat\",\"data\":{\"text\":\"after\"}},"
+                + "{\"channel\":\"/meta/subscribe\",\"successful\":true,\"subscription\":\"/news\"}]");
+
+        assertEquals(2, mReceived.size());
+        assertEquals("first", mReceived.get(0));
+        assertEquals("after", mReceived.get(1));
+        assertEquals(1, mSubscribed.size());
+        assertEquals("/news", mSubscribed.get(0));
+    }
+}
@@ -0,0 +1,379 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback Faye server for one client, speaking WebSocket and HTTP
+ * long-polling on one port. Publishes are acknowledged and delivered back
+ * on their channel; /meta/connect is held until there is something to
+ * deliver or the advised timeout runs out. Each TCP connection gets a
+ * thread of its own.
+ */
+final class FayeStandIn implements Runnable {
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String CLIENT_ID = "standin1";
+
+    private final ServerSocket mServer;
+    private final long mTimeoutMillis;
+    private final boolean mRefuseWebSockets;
+
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mPosts = new AtomicInteger();
+
+    // Deliveries waiting for the next long-poll
+    private final BlockingQueue<JSONObject> mPending = new LinkedBlockingQueue<JSONObject>();
+
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * @param timeoutMillis How long a /meta/connect is held, advised to
+     *                      the client in the handshake
+     * @param refuseWebSockets Whether to answer upgrades with 400, as a
+     *                         proxy that blocks them might
+     */
+    FayeStandIn(long timeoutMillis, boolean refuseWebSockets) throws IOException {
+
+        mTimeoutMillis = timeoutMillis;
+        mRefuseWebSockets = refuseWebSockets;
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread thread = new Thread(this, "faye-standin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    URI getUri() {
+        return URI.create("ws://127.0.0.1:" + mServer.getLocalPort() + "/faye");
+    }
+
+    /**
+     * How many TCP connections have been accepted.
+     */
+    int getConnections() {
+        return mConnections.get();
+    }
+
+    /**
+     * How many HTTP POSTs have been served.
+     */
+    int getPosts() {
+        return mPosts.get();
+    }
+
+    void close() throws IOException {
+        mTimer.shutdownNow();
+        mServer.close();
+    }
+
+    @Override
+    public void run() {
+
+        try {
+
+            while (true) {
+
+                final Socket socket = mServer.accept();
+
+                socket.setTcpNoDelay(true);
+                mConnections.incrementAndGet();
+
+                Thread thread = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        try {
+                            serve(socket);
+                        } catch (Exception ex) {
+                            // The client went away
+                        } finally {
+                            close(socket);
+                        }
+                    }
+                }, "faye-standin-connection");
+
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+        } catch (IOException ex) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket socket) throws IOException, JSONException, InterruptedException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+        while (true) {
+
+            readLine(in);
+
+            String secret = null;
+            int contentLength = 0;
+            String line;
+
+            while ((line = readLine(in)).length() > 0) {
+
+                String lower = line.toLowerCase();
+                String value = line.substring(line.indexOf(':') + 1).trim();
+
+                if (lower.startsWith("sec-websocket-key:")) {
+                    secret = value;
+                } else if (lower.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(value);
+                }
+            }
+
+            if (secret != null) {
+
+                if (mRefuseWebSockets) {
+                    out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+                    out.flush();
+                    return;
+                }
+
+                serveWebSocket(in, out, secret);
+                return;
+            }
+
+            byte[] body = new byte[contentLength];
+            in.readFully(body);
+            mPosts.incrementAndGet();
+
+            byte[] reply = process(new JSONArray(new String(body, "UTF-8")), null).toString().getBytes("UTF-8");
+
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + reply.length
+                    + "\r\n\r\n").getBytes("ISO-8859-1"));
+            out.write(reply);
+            out.flush();
+        }
+    }
+
+    private void serveWebSocket(DataInputStream in, final OutputStream out, String secret)
+            throws IOException, JSONException, InterruptedException {
+
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept(secret) + "\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+
+        while (true) {
+
+            int opcode = in.readUnsignedByte() & 0x0F;
+            int second = in.readUnsignedByte();
+            long length = second & 0x7F;
+
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+
+            byte[] mask = new byte[4];
+
+            if ((second & 0x80) != 0) {
+                in.readFully(mask);
+            }
+
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            if (opcode == HybiParser.OP_CLOSE) return;
+
+            if (opcode != HybiParser.OP_TEXT) continue;
+
+            String text = new String(payload, "UTF-8");
+            JSONArray messages = text.startsWith("[") ? new JSONArray(text) : new JSONArray().put(new JSONObject(text));
+            JSONArray replies = process(messages, out);
+
+            if (replies.length() > 0) {
+                sendFrame(out, replies.toString());
+            }
+        }
+    }
+
+    /**
+     * Answers one batch of messages. Over a WebSocket, deliveries go in the
+     * same reply and connects are answered once the timeout passes; over
+     * HTTP a connect holds the request for the next delivery.
+     *
+     * @param webSocket Where a WebSocket client is written to, or null
+     */
+    private JSONArray process(JSONArray messages, final OutputStream webSocket)
+            throws JSONException, InterruptedException {
+
+        JSONArray replies = new JSONArray();
+        JSONObject heldConnect = null;
+
+        for (int i = 0; i < messages.length(); i++) {
+
+            JSONObject message = messages.getJSONObject(i);
+            String channel = message.getString("channel");
+            JSONObject reply = new JSONObject().put("channel", channel).put("successful", true)
+                    .put("clientId", CLIENT_ID);
+
+            if (message.has("id")) {
+                reply.put("id", message.get("id"));
+            }
+
+            if (channel.equals("/meta/handshake")) {
+
+                reply.put("version", "1.0")
+                        .put("supportedConnectionTypes", new JSONArray().put("websocket").put("long-polling"))
+                        .put("advice", new JSONObject().put("reconnect", "retry").put("interval", 0)
+                                .put("timeout", mTimeoutMillis));
+
+            } else if (channel.equals("/meta/connect")) {
+
+                if (webSocket == null) {
+                    heldConnect = reply;
+                    continue;
+                }
+
+                final String frame = new JSONArray().put(reply).toString();
+
+                mTimer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        try {
+                            sendFrame(webSocket, frame);
+                        } catch (IOException ex) {
+                            // The client went away
+                        }
+                    }
+                }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+
+                continue;
+
+            } else if (channel.startsWith("/meta/")) {
+
+                if (message.has("subscription")) {
+                    reply.put("subscription", message.get("subscription"));
+                }
+
+            } else {
+
+                JSONObject delivery = new JSONObject().put("channel", channel).put("data", message.get("data"));
+
+                if (webSocket != null) {
+                    replies.put(delivery);
+                } else {
+                    mPending.add(delivery);
+                }
+            }
+
+            replies.put(reply);
+        }
+
+        if (heldConnect != null) {
+
+            JSONObject delivery = mPending.poll(mTimeoutMillis, TimeUnit.MILLISECONDS);
+
+            while (delivery != null) {
+                replies.put(delivery);
+                delivery = mPending.poll();
+            }
+
+            replies.put(heldConnect);
+        }
+
+        return replies;
+    }
+
+    private static void sendFrame(OutputStream out, String text) throws IOException {
+
+        byte[] payload = text.getBytes("UTF-8");
+
+        synchronized (out) {
+
+            out.write(HybiParser.FIN | HybiParser.OP_TEXT);
+
+            if (payload.length <= 125) {
+                out.write(payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                out.write(126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length);
+            } else {
+                out.write(127);
+
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) ((long) payload.length >>> shift));
+                }
+            }
+
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+
+        StringBuilder line = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != '\n') {
+
+            if (c < 0) {
+                throw new EOFException();
+            }
+
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+
+        return line.toString();
+    }
+
+    private static String accept(String secret) throws IOException {
+
+        try {
+
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+
+            return Base64.encodeToString(sha1.digest((secret + GUID).getBytes("ISO-8859-1")), Base64.NO_WRAP);
+
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    private static void close(Socket socket) {
+
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Already closed
+        }
+    }
+}
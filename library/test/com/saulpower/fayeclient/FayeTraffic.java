@@ -0,0 +1,66 @@
+package com.saulpower.fayeclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Stands in for recorded Faye traffic: a seeded mix of /meta/connect
+ * replies and ticker deliveries shaped like those a Faye server sends, so
+ * benchmarks see the same repetitive JSON every run.
+ */
+final class FayeTraffic {
+
+    private static final String[] SYMBOLS = {"AAPL", "MSFT", "GOOG", "AMZN", "TSLA", "NVDA", "META", "NFLX"};
+
+    private FayeTraffic() {
+    }
+
+    /**
+     * Inbound frames, one Bayeux message array each, roughly one connect
+     * reply for every ten deliveries.
+     */
+    static List<String> frames(int count) {
+
+        Random random = new Random(42);
+        List<String> frames = new ArrayList<String>(count);
+
+        for (int i = 0; i < count; i++) {
+            frames.add((i % 10 == 0) ? connectReply(i) : "[" + delivery(random, i) + "]");
+        }
+
+        return frames;
+    }
+
+    private static String connectReply(int id) {
+        return "[{\"id\":\"" + id + "\",\"clientId\":\"q1hd5kyd3ab7u2y8yv7t3jq9mffq2g7\",\"channel\":\"/meta/connect\","
+                + "\"successful\":true,\"advice\":{\"reconnect\":\"retry\",\"interval\":0,\"timeout\":45000}}]";
+    }
+
+    static String delivery(Random random, int id) {
+
+        String symbol = SYMBOLS[random.nextInt(SYMBOLS.length)];
+        StringBuilder json = new StringBuilder(512);
+
+        json.append("{\"channel\":\"/quotes/").append(symbol).append("\",\"id\":\"").append(id)
+                .append("\",\"data\":{\"symbol\":\"").append(symbol)
+                .append("\",\"bid\":").append(100 + random.nextInt(400)).append('.').append(random.nextInt(100))
+                .append(",\"ask\":").append(100 + random.nextInt(400)).append('.').append(random.nextInt(100))
+                .append(",\"volume\":").append(random.nextInt(5000000))
+                .append(",\"exchange\":\"NASDAQ\",\"currency\":\"USD\",\"timestamp\":")
+                .append(1700000000000L + id * 250L)
+                .append(",\"levels\":[");
+
+        for (int level = 0; level < 5; level++) {
+
+            if (level > 0) {
+                json.append(',');
+            }
+
+            json.append("{\"price\":").append(100 + random.nextInt(400)).append('.').append(random.nextInt(100))
+                    .append(",\"size\":").append(random.nextInt(10000)).append('}');
+        }
+
+        return json.append("]}}").toString();
+    }
+}
@@ -0,0 +1,196 @@
+package com.saulpower.fayeclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Arrays;
+
+/**
+ * Frames per second through the buffered decoder against the
+ * byte-at-a-time decoder it replaced, over a burst of ticker-sized text
+ * frames. From memory only the decoding is compared; over a loopback
+ * socket each of the old decoder's reads is also a syscall.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FrameDecodeBenchmark {
+
+    private static final int FRAMES = 1000;
+
+    @Param({"64", "512", "8192"})
+    public int payloadSize;
+
+    @Param({"memory", "socket"})
+    public String source;
+
+    private byte[] mStream;
+    private ServerSocket mServer;
+    private HybiParser mParser;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'a');
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < FRAMES; i++) {
+            out.write(HybiParserTest.frame(HybiParser.OP_TEXT, true, payload, null));
+        }
+
+        mStream = out.toByteArray();
+        mBlackhole = blackhole;
+
+        WebSocketClient.Listener listener = new WebSocketClient.Listener() {
+
+            @Override
+            public void onConnect() {
+            }
+
+            @Override
+            public void onMessage(String message) {
+                mBlackhole.consume(message);
+            }
+
+            @Override
+            public void onMessage(byte[] data) {
+                mBlackhole.consume(data);
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+            }
+
+            @Override
+            public void onError(Exception error) {
+            }
+        };
+
+        mParser = new WebSocketClient(new ImmediateScheduler(), URI.create("ws://localhost/faye"), listener, null)
+                .getParser();
+
+        if (source.equals("socket")) {
+            mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            startServer(mServer, mStream);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void buffered() throws IOException {
+
+        Socket socket = connect();
+
+        try {
+            mParser.start((socket != null) ? socket.getInputStream() : new ByteArrayInputStream(mStream));
+        } catch (EOFException ex) {
+            // End of the burst
+        } finally {
+            close(socket);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void byteAtATime(Blackhole blackhole) throws IOException {
+
+        Socket socket = connect();
+        HybiParser.HappyDataInputStream stream = new HybiParser.HappyDataInputStream(
+                (socket != null) ? socket.getInputStream() : new ByteArrayInputStream(mStream));
+
+        try {
+
+            while (true) {
+
+                // The old stage machine: a read per header byte and an array per mask, length and payload
+                stream.readByte();
+                int length = stream.readByte() & 0x7F;
+
+                if (length == 126) {
+                    byte[] extended = stream.readBytes(2);
+                    length = ((extended[0] & 0xFF) << 8) | (extended[1] & 0xFF);
+                } else if (length == 127) {
+                    byte[] extended = stream.readBytes(8);
+                    length = ((extended[4] & 0xFF) << 24) | ((extended[5] & 0xFF) << 16)
+                            | ((extended[6] & 0xFF) << 8) | (extended[7] & 0xFF);
+                }
+
+                blackhole.consume(new String(stream.readBytes(length), "UTF-8"));
+            }
+
+        } catch (EOFException ex) {
+            // End of the burst
+        } finally {
+            close(socket);
+        }
+    }
+
+    private Socket connect() throws IOException {
+        return (mServer != null) ? new Socket(mServer.getInetAddress(), mServer.getLocalPort()) : null;
+    }
+
+    private static void close(Socket socket) throws IOException {
+
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Writes the whole burst to every connection and closes it.
+     */
+    private static void startServer(final ServerSocket server, final byte[] stream) {
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                while (!server.isClosed()) {
+
+                    try {
+
+                        Socket socket = server.accept();
+                        socket.getOutputStream().write(stream);
+                        socket.close();
+
+                    } catch (IOException ex) {
+                        // Closed at tear down, or the reader gave up
+                    }
+                }
+            }
+        }, "frame-server");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
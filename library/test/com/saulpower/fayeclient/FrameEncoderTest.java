@@ -0,0 +1,98 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameEncoderTest {
+
+    @Test
+    public void countsUtf8LikeGetBytes() {
+
+        String[] texts = {
+            "", "ascii", "café", "€100", "😀 emoji",
+            "unpaired \ud800 high", "unpaired \udc00 low", "ends high \ud83d"
+        };
+
+        for (String text : texts) {
+            assertEquals(text, HybiParserTest.utf8(text).length, FrameEncoder.utf8Length(text));
+        }
+    }
+
+    @Test
+    public void writesUtf8LikeGetBytes() {
+
+        String text = "aé€😀 \ud800!";
+        ByteBuffer out = ByteBuffer.allocate(FrameEncoder.utf8Length(text));
+
+        FrameEncoder.writeUtf8(text, out);
+
+        assertArrayEquals(HybiParserTest.utf8(text), out.array());
+    }
+
+    @Test
+    public void usesTheShortestLengthAtEveryBoundary() {
+
+        FrameEncoder encoder = new FrameEncoder(false);
+
+        for (int length : new int[] {0, 125, 126, 65535, 65536}) {
+
+            byte[] payload = new byte[length];
+            Arrays.fill(payload, (byte) 'z');
+
+            ByteBuffer out = ByteBuffer.allocate(encoder.frameLength(length));
+            encoder.encodeText(new String(payload), out);
+
+            assertEquals(out.capacity(), out.position());
+            assertArrayEquals("length " + length,
+                    HybiParserTest.frame(HybiParser.OP_TEXT, true, payload, null), out.array());
+        }
+    }
+
+    @Test
+    public void masksWithTheKeyItWrites() {
+
+        FrameEncoder encoder = new FrameEncoder(true);
+        String text = "{\"channel\":\"/meta/connect\",\"clientId\":\"abc\"}";
+        byte[] payload = HybiParserTest.utf8(text);
+
+        ByteBuffer out = ByteBuffer.allocate(encoder.frameLength(payload.length));
+        encoder.encodeText(text, out);
+
+        byte[] frame = out.array();
+        byte[] key = Arrays.copyOfRange(frame, 2, 6);
+
+        assertEquals((byte) (HybiParser.FIN | HybiParser.OP_TEXT), frame[0]);
+        assertEquals((byte) (0x80 | payload.length), frame[1]);
+        assertArrayEquals(HybiParserTest.frame(HybiParser.OP_TEXT, true, payload, key), frame);
+    }
+
+    @Test
+    public void putsTheCloseCodeBeforeTheReason() {
+
+        FrameEncoder encoder = new FrameEncoder(false);
+        ByteBuffer out = ByteBuffer.allocate(encoder.frameLength(2 + 3));
+
+        encoder.encode(HybiParser.OP_CLOSE, 1001, "bye", out);
+
+        byte[] payload = {0x03, (byte) 0xE9, 'b', 'y', 'e'};
+
+        assertArrayEquals(HybiParserTest.frame(HybiParser.OP_CLOSE, true, payload, null), out.array());
+    }
+
+    @Test
+    public void encodesBinaryFromAnOffset() {
+
+        FrameEncoder encoder = new FrameEncoder(false);
+        byte[] data = {9, 1, 2, 3, 9};
+        ByteBuffer out = ByteBuffer.allocate(encoder.frameLength(3));
+
+        encoder.encodeBinary(data, 1, 3, out);
+
+        assertArrayEquals(HybiParserTest.frame(HybiParser.OP_BINARY, true, new byte[] {1, 2, 3}, null), out.array());
+    }
+}
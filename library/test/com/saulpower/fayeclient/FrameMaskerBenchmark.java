@@ -0,0 +1,57 @@
+package com.saulpower.fayeclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+
+/**
+ * Masking a payload eight bytes at a time against the byte loop with a
+ * modulo per byte that HybiParser used before.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameMaskerBenchmark {
+
+    @Param({"16", "128", "1024", "16384", "1048576"})
+    public int payloadSize;
+
+    private final byte[] mKey = {(byte) 0x37, (byte) 0xFA, (byte) 0x21, (byte) 0x3D};
+
+    private byte[] mPayload;
+
+    @Setup
+    public void setUp() {
+
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+    }
+
+    @Benchmark
+    public byte[] wordAtATime() {
+
+        FrameMasker.mask(mPayload, 0, mPayload.length, mKey, 0);
+
+        return mPayload;
+    }
+
+    @Benchmark
+    public byte[] byteAtATime() {
+
+        byte[] payload = mPayload;
+
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (payload[i] ^ mKey[i % 4]);
+        }
+
+        return payload;
+    }
+}
@@ -0,0 +1,105 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FrameMaskerTest {
+
+    private static final byte[] KEY = {(byte) 0x37, (byte) 0xFA, (byte) 0x21, (byte) 0x3D};
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void matchesTheByteLoopAtEveryAlignment() {
+
+        for (int length = 0; length < 40; length++) {
+            for (int offset = 0; offset < 9; offset++) {
+                for (int keyIndex = 0; keyIndex < 4; keyIndex++) {
+
+                    byte[] payload = random(offset + length + 3);
+                    byte[] expected = maskByBytes(payload, offset, length, keyIndex);
+
+                    FrameMasker.mask(payload, offset, length, KEY, keyIndex);
+
+                    assertArrayEquals("length " + length + " offset " + offset + " key index " + keyIndex,
+                            expected, payload);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesTheByteLoopInEitherByteOrder() {
+
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+
+            byte[] payload = random(1001);
+            byte[] expected = maskByBytes(payload, 3, 997, 1);
+            ByteBuffer direct = ByteBuffer.allocateDirect(payload.length).order(order);
+
+            direct.put(payload).flip();
+            FrameMasker.mask(direct, 3, 997, KEY, 1);
+
+            byte[] actual = new byte[payload.length];
+            direct.get(actual);
+
+            assertArrayEquals(order.toString(), expected, actual);
+        }
+    }
+
+    @Test
+    public void masksInChunks() {
+
+        byte[] payload = random(100);
+        byte[] whole = payload.clone();
+
+        FrameMasker.mask(whole, 0, whole.length, KEY, 0);
+
+        // Chunk boundaries that leave the key mid-word
+        FrameMasker.mask(payload, 0, 13, KEY, 0);
+        FrameMasker.mask(payload, 13, 50, KEY, 13);
+        FrameMasker.mask(payload, 63, 37, KEY, 63);
+
+        assertArrayEquals(whole, payload);
+    }
+
+    @Test
+    public void unmasksWhatItMasked() {
+
+        byte[] payload = random(4096);
+        byte[] original = payload.clone();
+
+        FrameMasker.mask(payload, 0, payload.length, KEY, 0);
+        FrameMasker.mask(payload, 0, payload.length, KEY, 0);
+
+        assertArrayEquals(original, payload);
+    }
+
+    private byte[] random(int length) {
+
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * The byte loop HybiParser masked with before.
+     */
+    static byte[] maskByBytes(byte[] payload, int offset, int length, int keyIndex) {
+
+        byte[] masked = Arrays.copyOf(payload, payload.length);
+
+        for (int i = 0; i < length; i++) {
+            masked[offset + i] = (byte) (masked[offset + i] ^ KEY[(keyIndex + i) % 4]);
+        }
+
+        return masked;
+    }
+}
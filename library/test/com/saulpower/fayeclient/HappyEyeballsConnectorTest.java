@@ -0,0 +1,30 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HappyEyeballsConnectorTest {
+
+    @Test
+    public void remembersOnlyTheMostRecentlyUsedHosts() throws Exception {
+
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+
+        HappyEyeballsConnector.remember("kept.example", address);
+
+        for (int i = 0; i < 1000; i++) {
+
+            HappyEyeballsConnector.remember("host" + i + ".example", address);
+
+            // Looking it up counts as a use
+            assertEquals(address, HappyEyeballsConnector.getPreferred("kept.example"));
+        }
+
+        assertNull(HappyEyeballsConnector.getPreferred("host0.example"));
+        assertEquals(address, HappyEyeballsConnector.getPreferred("host999.example"));
+    }
+}
@@ -0,0 +1,218 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HybiParserTest {
+
+    private final List<Object> mMessages = new ArrayList<Object>();
+
+    private HybiParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = parser(mMessages);
+    }
+
+    @Test
+    public void decodesEveryFrameInOneRead() throws IOException {
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(frame(HybiParser.OP_TEXT, true, utf8("one"), null));
+        stream.write(frame(HybiParser.OP_TEXT, true, utf8("two"), null));
+        stream.write(frame(HybiParser.OP_BINARY, true, new byte[] {1, 2, 3}, null));
+
+        run(new ByteArrayInputStream(stream.toByteArray()));
+
+        assertEquals(3, mMessages.size());
+        assertEquals("one", mMessages.get(0));
+        assertEquals("two", mMessages.get(1));
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) mMessages.get(2));
+    }
+
+    @Test
+    public void resumesHeadersSplitAcrossReads() throws IOException {
+
+        byte[] payload = new byte[300];
+        Arrays.fill(payload, (byte) 'x');
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(frame(HybiParser.OP_TEXT, true, payload, null));
+        stream.write(frame(HybiParser.OP_TEXT, true, utf8("masked"), new byte[] {9, 8, 7, 6}));
+
+        run(new TrickleInputStream(stream.toByteArray()));
+
+        assertEquals(Arrays.<Object>asList(new String(payload, "UTF-8"), "masked"), mMessages);
+    }
+
+    @Test
+    public void reassemblesFragmentsAndSplitCharacters() throws IOException {
+
+        // The euro sign's three bytes straddle the two fragments
+        byte[] text = utf8("price: €5");
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(frame(HybiParser.OP_TEXT, false, Arrays.copyOfRange(text, 0, 8), null));
+        stream.write(frame(HybiParser.OP_CONTINUATION, true, Arrays.copyOfRange(text, 8, text.length), null));
+
+        run(new ByteArrayInputStream(stream.toByteArray()));
+
+        assertEquals(Arrays.<Object>asList("price: €5"), mMessages);
+    }
+
+    @Test
+    public void readsPayloadsLargerThanTheBuffer() throws IOException {
+
+        byte[] payload = new byte[100000];
+
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        run(new ByteArrayInputStream(frame(HybiParser.OP_BINARY, true, payload, new byte[] {1, 2, 3, 4})));
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(payload, (byte[]) mMessages.get(0));
+    }
+
+    @Test
+    public void reportsClose() throws IOException {
+
+        byte[] payload = new byte[] {0x03, (byte) 0xE8, 'b', 'y', 'e'};
+
+        run(new ByteArrayInputStream(frame(HybiParser.OP_CLOSE, true, payload, null)));
+
+        assertEquals(Arrays.<Object>asList("1000 bye"), mMessages);
+    }
+
+    @Test(expected = HybiParser.ProtocolError.class)
+    public void rejectsReservedBits() throws IOException {
+
+        byte[] frame = frame(HybiParser.OP_TEXT, true, utf8("x"), null);
+        frame[0] |= HybiParser.RSV1;
+
+        run(new ByteArrayInputStream(frame));
+    }
+
+    private void run(InputStream stream) throws IOException {
+
+        try {
+            mParser.start(stream);
+            fail("The parser returned before the stream ended");
+        } catch (EOFException ex) {
+            // Every frame has been read
+        }
+    }
+
+    /**
+     * A parser whose listener collects text, binary data and close frames,
+     * the last as "code reason".
+     */
+    static HybiParser parser(final List<Object> received) {
+
+        WebSocketClient.Listener listener = new WebSocketClient.Listener() {
+
+            @Override
+            public void onConnect() {
+            }
+
+            @Override
+            public void onMessage(String message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onMessage(byte[] data) {
+                received.add(data);
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+                received.add(code + " " + reason);
+            }
+
+            @Override
+            public void onError(Exception error) {
+            }
+        };
+
+        return new WebSocketClient(new ImmediateScheduler(), URI.create("ws://localhost/faye"), listener, null)
+                .getParser();
+    }
+
+    /**
+     * A frame as a server would send it, masked when given a key.
+     */
+    static byte[] frame(int opcode, boolean fin, byte[] payload, byte[] mask) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int maskBit = (mask != null) ? 0x80 : 0;
+
+        out.write((fin ? HybiParser.FIN : 0) | opcode);
+
+        if (payload.length <= 125) {
+            out.write(maskBit | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            out.write(maskBit | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(maskBit | 127);
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) payload.length >>> shift));
+            }
+        }
+
+        if (mask == null) {
+            out.write(payload, 0, payload.length);
+            return out.toByteArray();
+        }
+
+        out.write(mask, 0, 4);
+
+        for (int i = 0; i < payload.length; i++) {
+            out.write(payload[i] ^ mask[i % 4]);
+        }
+
+        return out.toByteArray();
+    }
+
+    static byte[] utf8(String text) {
+
+        try {
+            return text.getBytes("UTF-8");
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Hands out one byte per read, as a slow socket might.
+     */
+    private static final class TrickleInputStream extends ByteArrayInputStream {
+
+        TrickleInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, 1));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBatcherTest {
+
+    private final List<String> mFrames = new ArrayList<String>();
+
+    private final MessageBatcher.Sink mSink = new MessageBatcher.Sink() {
+
+        @Override
+        public boolean send(CharSequence frame) {
+
+            synchronized (mFrames) {
+                mFrames.add(frame.toString());
+            }
+
+            return true;
+        }
+    };
+
+    @Test
+    public void sendsEachMessageAloneOnAnInlineSchedulerUnlessCorked() {
+
+        MessageBatcher batcher = new MessageBatcher(new ImmediateScheduler(), mSink);
+
+        batcher.add("1");
+        batcher.add("2");
+
+        batcher.cork();
+        batcher.add("3");
+        batcher.cork();
+        batcher.add("4");
+        batcher.uncork();
+        batcher.add("5");
+
+        assertEquals(Arrays.asList("[1]", "[2]"), mFrames);
+
+        batcher.uncork();
+
+        assertEquals(Arrays.asList("[1]", "[2]", "[3,4,5]"), mFrames);
+
+        // A release without a cork is ignored
+        batcher.uncork();
+        batcher.add("6");
+
+        assertEquals("[6]", mFrames.get(3));
+    }
+
+    @Test
+    public void batchesUntilTheSchedulersNextTurn() {
+
+        ManualScheduler scheduler = new ManualScheduler();
+        MessageBatcher batcher = new MessageBatcher(scheduler, mSink);
+
+        batcher.add("1");
+        batcher.add("2");
+
+        assertTrue(mFrames.isEmpty());
+
+        scheduler.runAll();
+        batcher.add("3");
+        scheduler.runAll();
+
+        assertEquals(Arrays.asList("[1,2]", "[3]"), mFrames);
+    }
+
+    @Test
+    public void sendsEarlyAtTheByteLimitAndAloneWithANegativeWindow() {
+
+        ManualScheduler scheduler = new ManualScheduler();
+        MessageBatcher batcher = new MessageBatcher(scheduler, mSink);
+
+        batcher.setWindow(1000, 8);
+        batcher.cork();
+        batcher.add("\"abc\"");
+        batcher.add("\"def\"");
+
+        assertEquals(Arrays.asList("[\"abc\",\"def\"]"), mFrames);
+
+        batcher.uncork();
+        batcher.setWindow(-1, 8);
+        batcher.add("\"ghi\"");
+
+        assertEquals("\"ghi\"", mFrames.get(1));
+        assertTrue(scheduler.mTasks.isEmpty());
+    }
+
+    @Test
+    public void aBlockedSinkDoesNotHoldUpAdding() throws InterruptedException {
+
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> frames = new ArrayList<String>();
+
+        final MessageBatcher batcher = new MessageBatcher(new ManualScheduler(), new MessageBatcher.Sink() {
+
+            @Override
+            public boolean send(CharSequence frame) {
+
+                sending.countDown();
+
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                frames.add(frame.toString());
+
+                return true;
+            }
+        });
+
+        batcher.add("1");
+
+        Thread flusher = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                batcher.flush();
+            }
+        });
+
+        flusher.start();
+
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        // The flusher is stuck in the sink, outside the batcher's monitor
+        batcher.add("2");
+        batcher.add("3");
+
+        release.countDown();
+        flusher.join();
+        batcher.flush();
+
+        assertEquals(Arrays.asList("[1]", "[2,3]"), frames);
+    }
+
+    /**
+     * Holds posted tasks until told to run them.
+     */
+    private static final class ManualScheduler implements Scheduler {
+
+        private final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void post(Runnable task) {
+            mTasks.add(task);
+        }
+
+        @Override
+        public synchronized void postDelayed(Runnable task, long delayMillis) {
+            mTasks.add(task);
+        }
+
+        @Override
+        public synchronized void cancel(Runnable task) {
+            mTasks.removeAll(Arrays.asList(task));
+        }
+
+        void runAll() {
+
+            List<Runnable> tasks;
+
+            synchronized (this) {
+                tasks = new ArrayList<Runnable>(mTasks);
+                mTasks.clear();
+            }
+
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
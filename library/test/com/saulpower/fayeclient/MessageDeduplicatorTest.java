@@ -0,0 +1,117 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageDeduplicatorTest {
+
+    @Test
+    public void dropsARepeatedMessage() {
+
+        MessageDeduplicator deduplicator = new MessageDeduplicator();
+
+        assertFalse(deduplicator.isDuplicate("/chat", "c1", "1"));
+        assertTrue(deduplicator.isDuplicate("/chat", "c1", "1"));
+        assertTrue(deduplicator.isDuplicate(new StringBuilder("/chat"), "c1", new StringBuilder("1")));
+
+        assertEquals(2, deduplicator.getHits());
+        assertEquals(1, deduplicator.getMisses());
+    }
+
+    @Test
+    public void keysOnChannelPublisherAndId() {
+
+        MessageDeduplicator deduplicator = new MessageDeduplicator();
+
+        assertFalse(deduplicator.isDuplicate("/chat", "c1", "1"));
+        assertFalse(deduplicator.isDuplicate("/chat", "c2", "1"));
+        assertFalse(deduplicator.isDuplicate("/news", "c1", "1"));
+        assertFalse(deduplicator.isDuplicate("/chat", "c1", "2"));
+
+        // A missing clientId is not the same as an empty one
+        assertFalse(deduplicator.isDuplicate("/chat", null, "1"));
+        assertFalse(deduplicator.isDuplicate("/chat", "", "1"));
+        assertTrue(deduplicator.isDuplicate("/chat", null, "1"));
+
+        // Parts cannot run into each other
+        assertFalse(deduplicator.isDuplicate("/ab", "c", "1"));
+        assertFalse(deduplicator.isDuplicate("/a", "bc", "1"));
+    }
+
+    @Test
+    public void forgetsTheOldestOutsideTheWindow() {
+
+        MessageDeduplicator deduplicator = new MessageDeduplicator(3);
+
+        for (String id : new String[] {"1", "2", "3"}) {
+            assertFalse(deduplicator.isDuplicate("/chat", "c1", id));
+        }
+
+        // A hit does not count as a new arrival, so 1 is still the oldest
+        assertTrue(deduplicator.isDuplicate("/chat", "c1", "1"));
+
+        assertFalse(deduplicator.isDuplicate("/chat", "c1", "4"));
+        assertFalse(deduplicator.isDuplicate("/chat", "c1", "1"));
+        assertFalse(deduplicator.isDuplicate("/chat", "c1", "2"));
+        assertTrue(deduplicator.isDuplicate("/chat", "c1", "4"));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+
+        MessageDeduplicator deduplicator = new MessageDeduplicator(8);
+
+        deduplicator.isDuplicate("/chat", "c1", "1");
+        deduplicator.isDuplicate("/chat", "c1", "1");
+        deduplicator.clear();
+
+        assertEquals(0, deduplicator.getHits());
+        assertEquals(0, deduplicator.getMisses());
+        assertFalse(deduplicator.isDuplicate("/chat", "c1", "1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnEmptyWindow() {
+        new MessageDeduplicator(0);
+    }
+
+    /**
+     * Evictions shift entries back through the set's probe runs; checking
+     * against a plain queue catches a run broken along the way.
+     */
+    @Test
+    public void matchesAQueueOfTheLastWindowMessages() {
+
+        for (int window : new int[] {1, 5, 64, 1000}) {
+
+            MessageDeduplicator deduplicator = new MessageDeduplicator(window);
+            Deque<String> model = new ArrayDeque<String>();
+            Random random = new Random(window);
+
+            for (int step = 0; step < 50000; step++) {
+
+                String id = Integer.toString(random.nextInt(window * 2));
+                boolean expected = model.contains(id);
+
+                assertEquals("window " + window + ", step " + step, expected,
+                        deduplicator.isDuplicate("/chat", "c1", id));
+
+                if (!expected) {
+
+                    model.addLast(id);
+
+                    if (model.size() > window) {
+                        model.removeFirst();
+                    }
+                }
+            }
+        }
+    }
+}
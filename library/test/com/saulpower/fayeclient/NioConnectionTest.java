@@ -0,0 +1,300 @@
+package com.saulpower.fayeclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioConnectionTest {
+
+    private NioReactor mReactor;
+    private WebSocketEchoServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mReactor = new NioReactor(1);
+        mServer = new WebSocketEchoServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mReactor.shutdown();
+        mServer.close();
+    }
+
+    @Test
+    public void echoesThroughTheReactor() throws InterruptedException {
+
+        Events events = new Events();
+        WebSocketClient client = client(mServer.getUri(), events, new HappyEyeballsConnector());
+
+        client.connect();
+
+        assertEquals("connect", events.poll());
+        assertTrue(client.send("hello"));
+        assertEquals("hello", events.poll());
+
+        client.disconnect();
+    }
+
+    @Test
+    public void holdsFramesSentBeforeTheConnectionIsOpen() throws InterruptedException {
+
+        Events events = new Events();
+        WebSocketClient client = client(mServer.getUri(), events, new HappyEyeballsConnector());
+
+        client.connect();
+
+        assertTrue(client.send("early"));
+        assertEquals("connect", events.poll());
+        assertEquals("early", events.poll());
+
+        client.disconnect();
+    }
+
+    @Test
+    public void aSlowLookupLeavesTheLoopServingOthers() throws InterruptedException {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        HappyEyeballsConnector slow = new HappyEyeballsConnector() {
+
+            @Override
+            List<InetAddress> resolve(String host) throws IOException {
+
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return super.resolve(host);
+            }
+        };
+
+        Events slowEvents = new Events();
+        Events events = new Events();
+        WebSocketClient slowClient = client(mServer.getUri(), slowEvents, slow);
+        WebSocketClient client = client(mServer.getUri(), events, new HappyEyeballsConnector());
+
+        // Both are on the reactor's only loop
+        slowClient.connect();
+        client.connect();
+
+        assertEquals("connect", events.poll());
+        assertTrue(client.send("meanwhile"));
+        assertEquals("meanwhile", events.poll());
+
+        release.countDown();
+
+        assertEquals("connect", slowEvents.poll());
+
+        client.disconnect();
+        slowClient.disconnect();
+    }
+
+    @Test
+    public void failsAConnectionThatIsNeverUpgraded() throws Exception {
+
+        ServerSocket silent = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        try {
+
+            HappyEyeballsConnector connector = new HappyEyeballsConnector();
+            connector.setTotalTimeout(200);
+
+            Events events = new Events();
+            WebSocketClient client = client(URI.create("ws://127.0.0.1:" + silent.getLocalPort() + "/faye"), events,
+                    connector);
+
+            long start = System.nanoTime();
+
+            client.connect();
+
+            // Accepted but never answered, so only the deadline ends it
+            Socket accepted = silent.accept();
+
+            assertEquals("error " + SocketTimeoutException.class.getName(), events.poll());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+
+            accepted.close();
+
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void racesPastAnAddressThatNeverAnswers() throws Exception {
+
+        int port = mServer.getUri().getPort();
+        BlackHole hole = new BlackHole(InetAddress.getByName("127.0.0.2"), port);
+
+        try {
+
+            HappyEyeballsConnector connector = new AddressesConnector(hole.getAddress(),
+                    InetAddress.getByName("127.0.0.1"));
+            connector.setAttemptDelay(50);
+
+            Events events = new Events();
+            WebSocketClient client = client(mServer.getUri(), events, connector);
+
+            long start = System.nanoTime();
+
+            client.connect();
+
+            assertEquals("connect", events.poll());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+
+            // The winner goes first next time
+            assertEquals(InetAddress.getByName("127.0.0.1"), HappyEyeballsConnector.getPreferred("127.0.0.1"));
+
+            client.disconnect();
+
+        } finally {
+            hole.close();
+        }
+    }
+
+    @Test
+    public void timesOutEachAttempt() throws Exception {
+
+        BlackHole hole = new BlackHole(InetAddress.getByName("127.0.0.1"), 0);
+
+        try {
+
+            HappyEyeballsConnector connector = new HappyEyeballsConnector();
+            connector.setAttemptTimeout(200);
+
+            Events events = new Events();
+            WebSocketClient client = client(URI.create("ws://127.0.0.1:" + hole.getPort() + "/faye"), events,
+                    connector);
+
+            long start = System.nanoTime();
+
+            client.connect();
+
+            assertEquals("error " + SocketTimeoutException.class.getName(), events.poll());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+
+        } finally {
+            hole.close();
+        }
+    }
+
+    private WebSocketClient client(URI uri, Events events, HappyEyeballsConnector connector) {
+
+        WebSocketClient client = new WebSocketClient(new ImmediateScheduler(), uri, events, null);
+        client.setReactor(mReactor);
+        client.setConnector(connector);
+
+        return client;
+    }
+
+    /**
+     * A connector that resolves every host to fixed addresses, in order.
+     */
+    private static final class AddressesConnector extends HappyEyeballsConnector {
+
+        private final List<InetAddress> mAddresses;
+
+        AddressesConnector(InetAddress... addresses) {
+            mAddresses = Arrays.asList(addresses);
+        }
+
+        @Override
+        List<InetAddress> resolve(String host) {
+            return new ArrayList<InetAddress>(mAddresses);
+        }
+    }
+
+    /**
+     * A listening port whose accept queue is kept full, so that connecting
+     * to it neither succeeds nor fails, like a route that drops packets.
+     */
+    private static final class BlackHole {
+
+        private final ServerSocket mServer;
+        private final List<Socket> mFillers = new ArrayList<Socket>();
+
+        BlackHole(InetAddress address, int port) throws IOException {
+
+            mServer = new ServerSocket(port, 1, address);
+
+            // Linux queues one more connection than the backlog
+            for (int i = 0; i < 2; i++) {
+                Socket filler = new Socket();
+                filler.connect(mServer.getLocalSocketAddress(), 1000);
+                mFillers.add(filler);
+            }
+        }
+
+        InetAddress getAddress() {
+            return mServer.getInetAddress();
+        }
+
+        int getPort() {
+            return mServer.getLocalPort();
+        }
+
+        void close() throws IOException {
+
+            for (Socket filler : mFillers) {
+                filler.close();
+            }
+
+            mServer.close();
+        }
+    }
+
+    /**
+     * What a client reported, in order.
+     */
+    private static final class Events implements WebSocketClient.Listener {
+
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+        String poll() throws InterruptedException {
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onConnect() {
+            mEvents.add("connect");
+        }
+
+        @Override
+        public void onMessage(String message) {
+            mEvents.add(message);
+        }
+
+        @Override
+        public void onMessage(byte[] data) {
+        }
+
+        @Override
+        public void onDisconnect(int code, String reason) {
+        }
+
+        @Override
+        public void onError(Exception error) {
+            mEvents.add("error " + error.getClass().getName());
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.saulpower.fayeclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+
+    // Record header, "/c" and ten characters of data with their lengths, and a null ext
+    private static final int RECORD_SIZE = 13 + 4 + 2 + 4 + 10 + 4;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private OutboundJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = mFolder.newFile("journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+    }
+
+    @Test
+    public void recoversPendingPublishesAfterReopening() throws IOException {
+
+        mJournal = new OutboundJournal(mFile, 4096);
+
+        assertEquals(1, mJournal.append("/a", "{\"n\":1}", "{\"token\":\"t\"}"));
+        assertEquals(2, mJournal.append("/b", "{\"n\":2}", null));
+        assertEquals(3, mJournal.append("/c", "{\"n\":\"é€\"}", null));
+
+        mJournal.remove(2);
+        reopen(4096);
+
+        List<OutboundJournal.Entry> pending = mJournal.getPending();
+
+        assertEquals(2, mJournal.getPendingCount());
+        assertEquals(2, pending.size());
+
+        assertEquals(1, pending.get(0).getSequence());
+        assertEquals("/a", pending.get(0).getChannel());
+        assertEquals("{\"n\":1}", pending.get(0).getData());
+        assertEquals("{\"token\":\"t\"}", pending.get(0).getExt());
+
+        assertEquals(3, pending.get(1).getSequence());
+        assertEquals("{\"n\":\"é€\"}", pending.get(1).getData());
+        assertNull(pending.get(1).getExt());
+
+        // Sequence numbers carry on from the recovered records
+        assertEquals(4, mJournal.append("/d", "{}", null));
+    }
+
+    @Test
+    public void startsOverOnceEverythingIsAcknowledged() throws IOException {
+
+        mJournal = new OutboundJournal(mFile, 4096);
+
+        mJournal.remove(1);
+        mJournal.append("/a", "{}", null);
+        mJournal.append("/b", "{}", null);
+        mJournal.remove(2);
+        mJournal.remove(1);
+        mJournal.remove(1);
+
+        assertEquals(0, mJournal.getPendingCount());
+
+        reopen(4096);
+
+        assertEquals(0, mJournal.getPendingCount());
+        assertTrue(mJournal.getPending().isEmpty());
+    }
+
+    @Test
+    public void compactsTheAcknowledgedHeadWhenFull() throws IOException {
+
+        int capacity = 4 + 5 * RECORD_SIZE + 4;
+
+        mJournal = new OutboundJournal(mFile, capacity);
+
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, mJournal.append("/c", data(i), null));
+        }
+
+        assertEquals(-1, mJournal.append("/c", data(6), null));
+
+        // Acknowledging out of order only frees what is behind the oldest pending record
+        mJournal.remove(3);
+        assertEquals(-1, mJournal.append("/c", data(6), null));
+
+        // The head then moves past 3 as well, freeing three records' room
+        mJournal.remove(1);
+        mJournal.remove(2);
+
+        assertEquals(6, mJournal.append("/c", data(6), null));
+        assertEquals(7, mJournal.append("/c", data(7), null));
+        assertEquals(8, mJournal.append("/c", data(8), null));
+        assertEquals(-1, mJournal.append("/c", data(9), null));
+
+        assertPending(4, 5, 6, 7, 8);
+
+        reopen(capacity);
+
+        assertPending(4, 5, 6, 7, 8);
+        mJournal.remove(4);
+        assertEquals(9, mJournal.append("/c", data(9), null));
+        assertPending(5, 6, 7, 8, 9);
+    }
+
+    @Test
+    public void recoversFromACompactionLeftHalfDone() throws IOException {
+
+        int capacity = 4 + 5 * RECORD_SIZE + 4;
+
+        mJournal = new OutboundJournal(mFile, capacity);
+
+        for (int i = 1; i <= 5; i++) {
+            mJournal.append("/c", data(i), null);
+        }
+
+        mJournal.remove(1);
+        mJournal.remove(2);
+        mJournal.close();
+
+        // What a crash part way through copying records 3 to 5 to the top of a fresh file leaves
+        File compact = new File(mFile.getPath() + ".compact");
+        RandomAccessFile journal = new RandomAccessFile(mFile, "r");
+        RandomAccessFile file = new RandomAccessFile(compact, "rw");
+
+        try {
+
+            byte[] copied = new byte[RECORD_SIZE + RECORD_SIZE / 2];
+
+            journal.seek(4 + 2 * RECORD_SIZE);
+            journal.readFully(copied);
+
+            file.setLength(capacity);
+            file.write(new byte[] {0x46, 0x41, 0x4a, 0x31});
+            file.write(copied);
+
+        } finally {
+            journal.close();
+            file.close();
+        }
+
+        mJournal = new OutboundJournal(mFile, capacity);
+
+        assertFalse(compact.exists());
+        assertPending(3, 4, 5);
+
+        // The next compaction goes through
+        assertEquals(6, mJournal.append("/c", data(6), null));
+        assertEquals(7, mJournal.append("/c", data(7), null));
+        assertPending(3, 4, 5, 6, 7);
+
+        reopen(capacity);
+
+        assertPending(3, 4, 5, 6, 7);
+    }
+
+    @Test
+    public void ignoresARecordTornByACrash() throws IOException {
+
+        mJournal = new OutboundJournal(mFile, 4096);
+
+        mJournal.append("/c", data(1), null);
+        mJournal.append("/c", data(2), null);
+        mJournal.close();
+
+        // A crash before the second record's size was written leaves it zero
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+
+        try {
+            file.seek(4 + RECORD_SIZE);
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+
+        mJournal = new OutboundJournal(mFile, 4096);
+
+        assertPending(1);
+        assertEquals(2, mJournal.append("/c", data(2), null));
+        assertPending(1, 2);
+    }
+
+    @Test
+    public void matchesAModelAcrossRandomAppendsAcknowledgementsAndRestarts() throws IOException {
+
+        int capacity = 4 + 12 * RECORD_SIZE + 4;
+        Random random = new Random(42);
+        List<Long> model = new ArrayList<Long>();
+        long next = 1;
+
+        mJournal = new OutboundJournal(mFile, capacity);
+
+        for (int step = 0; step < 5000; step++) {
+
+            int action = random.nextInt(10);
+
+            if (action < 5) {
+
+                long sequence = mJournal.append("/c", data((int) (next % 100000)), null);
+
+                if (model.size() == 12) {
+                    assertEquals(-1, sequence);
+                } else if (sequence < 0) {
+                    // Only acknowledged records behind a pending one can be left taking up room
+                    assertTrue(model.size() > 0);
+                } else {
+                    assertTrue(sequence >= next || model.isEmpty());
+                    next = sequence + 1;
+                    model.add(sequence);
+                }
+
+            } else if (action < 9) {
+
+                if (!model.isEmpty()) {
+                    mJournal.remove(model.remove(random.nextInt(model.size())));
+                }
+
+            } else {
+                reopen(capacity);
+            }
+
+            assertEquals(model.size(), mJournal.getPendingCount());
+        }
+
+        List<OutboundJournal.Entry> pending = mJournal.getPending();
+
+        assertEquals(model.size(), pending.size());
+
+        for (int i = 0; i < model.size(); i++) {
+            assertEquals(model.get(i).longValue(), pending.get(i).getSequence());
+            assertEquals(data((int) (model.get(i) % 100000)), pending.get(i).getData());
+        }
+    }
+
+    private void reopen(int capacity) throws IOException {
+        mJournal.close();
+        mJournal = new OutboundJournal(mFile, capacity);
+    }
+
+    private void assertPending(long... sequences) {
+
+        List<OutboundJournal.Entry> pending = mJournal.getPending();
+
+        assertEquals(sequences.length, mJournal.getPendingCount());
+        assertEquals(sequences.length, pending.size());
+
+        for (int i = 0; i < sequences.length; i++) {
+            assertEquals(sequences[i], pending.get(i).getSequence());
+            assertEquals(data((int) sequences[i]), pending.get(i).getData());
+        }
+    }
+
+    /**
+     * Ten characters of data, so every record is the same size.
+     */
+    private static String data(int n) {
+        return String.format("{\"n\":%04d}", n);
+    }
+}
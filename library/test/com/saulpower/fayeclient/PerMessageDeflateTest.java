@@ -0,0 +1,194 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PerMessageDeflateTest {
+
+    @Test
+    public void offersOnlyWhatIsConfigured() {
+
+        PerMessageDeflate deflate = new PerMessageDeflate();
+
+        assertEquals("permessage-deflate; client_no_context_takeover", deflate.offer());
+
+        deflate.setServerNoContextTakeover(true);
+        deflate.setServerMaxWindowBits(10);
+
+        assertEquals("permessage-deflate; client_no_context_takeover; server_no_context_takeover; "
+                + "server_max_window_bits=10", deflate.offer());
+    }
+
+    @Test
+    public void acceptsAValidAnswer() throws IOException {
+
+        PerMessageDeflate deflate = new PerMessageDeflate();
+
+        assertNull(deflate.accept(null));
+        assertNotNull(deflate.accept("permessage-deflate"));
+        assertNotNull(deflate.accept("permessage-deflate; client_no_context_takeover; server_max_window_bits=\"12\""));
+    }
+
+    @Test
+    public void rejectsAnswersThatBreakTheOffer() {
+
+        PerMessageDeflate deflate = new PerMessageDeflate();
+        deflate.setServerMaxWindowBits(10);
+        deflate.setServerNoContextTakeover(true);
+
+        String[] answers = {
+            "x-webkit-deflate-frame",
+            "permessage-deflate; server_no_context_takeover, permessage-deflate; server_no_context_takeover",
+            "permessage-deflate; server_no_context_takeover; server_max_window_bits=12",
+            "permessage-deflate; server_no_context_takeover; server_max_window_bits=99",
+            "permessage-deflate; server_no_context_takeover; client_max_window_bits=10",
+            "permessage-deflate"
+        };
+
+        for (String answer : answers) {
+
+            try {
+                deflate.accept(answer);
+                fail("Accepted " + answer);
+            } catch (HybiParser.ProtocolError ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void inflatesWhatItDeflates() throws IOException {
+
+        PerMessageDeflate.Session session = new PerMessageDeflate().accept("permessage-deflate");
+        String text = FayeTraffic.frames(2).get(1);
+        int length = FrameEncoder.utf8Length(text);
+
+        int compressed = session.deflate(text, length);
+        assertTrue(compressed < length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.inflate(session.getOutput(), 0, compressed, true, out);
+
+        assertEquals(text, out.toString("UTF-8"));
+    }
+
+    @Test
+    public void carriesTheServerContextAcrossMessages() throws IOException {
+
+        List<String> frames = FayeTraffic.frames(20);
+        List<Object> received = new ArrayList<Object>();
+        HybiParser parser = HybiParserTest.parser(received);
+
+        parser.setDeflate(new PerMessageDeflate().accept("permessage-deflate"));
+
+        // One deflater for every message, as a server with context takeover compresses
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        for (String frame : frames) {
+
+            byte[] compressed = compress(deflater, HybiParserTest.utf8(frame));
+            byte[] bytes = HybiParserTest.frame(HybiParser.OP_TEXT, true, compressed, null);
+
+            bytes[0] |= HybiParser.RSV1;
+            stream.write(bytes);
+        }
+
+        try {
+            parser.start(new ByteArrayInputStream(stream.toByteArray()));
+        } catch (EOFException ex) {
+            // Every frame has been read
+        }
+
+        assertEquals(new ArrayList<Object>(frames), received);
+    }
+
+    @Test
+    public void compressesOnlyFromTheMinimumSize() throws IOException {
+
+        PerMessageDeflate config = new PerMessageDeflate();
+        config.setMinSize(100);
+
+        HybiParser parser = HybiParserTest.parser(new ArrayList<Object>());
+        parser.setDeflate(config.accept("permessage-deflate"));
+
+        BufferPool pool = new BufferPool(4096, 1);
+        char[] large = new char[100];
+        Arrays.fill(large, 'a');
+
+        ByteBuffer small = parser.frame("{\"small\":true}", pool);
+        ByteBuffer compressed = parser.frame(new String(large), pool);
+
+        assertEquals(0, small.get(0) & HybiParser.RSV1);
+        assertEquals(HybiParser.RSV1, compressed.get(0) & HybiParser.RSV1);
+    }
+
+    @Test
+    public void framesPlainTextOnceTheSessionHasEnded() throws IOException {
+
+        PerMessageDeflate.Session session = new PerMessageDeflate().accept("permessage-deflate");
+        HybiParser parser = HybiParserTest.parser(new ArrayList<Object>());
+        char[] large = new char[1000];
+        Arrays.fill(large, 'a');
+
+        parser.setDeflate(session);
+        session.end();
+        session.end();
+
+        assertTrue(session.isEnded());
+
+        ByteBuffer frame = parser.frame(new String(large), new BufferPool(4096, 1));
+
+        assertEquals(0, frame.get(0) & HybiParser.RSV1);
+    }
+
+    @Test
+    public void endsTheSessionItReplaces() throws IOException {
+
+        PerMessageDeflate config = new PerMessageDeflate();
+        PerMessageDeflate.Session first = config.accept("permessage-deflate");
+        PerMessageDeflate.Session second = config.accept("permessage-deflate");
+        HybiParser parser = HybiParserTest.parser(new ArrayList<Object>());
+
+        parser.setDeflate(first);
+        parser.setDeflate(second);
+
+        assertTrue(first.isEnded());
+        assertFalse(second.isEnded());
+
+        parser.setDeflate(null);
+
+        assertTrue(second.isEnded());
+    }
+
+    /**
+     * Compresses a message and strips the empty block's tail, as RFC 7692
+     * has the sender do.
+     */
+    static byte[] compress(Deflater deflater, byte[] message) {
+
+        byte[] out = new byte[message.length + 64];
+
+        deflater.setInput(message);
+
+        int length = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+
+        return Arrays.copyOf(out, length - 4);
+    }
+}
@@ -0,0 +1,201 @@
+package com.saulpower.fayeclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * How the blocking transport scales with the number of open connections,
+ * on platform threads and on virtual threads. Every connection holds a
+ * parked reader and writer; the score is the round trip of one echo
+ * through them, which is mostly the time to wake both. Setup prints the
+ * memory and threads each connection costs.
+ *
+ * Virtual threads need JDK 21 or later, for instance
+ * {@code -jvm /path/to/jdk-21/bin/java}; without them those runs fail.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class ThreadScalingBenchmark {
+
+    private static final int CONNECT_BATCH = 100;
+
+    @Param({"100", "1000", "5000"})
+    public int connections;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    private WebSocketEchoServer mServer;
+    private WebSocketClient[] mClients;
+    private volatile CountDownLatch mEcho;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        Logger.getLogger("com.saulpower.fayeclient").setLevel(Level.OFF);
+
+        ThreadFactory factory = null;
+
+        if (threads.equals("virtual")) {
+
+            factory = VirtualThreads.factory();
+
+            if (factory == null) {
+                throw new IllegalStateException("No virtual threads on " + System.getProperty("java.version"));
+            }
+        }
+
+        mServer = new WebSocketEchoServer();
+        mClients = new WebSocketClient[connections];
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentKilobytes();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        for (int start = 0; start < connections; start += CONNECT_BATCH) {
+
+            int count = Math.min(CONNECT_BATCH, connections - start);
+            CountDownLatch connected = new CountDownLatch(count);
+
+            for (int i = start; i < start + count; i++) {
+                mClients[i] = new WebSocketClient(new ImmediateScheduler(), mServer.getUri(), new Echoes(connected),
+                        null);
+                mClients[i].setThreadFactory(factory);
+                mClients[i].connect();
+            }
+
+            if (!connected.await(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Only " + (start + count - connected.getCount()) + " connected");
+            }
+        }
+
+        System.out.printf("%n%d connections on %s threads: %.1f KB heap and %.1f KB resident each, %d more"
+                        + " platform threads%n", connections, threads,
+                (usedHeap() - heapBefore) / 1024.0 / connections,
+                (residentKilobytes() - rssBefore) / (double) connections,
+                ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        for (WebSocketClient client : mClients) {
+            if (client != null) {
+                client.disconnect();
+            }
+        }
+
+        mServer.close();
+    }
+
+    @Benchmark
+    public void echo() throws InterruptedException {
+
+        CountDownLatch echo = new CountDownLatch(1);
+        mEcho = echo;
+
+        mClients[mNext++ % connections].send("{\"channel\":\"/ping\"}");
+
+        if (!echo.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("No echo");
+        }
+    }
+
+    private static long usedHeap() {
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The process's resident set, where platform thread stacks show up, or
+     * 0 off Linux.
+     */
+    private static long residentKilobytes() throws IOException {
+
+        BufferedReader status;
+
+        try {
+            status = new BufferedReader(new FileReader("/proc/self/status"));
+        } catch (IOException ex) {
+            return 0;
+        }
+
+        try {
+
+            String line;
+
+            while ((line = status.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+
+            return 0;
+
+        } finally {
+            status.close();
+        }
+    }
+
+    private final class Echoes implements WebSocketClient.Listener {
+
+        private final CountDownLatch mConnected;
+
+        Echoes(CountDownLatch connected) {
+            mConnected = connected;
+        }
+
+        @Override
+        public void onConnect() {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onMessage(String message) {
+            mEcho.countDown();
+        }
+
+        @Override
+        public void onMessage(byte[] data) {
+        }
+
+        @Override
+        public void onDisconnect(int code, String reason) {
+        }
+
+        @Override
+        public void onError(Exception error) {
+        }
+    }
+}
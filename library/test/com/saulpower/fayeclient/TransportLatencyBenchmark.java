@@ -0,0 +1,129 @@
+package com.saulpower.fayeclient;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publish-to-delivery round trip through a {@link FayeClient} against a
+ * loopback {@link FayeStandIn}, over the WebSocket, over long-polling, and
+ * over the long-polling a WebSocket falls back to when the server refuses
+ * the upgrade. Teardown prints the TCP connections and POSTs it took.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class TransportLatencyBenchmark {
+
+    private static final long POLL_TIMEOUT = 5000;
+
+    @Param({"websocket", "long-polling", "fallback"})
+    public String transport;
+
+    private FayeStandIn mServer;
+    private ScheduledExecutorService mExecutor;
+    private FayeClient mClient;
+    private final BlockingQueue<JSONObject> mDeliveries = new LinkedBlockingQueue<JSONObject>();
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        Logger.getLogger("com.saulpower.fayeclient").setLevel(Level.OFF);
+
+        boolean fallback = transport.equals("fallback");
+
+        mServer = new FayeStandIn(POLL_TIMEOUT, fallback);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mClient = new FayeClient(new ExecutorScheduler(mExecutor), mServer.getUri(), "/bench");
+
+        if (transport.equals("long-polling")) {
+            mClient.setTransport(FayeClient.Transport.LONG_POLLING);
+        } else {
+            mClient.setTransport(FayeClient.Transport.WEBSOCKET);
+            mClient.setLongPollingFallback(fallback);
+        }
+
+        final CountDownLatch subscribed = new CountDownLatch(1);
+
+        mClient.setFayeListener(new FayeClient.FayeListener() {
+
+            @Override
+            public void connectedToServer() {
+            }
+
+            @Override
+            public void disconnectedFromServer() {
+            }
+
+            @Override
+            public void subscribedToChannel(String subscription) {
+                subscribed.countDown();
+            }
+
+            @Override
+            public void subscriptionFailedWithError(String error) {
+            }
+
+            @Override
+            public void messageReceived(JSONObject json) {
+                mDeliveries.add(json);
+            }
+        });
+
+        mClient.connectToServer(null);
+
+        if (!subscribed.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Never subscribed over " + transport);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        System.out.println();
+        System.out.println(transport + ": " + mServer.getConnections() + " TCP connections, "
+                + mServer.getPosts() + " POSTs");
+
+        mClient.disconnectFromServer();
+        mExecutor.shutdownNow();
+        mServer.close();
+    }
+
+    @Benchmark
+    public JSONObject publishRoundTrip() throws Exception {
+
+        mClient.publish(new JSONObject().put("n", mNext++), null);
+
+        JSONObject delivery = mDeliveries.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        if (delivery == null) {
+            throw new IllegalStateException("No delivery over " + transport);
+        }
+
+        return delivery;
+    }
+}
@@ -0,0 +1,98 @@
+package com.saulpower.fayeclient;
+
+import org.apache.http.HttpException;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UpgradeResponseParserTest {
+
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+
+    private static final String RESPONSE = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "SEC-WebSocket-Accept:   " + ACCEPT + " \t\r\n"
+            + "Sec-WebSocket-Extensions: permessage-deflate; server_no_context_takeover\r\n"
+            + "sec-websocket-extensions : x-other\r\n"
+            + "\r\n";
+
+    private final UpgradeResponseParser mParser = new UpgradeResponseParser();
+
+    @Test
+    public void stopsAtTheFirstFrameByte() throws HttpException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(HybiParserTest.utf8(RESPONSE + "\u0001frame"));
+
+        assertTrue(mParser.parse(buffer));
+        assertEquals(RESPONSE.length(), buffer.position());
+        assertEquals(101, mParser.getStatusCode());
+        assertEquals("Switching Protocols", mParser.getReasonPhrase());
+        assertTrue(mParser.hasAccept());
+        assertTrue(mParser.acceptMatches(ACCEPT));
+        assertFalse(mParser.acceptMatches(ACCEPT.substring(1)));
+        assertEquals("permessage-deflate; server_no_context_takeover, x-other", mParser.getExtensions());
+    }
+
+    @Test
+    public void resumesAsBytesTrickleIn() throws HttpException {
+
+        byte[] bytes = HybiParserTest.utf8(RESPONSE);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+
+        // The way WebSocketClient.readUpgrade fills the buffer
+        for (int i = 0; i < bytes.length; i++) {
+
+            buffer.put(bytes[i]);
+            buffer.flip();
+
+            boolean complete = mParser.parse(buffer);
+
+            assertEquals("after byte " + i, i == bytes.length - 1, complete);
+            assertEquals(complete ? bytes.length : 0, buffer.position());
+
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+
+        assertTrue(mParser.acceptMatches(ACCEPT));
+    }
+
+    @Test
+    public void reportsARefusal() throws HttpException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(HybiParserTest.utf8("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n"));
+
+        assertTrue(mParser.parse(buffer));
+        assertEquals(403, mParser.getStatusCode());
+        assertEquals("Forbidden", mParser.getReasonPhrase());
+        assertFalse(mParser.hasAccept());
+        assertNull(mParser.getExtensions());
+    }
+
+    @Test
+    public void forgetsTheLastResponseOnReset() throws HttpException {
+
+        mParser.parse(ByteBuffer.wrap(HybiParserTest.utf8(RESPONSE)));
+        mParser.reset();
+
+        assertTrue(mParser.parse(ByteBuffer.wrap(HybiParserTest.utf8("HTTP/1.1 101 Switching\r\n\r\n"))));
+        assertFalse(mParser.hasAccept());
+        assertNull(mParser.getExtensions());
+    }
+
+    @Test(expected = HttpException.class)
+    public void rejectsWhatIsNotHttp() throws HttpException {
+        mParser.parse(ByteBuffer.wrap(HybiParserTest.utf8("SSH-2.0-OpenSSH\r\n\r\n")));
+    }
+
+    @Test(expected = HttpException.class)
+    public void rejectsAMalformedStatus() throws HttpException {
+        mParser.parse(ByteBuffer.wrap(HybiParserTest.utf8("HTTP/1.1 1x1 Switching Protocols\r\n\r\n")));
+    }
+}
@@ -0,0 +1,106 @@
+package com.saulpower.fayeclient;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Utf8StreamDecoderTest {
+
+    private static final String TEXT = "a é € 😀 z";
+
+    private final Utf8StreamDecoder mDecoder = new Utf8StreamDecoder();
+
+    @Test
+    public void decodesAcrossEverySplit() throws HybiParser.ProtocolError {
+
+        byte[] bytes = HybiParserTest.utf8(TEXT);
+
+        for (int split = 0; split <= bytes.length; split++) {
+
+            mDecoder.write(bytes, 0, split);
+            mDecoder.write(bytes, split, bytes.length - split);
+
+            assertEquals("split at " + split, TEXT, mDecoder.finish());
+        }
+    }
+
+    @Test
+    public void decodesOneByteAtATime() throws HybiParser.ProtocolError {
+
+        for (byte b : HybiParserTest.utf8(TEXT)) {
+            mDecoder.write(b);
+        }
+
+        assertEquals(TEXT, mDecoder.finish());
+    }
+
+    @Test
+    public void growsForLargeMessagesAndShrinksAfter() throws HybiParser.ProtocolError {
+
+        char[] large = new char[200000];
+        Arrays.fill(large, 'ß');
+
+        byte[] bytes = HybiParserTest.utf8(new String(large));
+
+        for (int offset = 0; offset < bytes.length; offset += 1001) {
+            mDecoder.write(bytes, offset, Math.min(1001, bytes.length - offset));
+        }
+
+        assertEquals(new String(large), mDecoder.finish());
+
+        mDecoder.write(HybiParserTest.utf8(TEXT), 0, HybiParserTest.utf8(TEXT).length);
+
+        assertEquals(TEXT, mDecoder.finish());
+    }
+
+    @Test
+    public void streamsChunksThatJoinUpToTheMessage() throws HybiParser.ProtocolError {
+
+        byte[] bytes = HybiParserTest.utf8(TEXT);
+        StringBuilder streamed = new StringBuilder();
+
+        for (int offset = 0; offset < bytes.length; offset += 3) {
+            mDecoder.write(bytes, offset, Math.min(3, bytes.length - offset));
+            streamed.append(mDecoder.takeChars());
+        }
+
+        mDecoder.end();
+        streamed.append(mDecoder.takeChars());
+
+        assertEquals(TEXT, streamed.toString());
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+
+        byte[][] inputs = {
+            {(byte) 0xFF},
+            {(byte) 0xC0, (byte) 0x80},
+            {(byte) 0xED, (byte) 0xA0, (byte) 0x80},
+            {'o', 'k', (byte) 0x80}
+        };
+
+        for (byte[] input : inputs) {
+
+            try {
+                mDecoder.write(input, 0, input.length);
+                mDecoder.finish();
+                fail("Decoded " + Arrays.toString(input));
+            } catch (HybiParser.ProtocolError ex) {
+                mDecoder.reset();
+            }
+        }
+    }
+
+    @Test(expected = HybiParser.ProtocolError.class)
+    public void rejectsAMessageEndingMidCharacter() throws HybiParser.ProtocolError {
+
+        byte[] euro = HybiParserTest.utf8("€");
+
+        mDecoder.write(euro, 0, 2);
+        mDecoder.finish();
+    }
+}
@@ -0,0 +1,92 @@
+package com.saulpower.fayeclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketClientTest {
+
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+    private WebSocketEchoServer mServer;
+    private WebSocketClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+
+        mServer = new WebSocketEchoServer();
+        mClient = new WebSocketClient(new ImmediateScheduler(), mServer.getUri(), new WebSocketClient.Listener() {
+
+            @Override
+            public void onConnect() {
+                mEvents.add("connect");
+            }
+
+            @Override
+            public void onMessage(String message) {
+                mEvents.add(message);
+            }
+
+            @Override
+            public void onMessage(byte[] data) {
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+                mEvents.add("disconnect");
+            }
+
+            @Override
+            public void onError(Exception error) {
+                mEvents.add("error");
+            }
+        }, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.disconnect();
+        mServer.close();
+    }
+
+    @Test
+    public void reconnectsOnTheSameInstance() throws InterruptedException {
+
+        for (int i = 0; i < 3; i++) {
+
+            assertEquals("connect", connect());
+            assertTrue(mClient.send("echo " + i));
+            assertEquals("echo " + i, mEvents.poll(5, TimeUnit.SECONDS));
+
+            mClient.disconnect();
+            mClient.disconnect();
+
+            // The reader reports the socket it was reading being closed under it
+            assertEquals("error", mEvents.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Connects, retrying while the last connection's reader is still on
+     * its way out, in which case connect() does nothing.
+     */
+    private String connect() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        String event = null;
+
+        while (event == null && System.currentTimeMillis() < deadline) {
+            mClient.connect();
+            event = mEvents.poll(10, TimeUnit.MILLISECONDS);
+        }
+
+        return event;
+    }
+}
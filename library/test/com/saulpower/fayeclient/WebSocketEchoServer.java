@@ -0,0 +1,249 @@
+package com.saulpower.fayeclient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+
+/**
+ * A loopback WebSocket server that echoes every text and binary frame,
+ * unmasked, on one selector thread, so that it adds a single thread however
+ * many clients connect. Frames must fit in its 16 KB read buffer.
+ */
+final class WebSocketEchoServer implements Runnable {
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final ServerSocketChannel mServer;
+    private final Selector mSelector;
+    private final Thread mThread;
+
+    WebSocketEchoServer() throws IOException {
+
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 4096);
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        mThread = new Thread(this, "websocket-echo");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    URI getUri() {
+        return URI.create("ws://127.0.0.1:" + mServer.socket().getLocalPort() + "/faye");
+    }
+
+    void close() throws IOException {
+
+        mThread.interrupt();
+        mSelector.wakeup();
+        mServer.close();
+    }
+
+    @Override
+    public void run() {
+
+        try {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                mSelector.select();
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        handle(key);
+                    } catch (IOException ex) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+
+            for (SelectionKey key : mSelector.keys()) {
+                key.channel().close();
+            }
+
+            mSelector.close();
+
+        } catch (IOException ex) {
+            // Closed
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+
+        if (key.isAcceptable()) {
+
+            SocketChannel channel = mServer.accept();
+
+            if (channel == null) return;
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(mSelector, SelectionKey.OP_READ, new Connection());
+
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        if (key.isWritable()) {
+            connection.flush(channel);
+        }
+
+        if (key.isReadable()) {
+
+            if (channel.read(connection.mIn) == -1) {
+                throw new IOException("Closed by the client");
+            }
+
+            connection.mIn.flip();
+            connection.process();
+            connection.mIn.compact();
+            connection.flush(channel);
+        }
+
+        key.interestOps(connection.mOut.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private static final class Connection {
+
+        private final ByteBuffer mIn = ByteBuffer.allocate(16 * 1024);
+        private ByteBuffer mOut = ByteBuffer.allocate(16 * 1024);
+        private boolean mUpgraded;
+
+        void process() throws IOException {
+
+            if (!mUpgraded && !upgrade()) return;
+
+            while (mIn.remaining() >= 2) {
+
+                int start = mIn.position();
+                int opcode = mIn.get(start) & 0x0F;
+                int length = mIn.get(start + 1) & 0x7F;
+                int header = 2;
+
+                if (length == 126) {
+
+                    if (mIn.remaining() < 4) return;
+
+                    length = mIn.getShort(start + 2) & 0xFFFF;
+                    header = 4;
+
+                } else if (length == 127) {
+                    throw new IOException("Frame too large for the echo server");
+                }
+
+                if (mIn.remaining() < header + 4 + length) return;
+
+                if (opcode == HybiParser.OP_CLOSE) {
+                    throw new IOException("Closed by the client");
+                }
+
+                int mask = start + header;
+                int payload = mask + 4;
+
+                for (int i = 0; i < length; i++) {
+                    mIn.put(payload + i, (byte) (mIn.get(payload + i) ^ mIn.get(mask + (i & 3))));
+                }
+
+                reserve(header + length);
+                mOut.put((byte) (HybiParser.FIN | opcode));
+
+                if (header == 2) {
+                    mOut.put((byte) length);
+                } else {
+                    mOut.put((byte) 126);
+                    mOut.putShort((short) length);
+                }
+
+                for (int i = 0; i < length; i++) {
+                    mOut.put(mIn.get(payload + i));
+                }
+
+                mIn.position(payload + length);
+            }
+        }
+
+        /**
+         * Answers the upgrade request once it has all arrived.
+         */
+        private boolean upgrade() throws IOException {
+
+            String request = new String(mIn.array(), mIn.position(), mIn.remaining(), "ISO-8859-1");
+            int end = request.indexOf("\r\n\r\n");
+
+            if (end < 0) return false;
+
+            String secret = null;
+
+            for (String line : request.substring(0, end).split("\r\n")) {
+                if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                    secret = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+
+            String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept(secret) + "\r\n\r\n";
+
+            byte[] bytes = response.getBytes("ISO-8859-1");
+
+            reserve(bytes.length);
+            mOut.put(bytes);
+            mIn.position(mIn.position() + end + 4);
+            mUpgraded = true;
+
+            return true;
+        }
+
+        void flush(SocketChannel channel) throws IOException {
+
+            mOut.flip();
+            channel.write(mOut);
+            mOut.compact();
+        }
+
+        private void reserve(int length) {
+
+            if (mOut.remaining() >= length) return;
+
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(mOut.capacity() * 2, mOut.position() + length));
+
+            mOut.flip();
+            grown.put(mOut);
+            mOut = grown;
+        }
+
+        private static String accept(String secret) throws IOException {
+
+            try {
+
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                byte[] digest = sha1.digest((secret + GUID).getBytes("ISO-8859-1"));
+
+                return Base64.encodeToString(digest, Base64.NO_WRAP);
+
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+    }
+}